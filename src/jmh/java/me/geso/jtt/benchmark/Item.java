@@ -0,0 +1,38 @@
+package me.geso.jtt.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Row object used by the benchmark templates.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class Item {
+	public String name;
+	public String url;
+	public String symbol;
+	public double price;
+	public double change;
+	public double ratio;
+
+	/**
+	 * Create items. Strings contain HTML special characters, so the escaper
+	 * has work to do.
+	 */
+	public static List<Item> createItems(int n) {
+		List<Item> items = new ArrayList<>(n);
+		for (int i = 0; i < n; ++i) {
+			Item item = new Item();
+			item.name = "John & <Jane> " + i;
+			item.symbol = "JTT" + i;
+			item.url = "http://example.com/?a=" + i + "&b=\"" + i + "\"";
+			item.price = 3.14 * i;
+			item.change = i % 2 == 0 ? 1.5 : -1.5;
+			item.ratio = 0.25;
+			items.add(item);
+		}
+		return items;
+	}
+}
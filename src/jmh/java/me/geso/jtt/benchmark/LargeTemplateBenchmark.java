@@ -0,0 +1,62 @@
+package me.geso.jtt.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import me.geso.jtt.Source;
+import me.geso.jtt.lexer.Token;
+import me.geso.jtt.tt.TTSyntax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lex multi-megabyte templates. The time per byte should not grow with the
+ * template size.
+ * 
+ * @author tokuhirom
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LargeTemplateBenchmark {
+	/**
+	 * Template size in megabytes.
+	 */
+	@Param({ "1", "4" })
+	public int megabytes;
+
+	private final TTSyntax syntax = new TTSyntax();
+	private Source source;
+	private String src;
+
+	@Setup
+	public void setup() throws IOException {
+		String loop = Templates.read("loop.tt");
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < megabytes * 1024 * 1024) {
+			builder.append(loop);
+		}
+		src = builder.toString();
+		source = Source.fromString(src);
+	}
+
+	@Benchmark
+	public List<Token> lex() {
+		return syntax.tokenize(source, src);
+	}
+}
@@ -0,0 +1,79 @@
+package me.geso.jtt.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import me.geso.jtt.InMemoryTemplateCache;
+import me.geso.jtt.JTT;
+import me.geso.jtt.JTTBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmark of JTT#renderFile with the template cache.
+ * 
+ * <ul>
+ * <li>loop.tt: loop heavy. FOR, IF and attribute access.</li>
+ * <li>escape.tt: escape heavy. Strings contain HTML special characters.</li>
+ * <li>include.tt: INCLUDE in the loop.</li>
+ * <li>wrapper.tt: WRAPPER with the layout.</li>
+ * <li>large.tt: large loop body. Too large for the bytecode compiler.</li>
+ * </ul>
+ * 
+ * @author tokuhirom
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+	@Param({ "loop.tt", "escape.tt", "include.tt", "wrapper.tt",
+			"large.tt" })
+	public String template;
+
+	@Param({ "-1", "0" })
+	public int bytecodeCompileThreshold;
+
+	@Param({ "100" })
+	public int items;
+
+	private JTT jtt;
+	private Map<String, Object> vars;
+
+	@Setup
+	public void setup() throws IOException {
+		jtt = new JTTBuilder()
+				.addIncludePath(Templates.extract())
+				.setTemplateCache(
+						new InMemoryTemplateCache(
+								InMemoryTemplateCache.CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES))
+				.setBytecodeCompileThreshold(bytecodeCompileThreshold)
+				.build();
+
+		vars = new HashMap<>();
+		vars.put("items", Item.createItems(items));
+		vars.put("title", "JTT <benchmark>");
+		Templates.verify(template, renderFile(), items);
+	}
+
+	@Benchmark
+	public String renderFile() {
+		// Templates set loop variables, so each rendering gets fresh vars.
+		return jtt.renderFile(template, new HashMap<>(vars));
+	}
+}
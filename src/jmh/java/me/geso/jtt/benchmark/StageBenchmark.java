@@ -0,0 +1,71 @@
+package me.geso.jtt.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import me.geso.jtt.Source;
+import me.geso.jtt.lexer.Token;
+import me.geso.jtt.parser.Node;
+import me.geso.jtt.tt.TTSyntax;
+import me.geso.jtt.vm.Irep;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark the front end stages separately: lexer, parser and compiler.
+ * Inputs of each stage are prepared in the setup, so a regression is
+ * attributed to the stage that caused it. See VMBenchmark for the VM.
+ * 
+ * @author tokuhirom
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+	@Param({ "loop.tt", "escape.tt", "include.tt", "wrapper.tt" })
+	public String template;
+
+	private final TTSyntax syntax = new TTSyntax();
+	private Source source;
+	private String src;
+	private List<Token> tokens;
+	private Node ast;
+
+	@Setup
+	public void setup() throws IOException {
+		src = Templates.read(template);
+		source = Source.fromString(src);
+		tokens = syntax.tokenize(source, src);
+		ast = syntax.parse(source, tokens);
+	}
+
+	@Benchmark
+	public List<Token> lex() {
+		return syntax.tokenize(source, src);
+	}
+
+	@Benchmark
+	public Node parse() {
+		return syntax.parse(source, tokens);
+	}
+
+	@Benchmark
+	public Irep compile() {
+		return syntax.compile(source, ast);
+	}
+}
@@ -0,0 +1,65 @@
+package me.geso.jtt.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Benchmark templates bundled in the benchmark jar.
+ * 
+ * @author tokuhirom
+ *
+ */
+class Templates {
+	static final String[] NAMES = { "loop.tt", "escape.tt", "include.tt",
+			"row.tt", "wrapper.tt", "layout.tt", "large.tt" };
+
+	/**
+	 * Read the template source.
+	 */
+	static String read(String name) throws IOException {
+		try (InputStream in = open(name)) {
+			return new String(ByteStreams.toByteArray(in),
+					StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Copy all templates to a temporary include path.
+	 */
+	static Path extract() throws IOException {
+		Path dir = Files.createTempDirectory("jtt-jmh");
+		for (String name : NAMES) {
+			try (InputStream in = open(name)) {
+				Files.copy(in, dir.resolve(name),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Check the rendered output, so a broken scenario fails instead of
+	 * producing numbers. Every template prints the symbol of each item.
+	 */
+	static void verify(String template, String output, int items) {
+		if (output.contains("(null)")
+				|| !output.contains("JTT" + (items - 1))) {
+			throw new IllegalStateException("Unexpected output of "
+					+ template + ": " + output);
+		}
+	}
+
+	private static InputStream open(String name) throws IOException {
+		InputStream in = Templates.class.getResourceAsStream(name);
+		if (in == null) {
+			throw new IOException("Missing benchmark template: " + name);
+		}
+		return in;
+	}
+}
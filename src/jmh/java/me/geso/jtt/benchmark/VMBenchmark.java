@@ -0,0 +1,85 @@
+package me.geso.jtt.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import me.geso.jtt.InMemoryTemplateCache;
+import me.geso.jtt.Source;
+import me.geso.jtt.TemplateLoader;
+import me.geso.jtt.escape.HTMLEscaper;
+import me.geso.jtt.tt.TTSyntax;
+import me.geso.jtt.vm.Irep;
+import me.geso.jtt.vm.VM;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark VM#run on the compiled irep, by the interpreter and by the
+ * bytecode compiler.
+ * 
+ * @author tokuhirom
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VMBenchmark {
+	private static final int ITEMS = 100;
+
+	@Param({ "loop.tt", "escape.tt", "include.tt", "wrapper.tt",
+			"large.tt" })
+	public String template;
+
+	@Param({ "-1", "0" })
+	public int bytecodeCompileThreshold;
+
+	private final TTSyntax syntax = new TTSyntax();
+	private Irep irep;
+	private TemplateLoader loader;
+	private Map<String, Object> vars;
+
+	@Setup
+	public void setup() throws IOException {
+		String src = Templates.read(template);
+		Source source = Source.fromString(src);
+		irep = syntax.compile(source,
+				syntax.parse(source, syntax.tokenize(source, src)));
+
+		List<Path> includePaths = new ArrayList<>();
+		includePaths.add(Templates.extract());
+		// Cache the layout, so the VM benchmark doesn't compile it.
+		loader = new TemplateLoader(includePaths, new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES));
+
+		vars = new HashMap<>();
+		vars.put("items", Item.createItems(ITEMS));
+		vars.put("title", "JTT <benchmark>");
+		Templates.verify(template, run(), ITEMS);
+	}
+
+	@Benchmark
+	public String run() {
+		return new VM(syntax, loader, new HashMap<>(), null,
+				new HTMLEscaper(), irep, new HashMap<>(vars),
+				bytecodeCompileThreshold)
+				.run();
+	}
+}
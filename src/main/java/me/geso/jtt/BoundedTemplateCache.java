@@ -0,0 +1,91 @@
+package me.geso.jtt;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import me.geso.jtt.vm.Irep;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Template cache with the size limit.
+ * 
+ * Entries are weighted by the estimated memory size of the Irep, and the
+ * least recently used entries are evicted when the total weight exceeds the
+ * limit. The weight is computed once when the entry is put. The estimate
+ * includes the inline caches filled by the later renderings, see
+ * Irep#estimateSize.
+ * 
+ * This cache doesn't check the template file updates, and the resolutions of
+ * the template names are kept until they're evicted by the count limit.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class BoundedTemplateCache implements TemplateCache {
+	private final Cache<String, Irep> cache;
+	private final Cache<String, Resolution> resolvedPaths;
+
+	private static final long MAX_RESOLVED_PATHS = 10000;
+
+	/**
+	 * @param maximumBytes
+	 *            Maximum total size of cached ireps, in estimated bytes.
+	 */
+	public BoundedTemplateCache(long maximumBytes) {
+		this.cache = CacheBuilder.newBuilder().maximumWeight(maximumBytes)
+				.weigher((String key, Irep irep) -> {
+					long size = irep.estimateSize();
+					return (int) Math.min(size, Integer.MAX_VALUE);
+				}).recordStats().build();
+		this.resolvedPaths = CacheBuilder.newBuilder()
+				.maximumSize(MAX_RESOLVED_PATHS).build();
+	}
+
+	@Override
+	public Irep get(String filePath) {
+		return cache.getIfPresent(filePath);
+	}
+
+	@Override
+	public void set(String filePath, Irep irep) {
+		cache.put(filePath, irep);
+	}
+
+	@Override
+	public Resolution getResolvedPath(String fileName) {
+		Resolution resolution = resolvedPaths.getIfPresent(fileName);
+		return resolution == null ? Resolution.UNKNOWN : resolution;
+	}
+
+	@Override
+	public void setResolvedPath(String fileName, Resolution resolution,
+			List<Path> probedPaths) {
+		resolvedPaths.put(fileName, resolution);
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return cache.stats().hitCount();
+	}
+
+	public long getMissCount() {
+		return cache.stats().missCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.stats().evictionCount();
+	}
+
+	/**
+	 * Get the all statistics.
+	 */
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+}
@@ -13,16 +13,32 @@ import me.geso.jtt.exception.ParserError;
 import me.geso.jtt.parser.Node;
 import me.geso.jtt.parser.NodeType;
 import me.geso.jtt.vm.Code;
+import me.geso.jtt.vm.Disassembler;
 import me.geso.jtt.vm.Irep;
 import me.geso.jtt.vm.IrepBuilder;
 import me.geso.jtt.vm.OP;
+import me.geso.jtt.vm.PeepholeOptimizer;
 
 class Visitor {
 	private final IrepBuilder builder;
 	private final Stack<List<Code>> lastStack = new Stack<>();
 	private final Stack<Map<String, Integer>> lvarStack = new Stack<>();
 	private final Stack<List<Code>> nextStack = new Stack<>();
+	/**
+	 * Number of the enclosing WRAPPERs, and the number at each loop.
+	 * NEXT/LAST unwinds the captures of the WRAPPERs jumped out.
+	 */
+	private int wrapperDepth = 0;
+	private final Stack<Integer> loopWrapperDepths = new Stack<>();
+	/**
+	 * Next free register. Registers below this index are in use.
+	 */
 	private int regIndex = 0;
+	/**
+	 * Registers below this index hold local variables. They're never reused.
+	 */
+	private int localFloor = 0;
+	private int maxRegIndex = 0;
 
 	public Visitor(Source source) {
 		this.builder = new IrepBuilder(source);
@@ -32,6 +48,8 @@ class Visitor {
 		Map<String, Integer> lastElement = lvarStack.lastElement();
 		int idx = this.reserveReg();
 		lastElement.put(name, idx);
+		// Local variables are visible after the loop, so pin the register.
+		this.localFloor = Math.max(this.localFloor, idx + 1);
 		return idx;
 	}
 
@@ -49,7 +67,20 @@ class Visitor {
 		return null;
 	}
 
+	/**
+	 * Compile the node. The result is stored to the register `reg`.
+	 * 
+	 * Temporary registers reserved while compiling the node are dead after
+	 * its code, so they're released for the next node. Registers reserved by
+	 * the enclosing nodes are below the saved index, and they are kept.
+	 */
 	private void visitAst(Node node, int reg) {
+		int saved = regIndex;
+		this.visitNode(node, reg);
+		regIndex = Math.max(saved, localFloor);
+	}
+
+	private void visitNode(Node node, int reg) {
 		switch (node.getType()) {
 		case EXPRESSION: {
 			int a = this.reserveReg();
@@ -86,37 +117,92 @@ class Visitor {
 			return;
 		}
 		case ADD:
-			compileBinOp(node, OP.ADD, reg);
+			if (isIntExpr(node)) {
+				visitIntAst(node, reg);
+				builder.add(OP.BOX_I, reg, node);
+			} else {
+				compileBinOp(node, OP.ADD, reg);
+			}
 			return;
 		case SUBTRACT:
-			compileBinOp(node, OP.SUBTRACT, reg);
+			if (isIntExpr(node)) {
+				visitIntAst(node, reg);
+				builder.add(OP.BOX_I, reg, node);
+			} else {
+				compileBinOp(node, OP.SUBTRACT, reg);
+			}
 			return;
 		case MULTIPLY:
-			compileBinOp(node, OP.MULTIPLY, reg);
+			if (isIntExpr(node)) {
+				visitIntAst(node, reg);
+				builder.add(OP.BOX_I, reg, node);
+			} else {
+				compileBinOp(node, OP.MULTIPLY, reg);
+			}
 			return;
 		case DIVIDE:
-			compileBinOp(node, OP.DIVIDE, reg);
+			if (isIntExpr(node)) {
+				visitIntAst(node, reg);
+				builder.add(OP.BOX_I, reg, node);
+			} else {
+				compileBinOp(node, OP.DIVIDE, reg);
+			}
 			return;
 		case MODULO:
-			compileBinOp(node, OP.MODULO, reg);
+			if (isIntExpr(node)) {
+				visitIntAst(node, reg);
+				builder.add(OP.BOX_I, reg, node);
+			} else {
+				compileBinOp(node, OP.MODULO, reg);
+			}
 			return;
 		case EQUALS:
-			compileBinOp(node, OP.EQUALS, reg);
+			if (isIntExpr(node.getChildren().get(0))
+					&& isIntExpr(node.getChildren().get(1))) {
+				compileIntBinOp(node, OP.EQUALS_I, reg);
+			} else {
+				compileBinOp(node, OP.EQUALS, reg);
+			}
 			return;
 		case GT:
-			compileBinOp(node, OP.GT, reg);
+			if (isIntExpr(node.getChildren().get(0))
+					&& isIntExpr(node.getChildren().get(1))) {
+				compileIntBinOp(node, OP.GT_I, reg);
+			} else {
+				compileBinOp(node, OP.GT, reg);
+			}
 			return;
 		case GE:
-			compileBinOp(node, OP.GE, reg);
+			if (isIntExpr(node.getChildren().get(0))
+					&& isIntExpr(node.getChildren().get(1))) {
+				compileIntBinOp(node, OP.GE_I, reg);
+			} else {
+				compileBinOp(node, OP.GE, reg);
+			}
 			return;
 		case LT:
-			compileBinOp(node, OP.LT, reg);
+			if (isIntExpr(node.getChildren().get(0))
+					&& isIntExpr(node.getChildren().get(1))) {
+				compileIntBinOp(node, OP.LT_I, reg);
+			} else {
+				compileBinOp(node, OP.LT, reg);
+			}
 			return;
 		case LE:
-			compileBinOp(node, OP.LE, reg);
+			if (isIntExpr(node.getChildren().get(0))
+					&& isIntExpr(node.getChildren().get(1))) {
+				compileIntBinOp(node, OP.LE_I, reg);
+			} else {
+				compileBinOp(node, OP.LE, reg);
+			}
 			return;
 		case NE:
-			compileBinOp(node, OP.NE, reg);
+			if (isIntExpr(node.getChildren().get(0))
+					&& isIntExpr(node.getChildren().get(1))) {
+				compileIntBinOp(node, OP.NE_I, reg);
+			} else {
+				compileBinOp(node, OP.NE, reg);
+			}
 			return;
 		case CONCAT:
 			compileBinOp(node, OP.CONCAT, reg);
@@ -130,12 +216,19 @@ class Visitor {
 		case RAW_STRING:
 			builder.addPool(OP.APPEND_RAW, node.getText(), node);
 			return;
-		case INTEGER:
+		case INTEGER: {
 			if (reg == -1) {
 				throw new JTTError("'integer' in void context");
 			}
-			builder.add(OP.LOAD_INT, Integer.valueOf(node.getText()), reg, node);
+			int value = Integer.valueOf(node.getText());
+			if (value >= -128 && value <= 127) {
+				builder.add(OP.LOAD_INT, value, reg, node);
+			} else {
+				// Integer.valueOf allocates for these values. Box it once.
+				builder.addPool(OP.LOAD_CONST, value, reg, node);
+			}
 			return;
+		}
 		case DOUBLE:
 			if (reg == -1) {
 				throw new JTTError("'double' in void context");
@@ -312,6 +405,7 @@ class Visitor {
 
 			nextStack.add(new ArrayList<Code>());
 			lastStack.add(new ArrayList<Code>());
+			loopWrapperDepths.push(wrapperDepth);
 
 			visitAst(body, -1);
 
@@ -327,6 +421,7 @@ class Visitor {
 				code.a = nextPos;
 			}
 			nextStack.pop();
+			loopWrapperDepths.pop();
 
 			forIterCode.b = lastPos;
 
@@ -349,6 +444,7 @@ class Visitor {
 
 			nextStack.add(new ArrayList<Code>());
 			lastStack.add(new ArrayList<Code>());
+			loopWrapperDepths.push(wrapperDepth);
 
 			visitAst(body, -1);
 
@@ -364,24 +460,30 @@ class Visitor {
 				code.a = nextPos;
 			}
 			nextStack.pop();
+			loopWrapperDepths.pop();
 
 			return;
 		}
 		case NEXT: {
+			unwindLoopCaptures(node);
 			Code code = builder.add(OP.JUMP_ABS, node);
 			nextStack.lastElement().add(code);
 			return;
 		}
 		case LAST: {
+			unwindLoopCaptures(node);
 			Code code = builder.add(OP.JUMP_ABS, node);
 			lastStack.lastElement().add(code);
 			return;
 		}
 		case INCLUDE: {
+			// INCLUDE's B is the pool index of the name, for the linker.
+			Node path = node.getChildren().get(0);
+			builder.addDependency(path.getText());
 			int a = this.reserveReg();
-			visitAst(node.getChildren().get(0), a);
-			builder.add(OP.INCLUDE, a, node);
-			builder.add(OP.APPEND, a, node);
+			Code load = builder.addPool(OP.LOAD_CONST, path.getText(), a,
+					node);
+			builder.add(OP.INCLUDE, a, load.a, node);
 			return;
 		}
 		case ATTRIBUTE: {
@@ -503,11 +605,15 @@ class Visitor {
 			// ohoho))))
 			String fileName = node.getChildren().get(0).getText();
 			Node body = node.getChildren().get(1);
+			builder.addDependency(fileName);
 
+			builder.add(OP.WRAP_START, node);
+			++wrapperDepth;
 			visitAst(body, -1);
+			--wrapperDepth;
 			int a = this.reserveReg();
-			builder.addPool(OP.LOAD_CONST, fileName, a, node);
-			builder.add(OP.WRAP, a, node);
+			Code load = builder.addPool(OP.LOAD_CONST, fileName, a, node);
+			builder.add(OP.WRAP, a, load.a, node);
 
 			return;
 		}
@@ -524,9 +630,84 @@ class Visitor {
 	private int reserveReg() {
 		int r = regIndex;
 		++regIndex;
+		maxRegIndex = Math.max(maxRegIndex, regIndex);
 		return r;
 	}
 
+	/**
+	 * Is the expression always int? Then it can be computed on the int
+	 * registers without boxing.
+	 */
+	private boolean isIntExpr(Node node) {
+		switch (node.getType()) {
+		case INTEGER:
+			try {
+				Integer.parseInt(node.getText());
+				return true;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		case LOOP_INDEX:
+		case LOOP_COUNT:
+			return true;
+		case ADD:
+		case SUBTRACT:
+		case MULTIPLY:
+		case DIVIDE:
+		case MODULO:
+			return isIntExpr(node.getChildren().get(0))
+					&& isIntExpr(node.getChildren().get(1));
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Compile the int expression. The result is stored to the int register
+	 * `reg`.
+	 */
+	private void visitIntAst(Node node, int reg) {
+		int saved = regIndex;
+		switch (node.getType()) {
+		case INTEGER:
+			builder.add(OP.LOAD_INT_I, Integer.parseInt(node.getText()), reg,
+					node);
+			break;
+		case LOOP_INDEX:
+			builder.add(OP.LOOP_INDEX_I, reg, node);
+			break;
+		case LOOP_COUNT:
+			builder.add(OP.LOOP_COUNT_I, reg, node);
+			break;
+		case ADD:
+			compileIntBinOp(node, OP.ADD_I, reg);
+			break;
+		case SUBTRACT:
+			compileIntBinOp(node, OP.SUBTRACT_I, reg);
+			break;
+		case MULTIPLY:
+			compileIntBinOp(node, OP.MULTIPLY_I, reg);
+			break;
+		case DIVIDE:
+			compileIntBinOp(node, OP.DIVIDE_I, reg);
+			break;
+		case MODULO:
+			compileIntBinOp(node, OP.MODULO_I, reg);
+			break;
+		default:
+			throw new IllegalArgumentException("Not an int expression: "
+					+ node);
+		}
+		regIndex = Math.max(saved, localFloor);
+	}
+
+	private void compileIntBinOp(Node node, OP op, int reg) {
+		visitIntAst(node.getChildren().get(0), reg);
+		int b = this.reserveReg();
+		visitIntAst(node.getChildren().get(1), b);
+		builder.add(op, reg, b, node);
+	}
+
 	private void compileBinOp(Node node, OP op, int reg)
 			throws JTTCompilerError {
 		assert node.getChildren().size() == 2;
@@ -536,9 +717,27 @@ class Visitor {
 		builder.add(op, reg, b, node);
 	}
 
+	private void unwindLoopCaptures(Node node) {
+		if (!loopWrapperDepths.isEmpty()
+				&& loopWrapperDepths.peek() != wrapperDepth) {
+			builder.add(OP.UNWIND_CAPTURE,
+					wrapperDepth - loopWrapperDepths.peek(), node);
+		}
+	}
+
 	public Irep getResult() {
 		builder.addReturn();
-		return builder.build(this.regIndex + 1);
+		new PeepholeOptimizer().optimize(builder);
+		return builder.build(this.maxRegIndex);
+	}
+
+	/**
+	 * Show the instructions after each optimization pass.
+	 */
+	public String disasmPasses() {
+		builder.addReturn();
+		return new Disassembler().disasmPasses(builder,
+				new PeepholeOptimizer());
 	}
 
 	public void start(Node ast) throws JTTCompilerError {
@@ -555,7 +754,17 @@ public class Compiler {
 			throw new IllegalArgumentException("ast must not be null");
 		}
 		Visitor visitor = new Visitor(source);
-		visitor.start(ast);
+		visitor.start(new ConstantFolder().fold(ast));
 		return visitor.getResult();
 	}
+
+	/**
+	 * Compile the AST, and show the instructions after each optimization
+	 * pass. This is for debugging the optimizer.
+	 */
+	public String disasmPasses(Source source, Node ast) {
+		Visitor visitor = new Visitor(source);
+		visitor.start(new ConstantFolder().fold(ast));
+		return visitor.disasmPasses();
+	}
 }
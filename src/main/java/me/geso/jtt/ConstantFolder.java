@@ -0,0 +1,385 @@
+package me.geso.jtt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.geso.jtt.parser.Node;
+import me.geso.jtt.parser.NodeType;
+
+import com.google.common.net.UrlEscapers;
+
+/**
+ * Constant folding on the AST.
+ *
+ * <ul>
+ * <li>Pure operators on literals are evaluated at compile time, with the
+ * same semantics as the VM. Operations which fail or warn at run time(e.g.
+ * division by zero, concatenation with null) are left for the VM.</li>
+ * <li>lc, uc, uri and sprintf with literal arguments are evaluated.</li>
+ * <li>IF and ?: with the literal condition are replaced by the taken branch.</li>
+ * <li>Nested templates are flattened, and adjacent raw strings are merged
+ * into one.</li>
+ * </ul>
+ *
+ * Array and map literals are not hoisted to the constant pool. The VM
+ * creates a new mutable container for each rendering, and sharing one
+ * instance between renderings would leak the modifications.
+ *
+ * @author tokuhirom
+ *
+ */
+class ConstantFolder {
+	public Node fold(Node node) {
+		if (node == null || node.getChildren() == null) {
+			return node;
+		}
+
+		List<Node> children = new ArrayList<>(node.getChildren().size());
+		for (Node child : node.getChildren()) {
+			children.add(fold(child));
+		}
+
+		switch (node.getType()) {
+		case TEMPLATE:
+			return foldTemplate(node, children);
+		case IF:
+			return foldIf(node, children);
+		case ADD:
+		case SUBTRACT:
+		case MULTIPLY:
+		case DIVIDE:
+		case MODULO:
+		case CONCAT:
+		case EQUALS:
+		case NE:
+		case GT:
+		case GE:
+		case LT:
+		case LE:
+		case ANDAND:
+		case OROR: {
+			Node folded = foldBinOp(node, children.get(0), children.get(1));
+			if (folded != null) {
+				return folded;
+			}
+			break;
+		}
+		case NOT:
+			if (isLiteral(children.get(0))) {
+				return toNode(!convertToBoolean(toValue(children.get(0))),
+						node);
+			}
+			break;
+		case FUNCALL: {
+			Node folded = foldFuncall(node, children);
+			if (folded != null) {
+				return folded;
+			}
+			break;
+		}
+		default:
+			break;
+		}
+		return new Node(node.getType(), children, node.getLineNumber());
+	}
+
+	private Node foldTemplate(Node node, List<Node> children) {
+		List<Node> flatten = new ArrayList<>();
+		for (Node child : children) {
+			if (child.getType() == NodeType.TEMPLATE) {
+				flatten.addAll(child.getChildren());
+			} else {
+				flatten.add(child);
+			}
+		}
+
+		List<Node> merged = new ArrayList<>();
+		for (Node child : flatten) {
+			if (child.getType() == NodeType.RAW_STRING && !merged.isEmpty()) {
+				Node last = merged.get(merged.size() - 1);
+				if (last.getType() == NodeType.RAW_STRING) {
+					merged.set(merged.size() - 1, new Node(
+							NodeType.RAW_STRING, last.getText()
+									+ child.getText(), last.getLineNumber()));
+					continue;
+				}
+			}
+			merged.add(child);
+		}
+		return new Node(NodeType.TEMPLATE, merged, node.getLineNumber());
+	}
+
+	private Node foldIf(Node node, List<Node> children) {
+		Node cond = children.get(0);
+		Node body = children.get(1);
+		Node elseClause = children.get(2);
+		if (!isLiteral(cond)) {
+			return new Node(node.getType(), children, node.getLineNumber());
+		}
+
+		// Loop variables are declared at compile time even if the loop
+		// never runs. Keep the branch to keep the name resolution.
+		if (declaresVariable(body) || declaresVariable(elseClause)) {
+			return new Node(node.getType(), children, node.getLineNumber());
+		}
+
+		// Same as JUMP_IF_FALSE.
+		Object value = toValue(cond);
+		boolean taken = value != null
+				&& (!(value instanceof Boolean) || (Boolean) value);
+		if (taken) {
+			return body;
+		} else if (elseClause != null) {
+			return elseClause;
+		} else {
+			return new Node(NodeType.TEMPLATE, new ArrayList<Node>(),
+					node.getLineNumber());
+		}
+	}
+
+	private boolean declaresVariable(Node node) {
+		if (node == null) {
+			return false;
+		}
+		if (node.getType() == NodeType.FOREACH) {
+			return true;
+		}
+		if (node.getChildren() != null) {
+			for (Node child : node.getChildren()) {
+				if (declaresVariable(child)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private Node foldBinOp(Node node, Node lhsNode, Node rhsNode) {
+		if (!isLiteral(lhsNode) || !isLiteral(rhsNode)) {
+			return null;
+		}
+		Object lhs = toValue(lhsNode);
+		Object rhs = toValue(rhsNode);
+
+		switch (node.getType()) {
+		case ADD:
+		case SUBTRACT:
+		case MULTIPLY:
+		case DIVIDE:
+		case MODULO:
+			return toNode(foldArithmetic(node.getType(), lhs, rhs), node);
+		case CONCAT:
+			if (lhs == null || rhs == null) {
+				return null;
+			}
+			return toNode(lhs.toString() + rhs.toString(), node);
+		case EQUALS:
+			return toNode(lhs == null ? rhs == null : lhs.equals(rhs), node);
+		case NE:
+			return toNode(lhs == null ? rhs != null : !lhs.equals(rhs), node);
+		case GT:
+		case GE:
+		case LT:
+		case LE: {
+			if (lhs == null || rhs == null || lhs.getClass() != rhs.getClass()
+					|| !(lhs instanceof Comparable)) {
+				return null;
+			}
+			@SuppressWarnings("unchecked")
+			int ret = ((Comparable<Object>) lhs).compareTo(rhs);
+			switch (node.getType()) {
+			case GT:
+				return toNode(ret > 0, node);
+			case GE:
+				return toNode(ret >= 0, node);
+			case LT:
+				return toNode(ret < 0, node);
+			default:
+				return toNode(ret <= 0, node);
+			}
+		}
+		case ANDAND:
+			return toNode(convertToBoolean(lhs) && convertToBoolean(rhs), node);
+		case OROR:
+			return toNode(convertToBoolean(lhs) || convertToBoolean(rhs), node);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Same as VM's arithmetic operators.
+	 *
+	 * @return null if the VM throws the error.
+	 */
+	private Object foldArithmetic(NodeType type, Object lhs, Object rhs) {
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			int l = (Integer) lhs;
+			int r = (Integer) rhs;
+			switch (type) {
+			case ADD:
+				return l + r;
+			case SUBTRACT:
+				return l - r;
+			case MULTIPLY:
+				return l * r;
+			case DIVIDE:
+				return r == 0 ? null : l / r;
+			default:
+				return r == 0 ? null : l % r;
+			}
+		} else if (lhs instanceof Double
+				&& (rhs instanceof Integer || rhs instanceof Double)) {
+			double l = (Double) lhs;
+			double r = ((Number) rhs).doubleValue();
+			switch (type) {
+			case ADD:
+				return l + r;
+			case SUBTRACT:
+				return l - r;
+			case MULTIPLY:
+				return l * r;
+			case DIVIDE:
+				return l / r;
+			default:
+				return l % r;
+			}
+		} else {
+			return null;
+		}
+	}
+
+	private Node foldFuncall(Node node, List<Node> children) {
+		Node func = children.get(0);
+		if (func.getType() != NodeType.IDENT) {
+			return null;
+		}
+		for (int i = 1; i < children.size(); ++i) {
+			if (!isLiteral(children.get(i))
+					|| toValue(children.get(i)) == null) {
+				return null;
+			}
+		}
+
+		String name = func.getText();
+		if (name.equals("sprintf")) {
+			if (children.size() < 2) {
+				return null;
+			}
+			Object[] args = new Object[children.size() - 2];
+			for (int i = 2; i < children.size(); ++i) {
+				args[i - 2] = toValue(children.get(i));
+			}
+			try {
+				return toNode(String.format(toValue(children.get(1))
+						.toString(), args), node);
+			} catch (RuntimeException e) {
+				// Report the error at run time.
+				return null;
+			}
+		}
+
+		// Argument count errors are reported by the compiler.
+		if (children.size() != 2) {
+			return null;
+		}
+		String arg = toValue(children.get(1)).toString();
+		switch (name) {
+		case "lc":
+			return toNode(arg.toLowerCase(), node);
+		case "uc":
+			return toNode(arg.toUpperCase(), node);
+		case "uri":
+		case "url":
+			return toNode(UrlEscapers.urlFormParameterEscaper().escape(arg),
+					node);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Same as VM's conversion for &amp;&amp;, || and !.
+	 */
+	private boolean convertToBoolean(Object o) {
+		if (o == null) {
+			return false;
+		} else if (o instanceof Boolean) {
+			return (Boolean) o;
+		} else if (o instanceof Integer) {
+			return ((Integer) o).intValue() == 0;
+		} else {
+			return true;
+		}
+	}
+
+	private boolean isLiteral(Node node) {
+		if (node == null) {
+			return false;
+		}
+		switch (node.getType()) {
+		case INTEGER:
+			return isParsable(node, true);
+		case DOUBLE:
+			return isParsable(node, false);
+		case STRING:
+		case TRUE:
+		case FALSE:
+		case NULL:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private boolean isParsable(Node node, boolean integer) {
+		try {
+			if (integer) {
+				Integer.valueOf(node.getText());
+			} else {
+				Double.valueOf(node.getText());
+			}
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private Object toValue(Node node) {
+		switch (node.getType()) {
+		case INTEGER:
+			return Integer.valueOf(node.getText());
+		case DOUBLE:
+			return Double.valueOf(node.getText());
+		case STRING:
+			return node.getText();
+		case TRUE:
+			return true;
+		case FALSE:
+			return false;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Create the literal node for the value.
+	 *
+	 * @return null if the value is null. The caller keeps the original node.
+	 */
+	private Node toNode(Object value, Node node) {
+		int line = node.getLineNumber();
+		if (value instanceof Integer) {
+			return new Node(NodeType.INTEGER, value.toString(), line);
+		} else if (value instanceof Double) {
+			return new Node(NodeType.DOUBLE, value.toString(), line);
+		} else if (value instanceof String) {
+			return new Node(NodeType.STRING, (String) value, line);
+		} else if (value instanceof Boolean) {
+			return new Node((Boolean) value ? NodeType.TRUE : NodeType.FALSE,
+					line);
+		} else {
+			return null;
+		}
+	}
+}
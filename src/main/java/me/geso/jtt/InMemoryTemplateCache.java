@@ -1,36 +1,141 @@
 package me.geso.jtt;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 import me.geso.jtt.vm.Irep;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 class CacheEntry {
 	final Irep irep;
-	final long mtime;
+	final FileTime mtime;
+	final long size;
+	/**
+	 * The last time we checked the file was modified or not.
+	 */
+	final AtomicLong lastChecked;
 
-	CacheEntry(Irep irep, long mtime) {
+	CacheEntry(Irep irep, FileTime mtime, long size, long lastChecked) {
 		this.irep = irep;
 		this.mtime = mtime;
+		this.size = size;
+		this.lastChecked = new AtomicLong(lastChecked);
 	}
 }
 
-public class InMemoryTemplateCache implements TemplateCache {
+public class InMemoryTemplateCache implements TemplateCache, Closeable {
 
 	Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+	/**
+	 * Files included or wrapped by the cached templates.
+	 */
+	private final Map<String, List<String>> dependencies = new ConcurrentHashMap<>();
+	/**
+	 * Reverse index of the dependencies: the templates including or wrapping
+	 * the file.
+	 */
+	private final Map<String, Set<String>> dependents = new ConcurrentHashMap<>();
 
 	public enum CacheMode {
 		NO_CACHE, CACHE_WITH_UPDATE_CHECK, CACHE_BUT_DO_NOT_CHECK_UPDATES,
+		/**
+		 * Watch the template directories by WatchService, and evict the
+		 * changed templates. Reading the cache doesn't touch the file system.
+		 */
+		CACHE_WITH_FILE_WATCHER,
 	}
 
+	/**
+	 * Maximum number of the cached resolutions. The template names may be
+	 * dynamic, and the negative entries must not grow without limit.
+	 */
+	private static final long MAX_RESOLVED_PATHS = 10000;
+
 	private final CacheMode cacheMode;
+	private final long checkIntervalMillis;
+	private final TemplateWatcher watcher;
+	/**
+	 * Resolutions of the template names. null if the resolutions are not
+	 * cached in the mode.
+	 */
+	private final Cache<String, Resolution> resolvedPaths;
 
 	public InMemoryTemplateCache(CacheMode cacheMode) {
+		this(cacheMode, 0);
+	}
+
+	/**
+	 * Create new cache.
+	 * 
+	 * @param cacheMode
+	 * @param checkIntervalMillis
+	 *            In CACHE_WITH_UPDATE_CHECK mode, the file is checked at most
+	 *            once in this interval, even if many threads are reading the
+	 *            cache. 0 means the file is checked on every read.
+	 */
+	public InMemoryTemplateCache(CacheMode cacheMode, long checkIntervalMillis) {
+		if (checkIntervalMillis < 0) {
+			throw new IllegalArgumentException(
+					"checkIntervalMillis must not be negative");
+		}
 		this.cacheMode = cacheMode;
+		this.checkIntervalMillis = checkIntervalMillis;
+		if (cacheMode == CacheMode.CACHE_WITH_FILE_WATCHER) {
+			this.watcher = new TemplateWatcher(this::evictFile,
+					this::evictDirectory);
+		} else {
+			this.watcher = null;
+		}
+		this.resolvedPaths = buildResolvedPathCache(cacheMode,
+				checkIntervalMillis);
+	}
+
+	/**
+	 * The resolutions follow the same freshness as the templates. In
+	 * CACHE_WITH_UPDATE_CHECK mode they expire after the check interval. In
+	 * CACHE_WITH_FILE_WATCHER mode they are cleared on any event in the
+	 * watched directories.
+	 */
+	private static Cache<String, Resolution> buildResolvedPathCache(
+			CacheMode cacheMode, long checkIntervalMillis) {
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+				.maximumSize(MAX_RESOLVED_PATHS);
+		switch (cacheMode) {
+		case NO_CACHE:
+			return null;
+		case CACHE_WITH_UPDATE_CHECK:
+			if (checkIntervalMillis == 0) {
+				return null;
+			}
+			return builder.expireAfterWrite(checkIntervalMillis,
+					TimeUnit.MILLISECONDS).build();
+		default:
+			return builder.build();
+		}
 	}
 
-	// TODO We should care the relative file path.
+	/**
+	 * The file path is normalized by TemplateLoader, then the watcher events
+	 * can be matched to the keys.
+	 */
 	@Override
 	public Irep get(String filePath) {
 		CacheEntry entry = cache.get(filePath);
@@ -38,7 +143,10 @@ public class InMemoryTemplateCache implements TemplateCache {
 			return null;
 		} else {
 			if (cacheMode == CacheMode.CACHE_WITH_UPDATE_CHECK) {
-				if (new File(filePath).lastModified() >= entry.mtime) {
+				if (isModified(filePath, entry)) {
+					if (cache.remove(filePath, entry)) {
+						this.evictDependents(filePath);
+					}
 					return null;
 				}
 			}
@@ -48,17 +156,231 @@ public class InMemoryTemplateCache implements TemplateCache {
 
 	@Override
 	public void set(String filePath, Irep irep) {
+		this.set(filePath, irep, readAttributes(filePath));
+	}
+
+	@Override
+	public void set(String filePath, Irep irep, BasicFileAttributes attrs) {
 		if (cacheMode == CacheMode.NO_CACHE) {
 			return;
 		}
+		if (watcher != null) {
+			watcher.watch(Paths.get(filePath));
+		}
 
 		CacheEntry entry = new CacheEntry(irep,
-				new File(filePath).lastModified());
+				attrs == null ? null : attrs.lastModifiedTime(),
+				attrs == null ? -1 : attrs.size(), System.currentTimeMillis());
 		cache.put(filePath, entry);
+		// The event for the change before the put may have been handled
+		// already. Reading the cache doesn't check the file in this mode.
+		if (watcher != null && hasChanged(filePath, entry)) {
+			cache.remove(filePath, entry);
+		}
+	}
+
+	@Override
+	public void watch(Path path) {
+		if (watcher == null) {
+			return;
+		}
+		Path normalized = path.toAbsolutePath().normalize();
+		if (Files.isDirectory(normalized)) {
+			watcher.watchDirectory(normalized);
+		} else if (Files.exists(normalized)) {
+			watcher.watch(normalized);
+		}
+	}
+
+	@Override
+	public Resolution getResolvedPath(String fileName) {
+		if (resolvedPaths == null) {
+			return Resolution.UNKNOWN;
+		}
+		Resolution resolution = resolvedPaths.getIfPresent(fileName);
+		return resolution == null ? Resolution.UNKNOWN : resolution;
+	}
+
+	@Override
+	public void setResolvedPath(String fileName, Resolution resolution,
+			List<Path> probedPaths) {
+		if (resolvedPaths == null) {
+			return;
+		}
+		if (watcher != null) {
+			// Watch the directories where the file may be created.
+			for (Path path : probedPaths) {
+				Path dir = findExistingParent(path);
+				if (dir != null) {
+					watcher.watchDirectory(dir);
+				}
+			}
+		}
+		resolvedPaths.put(fileName, resolution);
+	}
+
+	private Path findExistingParent(Path path) {
+		Path dir = path.toAbsolutePath().normalize().getParent();
+		while (dir != null && !Files.isDirectory(dir)) {
+			dir = dir.getParent();
+		}
+		return dir;
+	}
+
+	@Override
+	public void setDependencies(String filePath, List<String> dependencyPaths) {
+		if (cacheMode == CacheMode.NO_CACHE) {
+			return;
+		}
+		this.removeDependencies(filePath);
+		dependencies.put(filePath, dependencyPaths);
+		for (String dependency : dependencyPaths) {
+			dependents.computeIfAbsent(dependency,
+					key -> ConcurrentHashMap.newKeySet()).add(filePath);
+			if (watcher != null) {
+				watcher.watch(Paths.get(dependency));
+			}
+		}
+	}
+
+	/**
+	 * Get the templates including or wrapping the file, directly or
+	 * indirectly.
+	 */
+	public Set<String> getDependents(String filePath) {
+		Set<String> result = new HashSet<>();
+		Deque<String> queue = new ArrayDeque<>();
+		queue.add(filePath);
+		while (!queue.isEmpty()) {
+			Set<String> parents = dependents.get(queue.poll());
+			if (parents != null) {
+				for (String parent : parents) {
+					if (result.add(parent)) {
+						queue.add(parent);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Evict the template, and the templates including or wrapping it.
+	 */
+	public void evict(String filePath) {
+		cache.remove(filePath);
+		this.evictDependents(filePath);
+		this.removeDependencies(filePath);
+	}
+
+	private void evictDependents(String filePath) {
+		for (String parent : this.getDependents(filePath)) {
+			cache.remove(parent);
+			this.removeDependencies(parent);
+		}
+	}
+
+	private void removeDependencies(String filePath) {
+		List<String> old = dependencies.remove(filePath);
+		if (old == null) {
+			return;
+		}
+		for (String dependency : old) {
+			dependents.computeIfPresent(dependency, (key, parents) -> {
+				parents.remove(filePath);
+				return parents.isEmpty() ? null : parents;
+			});
+		}
 	}
 
 	public int size() {
 		return cache.size();
 	}
 
+	/**
+	 * Stop watching the files in CACHE_WITH_FILE_WATCHER mode.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (watcher != null) {
+			watcher.close();
+		}
+	}
+
+	/**
+	 * The keys are normalized by TemplateLoader, and the watched directories
+	 * are normalized too. Then the paths are compared as strings.
+	 */
+	private void evictFile(Path file) {
+		this.evict(file.toString());
+		resolvedPaths.invalidateAll();
+	}
+
+	private void evictDirectory(Path dir) {
+		String prefix = dir.toString();
+		if (!prefix.endsWith(File.separator)) {
+			prefix += File.separator;
+		}
+		String directoryPrefix = prefix;
+		this.evictIf(key -> key.startsWith(directoryPrefix)
+				&& key.indexOf(File.separatorChar, directoryPrefix.length()) < 0);
+		resolvedPaths.invalidateAll();
+	}
+
+	/**
+	 * Evict the matched files, and the templates depending on them. The
+	 * dependencies may not be cached themselves.
+	 */
+	private void evictIf(Predicate<String> predicate) {
+		Set<String> paths = new HashSet<>();
+		for (String key : cache.keySet()) {
+			if (predicate.test(key)) {
+				paths.add(key);
+			}
+		}
+		for (String key : dependents.keySet()) {
+			if (predicate.test(key)) {
+				paths.add(key);
+			}
+		}
+		for (String path : paths) {
+			this.evict(path);
+		}
+	}
+
+	/**
+	 * Check the file was modified after the entry was cached. The check is
+	 * skipped if another thread checked it in the interval.
+	 */
+	private boolean isModified(String filePath, CacheEntry entry) {
+		if (checkIntervalMillis > 0) {
+			long now = System.currentTimeMillis();
+			long lastChecked = entry.lastChecked.get();
+			if (now - lastChecked < checkIntervalMillis
+					|| !entry.lastChecked.compareAndSet(lastChecked, now)) {
+				return false;
+			}
+		}
+
+		return hasChanged(filePath, entry);
+	}
+
+	private boolean hasChanged(String filePath, CacheEntry entry) {
+		BasicFileAttributes attrs = readAttributes(filePath);
+		if (attrs == null || entry.mtime == null) {
+			return true;
+		}
+		return !attrs.lastModifiedTime().equals(entry.mtime)
+				|| attrs.size() != entry.size;
+	}
+
+	private BasicFileAttributes readAttributes(String filePath) {
+		try {
+			return Files.readAttributes(Paths.get(filePath),
+					BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
 }
@@ -3,24 +3,61 @@ package me.geso.jtt;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import me.geso.jtt.escape.Escaper;
 import me.geso.jtt.exception.JTTError;
 import me.geso.jtt.lexer.Token;
 import me.geso.jtt.parser.Node;
-import me.geso.jtt.tt.TTSyntax;
 import me.geso.jtt.vm.Irep;
 import me.geso.jtt.vm.VM;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 public class JTT {
 	private final TemplateLoader loader;
 	private final Syntax syntax;
 	private Map<String, Function> functions;
 	private JTTMessageListener warningListener;
 	private final Escaper escaper;
+	private final int bytecodeCompileThreshold;
+	/**
+	 * Compiled template strings, keyed by the source. The syntax is fixed for
+	 * this instance, then the source is enough for the key. Entries are
+	 * weighted by the size of the source and the irep, since the sources may
+	 * be large.
+	 */
+	private final Cache<String, Irep> stringCache;
+
+	public static final long DEFAULT_STRING_CACHE_MAXIMUM_BYTES = 4 * 1024 * 1024;
 
 	public JTT(TemplateLoader loader, Syntax syntax,
 			Map<String, Function> functions, JTTMessageListener warningListener, Escaper escaper) {
+		this(loader, syntax, functions, warningListener, escaper, -1);
+	}
+
+	public JTT(TemplateLoader loader, Syntax syntax,
+			Map<String, Function> functions,
+			JTTMessageListener warningListener, Escaper escaper,
+			int bytecodeCompileThreshold) {
+		this(loader, syntax, functions, warningListener, escaper,
+				bytecodeCompileThreshold, DEFAULT_STRING_CACHE_MAXIMUM_BYTES);
+	}
+
+	/**
+	 * @param stringCacheMaximumBytes
+	 *            Maximum total size of the compiled template strings to keep,
+	 *            in estimated bytes of the sources and the ireps. 0 disables
+	 *            the cache.
+	 */
+	public JTT(TemplateLoader loader, Syntax syntax,
+			Map<String, Function> functions,
+			JTTMessageListener warningListener, Escaper escaper,
+			int bytecodeCompileThreshold, long stringCacheMaximumBytes) {
 		if (syntax == null) {
 			throw new IllegalArgumentException("syntax");
 		}
@@ -29,6 +66,37 @@ public class JTT {
 		this.functions = functions;
 		this.warningListener = warningListener;
 		this.escaper = escaper;
+		this.bytecodeCompileThreshold = bytecodeCompileThreshold;
+		this.stringCache = CacheBuilder.newBuilder()
+				.maximumWeight(stringCacheMaximumBytes)
+				.weigher((String src, Irep irep) -> {
+					long size = 40 + src.length() * 2 + irep.estimateSize();
+					return (int) Math.min(size, Integer.MAX_VALUE);
+				}).recordStats().build();
+	}
+
+	/**
+	 * Get the handle of the template file. The handle skips the template
+	 * resolution on rendering. Hold it for the frequently rendered
+	 * templates.
+	 * 
+	 * @param file
+	 *            Template file name.
+	 */
+	public Template getTemplate(String file) throws JTTError {
+		return new Template(this, file, loader.resolve(file, this.syntax));
+	}
+
+	/**
+	 * Compile the template string into the handle. The handle never
+	 * compiles the source again.
+	 * 
+	 * @param src
+	 *            Template source.
+	 */
+	public Template compileString(String src) throws JTTError {
+		return new Template(this, null, new TemplateLoader.Resolved(null,
+				this.loadString(src)));
 	}
 
 	public String renderFile(String file, Map<String, Object> vars) throws JTTError {
@@ -37,21 +105,96 @@ public class JTT {
 		return result;
 	}
 
+	/**
+	 * Render the file and write the result into the sink. Output is written
+	 * through while rendering, instead of building whole page in memory.
+	 * 
+	 * @param file
+	 *            Template file name.
+	 * @param vars
+	 *            Template variables.
+	 * @param sink
+	 *            Output destination. e.g. Writer, StringBuilder.
+	 */
+	public void renderFile(String file, Map<String, Object> vars,
+			Appendable sink) throws JTTError {
+		Irep irep = loader.compile(file, this.syntax);
+		this.newVM(irep, vars).run(sink);
+	}
+
 	public String renderString(String src, Map<String, Object> vars)
 			throws JTTError {
 		if (vars == null) {
 			vars = new HashMap<>();
 		}
+		Irep irep = this.loadString(src);
+		String result = this.newVM(irep, vars).run();
+		return result;
+	}
+
+	/**
+	 * Render the template string and write the result into the sink.
+	 * 
+	 * @param src
+	 *            Template source.
+	 * @param vars
+	 *            Template variables.
+	 * @param sink
+	 *            Output destination. e.g. Writer, StringBuilder.
+	 */
+	public void renderString(String src, Map<String, Object> vars,
+			Appendable sink) throws JTTError {
+		if (vars == null) {
+			vars = new HashMap<>();
+		}
+		Irep irep = this.loadString(src);
+		this.newVM(irep, vars).run(sink);
+	}
+
+	/**
+	 * Get the statistics of the compiled template string cache.
+	 */
+	public CacheStats getStringCacheStats() {
+		return stringCache.stats();
+	}
+
+	/**
+	 * Get the compiled template string from the cache, or compile it. Threads
+	 * compiling the same source at the same time wait for one compilation.
+	 */
+	private Irep loadString(String src) throws JTTError {
+		try {
+			return stringCache.get(src, () -> this.compileString0(src));
+		} catch (ExecutionException | UncheckedExecutionException
+				| ExecutionError e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new JTTError(cause);
+			}
+		}
+	}
+
+	private Irep compileString0(String src) {
 		Source source = Source.fromString(src);
-		Syntax syntax = new TTSyntax("[%", "%]");
 		List<Token> tokens = syntax.tokenize(source, src);
 		Node ast = syntax.parse(source, tokens);
-		Irep irep = syntax.compile(source, ast);
-		String result = this.newVM(irep, vars).run();
-		return result;
+		return syntax.compile(source, ast);
+	}
+
+	TemplateLoader getLoader() {
+		return loader;
+	}
+
+	Syntax getSyntax() {
+		return syntax;
 	}
 
-	private VM newVM(Irep irep, Map<String, Object> vars) {
-		return new VM(syntax, loader, functions, warningListener, escaper, irep, vars);
+	VM newVM(Irep irep, Map<String, Object> vars) {
+		return new VM(syntax, loader, functions, warningListener, escaper,
+				irep, vars, bytecodeCompileThreshold);
 	}
 }
@@ -23,6 +23,10 @@ public class JTTBuilder {
 	private TemplateCache templateCache = new NullTemplateCache();
 	private Syntax syntax = new TTSyntax();
 	private Escaper escaper = new HTMLEscaper();
+	private int bytecodeCompileThreshold = -1;
+	private TemplateArchive templateArchive;
+	private long stringCacheMaximumBytes = JTT.DEFAULT_STRING_CACHE_MAXIMUM_BYTES;
+	private boolean linking = false;
 	
 	public JTTBuilder() {
 	}
@@ -33,8 +37,10 @@ public class JTTBuilder {
 	 * @return Created instance.
 	 */
 	public JTT build() {
-		TemplateLoader loader = new TemplateLoader(getIncludePaths(), this.templateCache);
-		JTT jtt = new JTT(loader, this.syntax, functions, warningListener, escaper);
+		TemplateLoader loader = new TemplateLoader(getIncludePaths(),
+				this.templateCache, this.templateArchive, this.linking);
+		JTT jtt = new JTT(loader, this.syntax, functions, warningListener,
+				escaper, bytecodeCompileThreshold, stringCacheMaximumBytes);
 		return jtt;
 	}
 
@@ -75,6 +81,59 @@ public class JTTBuilder {
 		return this;
 	}
 
+	/**
+	 * Compile the hot templates into JVM bytecode.
+	 * 
+	 * @param threshold
+	 *            Compile the template after it was rendered this many times
+	 *            by the interpreter. 0 means compile on the first rendering.
+	 *            -1 disables the bytecode compilation(default).
+	 * @return
+	 */
+	public JTTBuilder setBytecodeCompileThreshold(int threshold) {
+		this.bytecodeCompileThreshold = threshold;
+		return this;
+	}
+
+	/**
+	 * Load templates from the precompiled archive. Templates not in the
+	 * archive are loaded from include paths.
+	 * 
+	 * @param templateArchive
+	 * @return
+	 */
+	public JTTBuilder setTemplateArchive(TemplateArchive templateArchive) {
+		this.templateArchive = templateArchive;
+		return this;
+	}
+
+	/**
+	 * Set the maximum total size of the compiled template strings to keep,
+	 * for JTT#renderString. The size is estimated from the source and the
+	 * irep, in bytes. 0 disables the cache.
+	 * 
+	 * @param stringCacheMaximumBytes
+	 * @return
+	 */
+	public JTTBuilder setStringCacheMaximumBytes(long stringCacheMaximumBytes) {
+		this.stringCacheMaximumBytes = stringCacheMaximumBytes;
+		return this;
+	}
+
+	/**
+	 * Link INCLUDE and WRAPPER targets at compile time. The linked template
+	 * runs in the same VM, instead of resolving the name and creating a new
+	 * VM on each rendering. It takes effect with the template cache, since
+	 * the link is used only while the target is the cached one.
+	 * 
+	 * @param linking
+	 * @return
+	 */
+	public JTTBuilder setLinking(boolean linking) {
+		this.linking = linking;
+		return this;
+	}
+
 	public JTTBuilder setSyntax(Syntax syntax) {
 		if (syntax == null) {
 			throw new Error("Syntax must not be null");
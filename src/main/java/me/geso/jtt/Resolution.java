@@ -0,0 +1,81 @@
+package me.geso.jtt;
+
+/**
+ * Cached resolution of the template name to the file. See
+ * TemplateCache#getResolvedPath.
+ *
+ * @author tokuhirom
+ *
+ */
+public final class Resolution {
+	public enum Status {
+		/**
+		 * The template was found at the file path.
+		 */
+		HIT,
+		/**
+		 * The template was not found in any include path.
+		 */
+		MISSING,
+		/**
+		 * The resolution is not cached. The include paths must be probed.
+		 */
+		UNKNOWN,
+	}
+
+	public static final Resolution MISSING = new Resolution(Status.MISSING,
+			null);
+	public static final Resolution UNKNOWN = new Resolution(Status.UNKNOWN,
+			null);
+
+	private final Status status;
+	private final String filePath;
+
+	private Resolution(Status status, String filePath) {
+		this.status = status;
+		this.filePath = filePath;
+	}
+
+	/**
+	 * The template was found at the file path.
+	 */
+	public static Resolution hit(String filePath) {
+		if (filePath == null) {
+			throw new IllegalArgumentException("filePath must not be null");
+		}
+		return new Resolution(Status.HIT, filePath);
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return Path of the found file. null unless the status is HIT.
+	 */
+	public String getFilePath() {
+		return filePath;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Resolution)) {
+			return false;
+		}
+		Resolution other = (Resolution) obj;
+		return status == other.status
+				&& (filePath == null ? other.filePath == null : filePath
+						.equals(other.filePath));
+	}
+
+	@Override
+	public int hashCode() {
+		return status.hashCode() * 31
+				+ (filePath == null ? 0 : filePath.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return status == Status.HIT ? "HIT(" + filePath + ")" : status.name();
+	}
+}
@@ -17,7 +17,7 @@ public class Source {
 	private final String source;
 
 	enum SourceType {
-		FROM_FILE, FROM_STRING
+		FROM_FILE, FROM_STRING, FROM_ARCHIVE
 	}
 
 	public Source(SourceType type, String source) {
@@ -45,8 +45,23 @@ public class Source {
 		return new Source(SourceType.FROM_FILE, fileName);
 	}
 
+	/**
+	 * Create new Source object for the template in the archive. The source
+	 * text is not archived.
+	 * 
+	 * @param fileName
+	 *            Template file name, relative to the include path.
+	 * @return
+	 */
+	public static Source fromArchive(String fileName) {
+		return new Source(SourceType.FROM_ARCHIVE, fileName);
+	}
+
 	public List<String> getSourceLines() throws IOException {
-		if (this.type == SourceType.FROM_FILE) {
+		if (this.type == SourceType.FROM_ARCHIVE) {
+			throw new IOException("The source of " + this.source
+					+ " is not archived");
+		} else if (this.type == SourceType.FROM_FILE) {
 			return Files.readAllLines(new File(this.source).toPath());
 		} else {
 			List<String> list = new ArrayList<String>();
@@ -69,7 +84,7 @@ public class Source {
 	}
 
 	public String getFileName() {
-		if (this.type == SourceType.FROM_FILE) {
+		if (this.type != SourceType.FROM_STRING) {
 			return this.source;
 		} else {
 			return null;
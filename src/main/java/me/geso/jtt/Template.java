@@ -0,0 +1,82 @@
+package me.geso.jtt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import me.geso.jtt.exception.JTTError;
+import me.geso.jtt.vm.Irep;
+
+/**
+ * Compiled template, created by JTT#getTemplate or JTT#compileString. The
+ * template is resolved once, and rendering doesn't look up the include
+ * paths.
+ * 
+ * The handle follows the template cache. If the cache evicted the template
+ * because the file was modified, the file is resolved and compiled again on
+ * the next rendering. Without the cache(NullTemplateCache), the file is
+ * compiled on every rendering, same as JTT#renderFile.
+ * 
+ * This class is thread safe.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class Template {
+	private final JTT jtt;
+	private final String name;
+	private volatile TemplateLoader.Resolved resolved;
+
+	Template(JTT jtt, String name, TemplateLoader.Resolved resolved) {
+		this.jtt = jtt;
+		this.name = name;
+		this.resolved = resolved;
+	}
+
+	/**
+	 * @return null if the template was compiled from a string.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the current compiled template.
+	 */
+	public Irep getIrep() throws JTTError {
+		TemplateLoader.Resolved resolved = this.resolved;
+		TemplateLoader loader = jtt.getLoader();
+		if (!loader.isCurrent(resolved)) {
+			resolved = loader.resolve(name, jtt.getSyntax());
+			this.resolved = resolved;
+		}
+		return resolved.irep;
+	}
+
+	public String render(Map<String, Object> vars) throws JTTError {
+		if (vars == null) {
+			vars = new HashMap<>();
+		}
+		return jtt.newVM(this.getIrep(), vars).run();
+	}
+
+	/**
+	 * Render the template and write the result into the sink.
+	 * 
+	 * @param vars
+	 *            Template variables.
+	 * @param sink
+	 *            Output destination. e.g. Writer, StringBuilder.
+	 */
+	public void render(Map<String, Object> vars, Appendable sink)
+			throws JTTError {
+		if (vars == null) {
+			vars = new HashMap<>();
+		}
+		jtt.newVM(this.getIrep(), vars).run(sink);
+	}
+
+	@Override
+	public String toString() {
+		return "Template [name=" + name + "]";
+	}
+}
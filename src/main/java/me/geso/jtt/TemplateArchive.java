@@ -0,0 +1,348 @@
+package me.geso.jtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import me.geso.jtt.exception.JTTError;
+import me.geso.jtt.lexer.Token;
+import me.geso.jtt.parser.Node;
+import me.geso.jtt.vm.Irep;
+import me.geso.jtt.vm.OP;
+
+/**
+ * Archive of precompiled templates.
+ * 
+ * The archive is a single binary file contains the compiled ireps. It's
+ * memory mapped, and each irep is decoded on the first access. Then the
+ * application can start without lexing, parsing and compiling templates.
+ * 
+ * <pre>
+ * archive := "JTTA" version:int opNames entryCount:int index* entry*
+ * opNames := count:int string*
+ * index   := name:string offset:int length:int
+ * entry   := fileName:string registerCount:int loopStackSize:int
+ *            iseqLength:int (op:int a:int b:int)*
+ *            lineTableLength:int (pc:int line:int)*
+ *            poolSize:int constant*
+ * string  := length:int utf8-bytes
+ * </pre>
+ * 
+ * The op names are stored in the archive, so the archive doesn't depend on
+ * the order of OP enum. Offsets are relative to the first entry.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class TemplateArchive {
+	private static final int MAGIC = 0x4a545441; // "JTTA"
+	private static final int VERSION = 2;
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_STRING = 1;
+	private static final byte TAG_INTEGER = 2;
+	private static final byte TAG_DOUBLE = 3;
+	private static final byte TAG_BOOLEAN = 4;
+	private static final byte TAG_LONG = 5;
+
+	private final ByteBuffer buffer;
+	private final OP[] ops;
+	private final Map<String, int[]> index;
+	private final Map<String, Irep> decoded = new ConcurrentHashMap<>();
+
+	private TemplateArchive(ByteBuffer buffer) {
+		this.buffer = buffer;
+		ByteBuffer in = buffer.duplicate();
+		if (in.getInt() != MAGIC) {
+			throw new JTTError("This is not a JTT template archive");
+		}
+		int version = in.getInt();
+		if (version != VERSION) {
+			throw new JTTError("Unsupported template archive version: "
+					+ version);
+		}
+
+		int opCount = in.getInt();
+		this.ops = new OP[opCount];
+		for (int i = 0; i < opCount; ++i) {
+			String name = readString(in);
+			try {
+				ops[i] = OP.valueOf(name);
+			} catch (IllegalArgumentException e) {
+				throw new JTTError("Unknown OP in template archive: " + name);
+			}
+		}
+
+		int entryCount = in.getInt();
+		this.index = new HashMap<>();
+		for (int i = 0; i < entryCount; ++i) {
+			String name = readString(in);
+			int offset = in.getInt();
+			int length = in.getInt();
+			index.put(name, new int[] { offset, length });
+		}
+		int dataStart = in.position();
+		for (int[] entry : index.values()) {
+			entry[0] += dataStart;
+		}
+	}
+
+	/**
+	 * Open the archive file.
+	 */
+	public static TemplateArchive open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			return new TemplateArchive(channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Get the irep for the template.
+	 * 
+	 * @param fileName
+	 *            Template file name, relative to the include path.
+	 * @return null if the archive doesn't contain the template.
+	 */
+	public Irep get(String fileName) {
+		Irep irep = decoded.get(fileName);
+		if (irep != null) {
+			return irep;
+		}
+		int[] entry = index.get(fileName);
+		if (entry == null) {
+			return null;
+		}
+		irep = decode(entry[0]);
+		Irep prev = decoded.putIfAbsent(fileName, irep);
+		return prev != null ? prev : irep;
+	}
+
+	public boolean contains(String fileName) {
+		return index.containsKey(fileName);
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Compile all files under the include path, and write the archive. The
+	 * file names in the archive are relative to the include path, so the
+	 * archive doesn't depend on the build machine.
+	 * 
+	 * @param includePath
+	 * @param syntax
+	 * @param output
+	 */
+	public static void build(Path includePath, Syntax syntax, Path output)
+			throws IOException {
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(includePath)) {
+			files = stream.filter(Files::isRegularFile).sorted()
+					.collect(Collectors.toList());
+		}
+
+		Map<String, Irep> ireps = new LinkedHashMap<>();
+		for (Path file : files) {
+			String name = includePath.relativize(file).toString()
+					.replace(file.getFileSystem().getSeparator(), "/");
+			String src = new String(Files.readAllBytes(file),
+					StandardCharsets.UTF_8);
+			Source source = Source.fromFile(file.toString());
+			List<Token> tokens = syntax.tokenize(source, src);
+			Node ast = syntax.parse(source, tokens);
+			ireps.put(name, syntax.compile(source, ast));
+		}
+
+		try (OutputStream out = Files.newOutputStream(output)) {
+			write(ireps, out, true);
+		}
+	}
+
+	/**
+	 * Write the archive.
+	 * 
+	 * @param ireps
+	 *            Map of the template file name and irep.
+	 * @param out
+	 */
+	public static void write(Map<String, Irep> ireps, OutputStream out)
+			throws IOException {
+		write(ireps, out, false);
+	}
+
+	/**
+	 * @param useTemplateNames
+	 *            Store the template names as the file names of the ireps,
+	 *            instead of the paths the ireps were compiled from.
+	 */
+	private static void write(Map<String, Irep> ireps, OutputStream out,
+			boolean useTemplateNames) throws IOException {
+		List<byte[]> entries = new ArrayList<>();
+		for (Map.Entry<String, Irep> template : ireps.entrySet()) {
+			Irep irep = template.getValue();
+			entries.add(encode(useTemplateNames ? template.getKey()
+					: irep.getFileName(), irep));
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+
+		OP[] values = OP.values();
+		data.writeInt(values.length);
+		for (OP op : values) {
+			writeString(data, op.name());
+		}
+
+		data.writeInt(ireps.size());
+		int offset = 0;
+		int i = 0;
+		for (String name : ireps.keySet()) {
+			byte[] entry = entries.get(i++);
+			writeString(data, name);
+			data.writeInt(offset);
+			data.writeInt(entry.length);
+			offset += entry.length;
+		}
+		for (byte[] entry : entries) {
+			data.write(entry);
+		}
+		data.flush();
+	}
+
+	private static byte[] encode(String fileName, Irep irep)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		writeString(out, fileName == null ? "" : fileName);
+		out.writeInt(irep.getRegisterCount());
+		out.writeInt(irep.getLoopStackSize());
+
+		// The iseq may be quickened by the renderings.
+		int[] iseq = irep.getCanonicalIseq();
+		out.writeInt(irep.getIseqLength());
+		for (int i : iseq) {
+			out.writeInt(i);
+		}
+
+		int[] lineTable = irep.getLineTable();
+		out.writeInt(lineTable.length / 2);
+		for (int i : lineTable) {
+			out.writeInt(i);
+		}
+
+		Object[] pool = irep.getPool();
+		out.writeInt(pool.length);
+		for (Object o : pool) {
+			if (o == null) {
+				out.writeByte(TAG_NULL);
+			} else if (o instanceof String) {
+				out.writeByte(TAG_STRING);
+				writeString(out, (String) o);
+			} else if (o instanceof Integer) {
+				out.writeByte(TAG_INTEGER);
+				out.writeInt((Integer) o);
+			} else if (o instanceof Double) {
+				out.writeByte(TAG_DOUBLE);
+				out.writeDouble((Double) o);
+			} else if (o instanceof Boolean) {
+				out.writeByte(TAG_BOOLEAN);
+				out.writeBoolean((Boolean) o);
+			} else if (o instanceof Long) {
+				out.writeByte(TAG_LONG);
+				out.writeLong((Long) o);
+			} else {
+				throw new JTTError("Cannot archive the constant: "
+						+ o.getClass());
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private Irep decode(int offset) {
+		ByteBuffer in = buffer.duplicate();
+		in.position(offset);
+
+		String fileName = readString(in);
+		int registerCount = in.getInt();
+		int loopStackSize = in.getInt();
+
+		int[] iseq = new int[in.getInt() * Irep.STRIDE];
+		in.asIntBuffer().get(iseq);
+		in.position(in.position() + iseq.length * 4);
+		for (int i = 0; i < iseq.length; i += Irep.STRIDE) {
+			// Map the archived opcode to the ordinal of this OP enum.
+			iseq[i] = ops[iseq[i]].ordinal();
+		}
+
+		int[] lineTable = new int[in.getInt() * 2];
+		in.asIntBuffer().get(lineTable);
+		in.position(in.position() + lineTable.length * 4);
+
+		Object[] pool = new Object[in.getInt()];
+		for (int i = 0; i < pool.length; ++i) {
+			byte tag = in.get();
+			switch (tag) {
+			case TAG_NULL:
+				pool[i] = null;
+				break;
+			case TAG_STRING:
+				pool[i] = readString(in);
+				break;
+			case TAG_INTEGER:
+				pool[i] = in.getInt();
+				break;
+			case TAG_DOUBLE:
+				pool[i] = in.getDouble();
+				break;
+			case TAG_BOOLEAN:
+				pool[i] = in.get() != 0;
+				break;
+			case TAG_LONG:
+				pool[i] = in.getLong();
+				break;
+			default:
+				throw new JTTError("Broken template archive: unknown tag "
+						+ tag);
+			}
+		}
+
+		Source source = fileName.isEmpty() ? Source.fromString("")
+				: Source.fromArchive(fileName);
+		return new Irep(iseq, lineTable, pool, source, loopStackSize,
+				registerCount);
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
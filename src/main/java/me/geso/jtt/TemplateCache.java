@@ -1,8 +1,87 @@
 package me.geso.jtt;
 
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
 import me.geso.jtt.vm.Irep;
 
 public interface TemplateCache {
+	/**
+	 * @param filePath
+	 *            Absolute and normalized path of the template file.
+	 */
 	public Irep get(String filePath);
 	public void set(String filePath, Irep irep);
+
+	/**
+	 * Put the irep compiled from the file.
+	 * 
+	 * @param attributes
+	 *            Attributes of the file read before reading the source. The
+	 *            file may be changed during the compilation, and the cache
+	 *            must compare the later changes with these attributes. null
+	 *            if the attributes can't be read.
+	 */
+	public default void set(String filePath, Irep irep,
+			BasicFileAttributes attributes) {
+		this.set(filePath, irep);
+	}
+
+	/**
+	 * Start watching the path for the changes, if the cache watches the file
+	 * system. TemplateLoader calls it with the include paths when it's
+	 * created, and with the template file before reading it. Then the
+	 * changes made during the compilation are not lost.
+	 * 
+	 * @param path
+	 *            Include path directory, or template file.
+	 */
+	public default void watch(Path path) {
+		// Do nothing.
+	}
+
+	/**
+	 * Get the cached resolution of the template name, set by
+	 * setResolvedPath. The cache must forget the resolution when the files
+	 * may have been created or deleted, same as the templates.
+	 * 
+	 * @param fileName
+	 *            Template name relative to the include paths.
+	 * @return Resolution.UNKNOWN if the resolution is not cached.
+	 *         Resolution.MISSING if the template was not found in any include
+	 *         path.
+	 */
+	public default Resolution getResolvedPath(String fileName) {
+		return Resolution.UNKNOWN;
+	}
+
+	/**
+	 * Cache the resolution of the template name.
+	 * 
+	 * @param fileName
+	 *            Template name relative to the include paths.
+	 * @param resolution
+	 *            Resolution.hit(path) if found, Resolution.MISSING if not.
+	 * @param probedPaths
+	 *            Paths checked for the template, including the found one.
+	 */
+	public default void setResolvedPath(String fileName,
+			Resolution resolution, List<Path> probedPaths) {
+		// Do nothing.
+	}
+
+	/**
+	 * Record the template files included or wrapped by the template. The
+	 * cache should evict the template when one of them is changed.
+	 * 
+	 * @param filePath
+	 *            Path of the template.
+	 * @param dependencyPaths
+	 *            Paths of the included or wrapped templates.
+	 */
+	public default void setDependencies(String filePath,
+			List<String> dependencyPaths) {
+		// Do nothing.
+	}
 }
@@ -6,45 +6,308 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import me.geso.jtt.exception.JTTError;
 import me.geso.jtt.exception.TemplateLoadingError;
 import me.geso.jtt.lexer.Token;
 import me.geso.jtt.parser.Node;
 import me.geso.jtt.vm.Irep;
+import me.geso.jtt.vm.LinkedTemplate;
+import me.geso.jtt.vm.OP;
 
 public class TemplateLoader {
 	final List<Path> includePaths;
 	final TemplateCache templateCache;
+	private final TemplateArchive templateArchive;
+	/**
+	 * Compilations in progress. Threads missing the cache at the same time
+	 * wait for the same compilation.
+	 */
+	private final ConcurrentHashMap<String, FutureTask<Irep>> compiling = new ConcurrentHashMap<>();
+	private final boolean linking;
+	/**
+	 * Files being linked by this thread, to find the recursive includes.
+	 */
+	private final ThreadLocal<Set<String>> linkingFiles = ThreadLocal
+			.withInitial(HashSet::new);
 
 	public TemplateLoader(List<Path> includePaths, TemplateCache templateCache) {
+		this(includePaths, templateCache, null);
+	}
+
+	/**
+	 * @param templateArchive
+	 *            Precompiled templates. Templates in the archive are used
+	 *            instead of the files in include paths. May be null.
+	 */
+	public TemplateLoader(List<Path> includePaths,
+			TemplateCache templateCache, TemplateArchive templateArchive) {
+		this(includePaths, templateCache, templateArchive, false);
+	}
+
+	/**
+	 * @param linking
+	 *            Link the templates included or wrapped by the literal name
+	 *            at compile time. The linked template runs in the same VM
+	 *            while it's the cached one. It requires the template cache.
+	 */
+	public TemplateLoader(List<Path> includePaths,
+			TemplateCache templateCache, TemplateArchive templateArchive,
+			boolean linking) {
 		this.includePaths = includePaths;
 		this.templateCache = templateCache;
+		this.templateArchive = templateArchive;
+		this.linking = linking;
+		if (includePaths != null && templateCache != null) {
+			for (Path path : includePaths) {
+				templateCache.watch(path);
+			}
+		}
+	}
+
+	/**
+	 * A template resolved to the file.
+	 */
+	static final class Resolved {
+		/**
+		 * Full path of the template file. null if the template is in the
+		 * archive.
+		 */
+		final String fullpath;
+		final Irep irep;
+
+		Resolved(String fullpath, Irep irep) {
+			this.fullpath = fullpath;
+			this.irep = irep;
+		}
 	}
 
 	public Irep compile(String fileName, Syntax syntax) throws JTTError {
+		return this.resolve(fileName, syntax).irep;
+	}
+
+	Resolved resolve(String fileName, Syntax syntax) throws JTTError {
 		assert syntax != null;
 
+		if (templateArchive != null) {
+			Irep irep = templateArchive.get(fileName);
+			if (irep != null) {
+				return new Resolved(null, irep);
+			}
+		}
+
+		Resolution cached = this.templateCache.getResolvedPath(fileName);
+		if (cached.getStatus() == Resolution.Status.MISSING) {
+			throw new TemplateLoadingError(fileName, this.includePaths);
+		}
+		if (cached.getStatus() == Resolution.Status.HIT) {
+			String fullpath = cached.getFilePath();
+			Irep irep = this.templateCache.get(fullpath);
+			if (irep != null) {
+				return new Resolved(fullpath, irep);
+			}
+			if (new File(fullpath).exists()) {
+				return new Resolved(fullpath, this.compileOnce(fullpath,
+						syntax));
+			}
+			// The file was removed. Look up the include paths again.
+		}
+
+		List<Path> probedPaths = new ArrayList<>();
 		for (Path path : includePaths) {
-			String fullpath = path.toString() + "/" + fileName;
+			Path file = Paths.get(path.toString(), fileName).toAbsolutePath()
+					.normalize();
+			String fullpath = file.toString();
+			probedPaths.add(file);
 			{
-				Irep irep = this.templateCache.get(fullpath.toString());
+				Irep irep = this.templateCache.get(fullpath);
 				if (irep != null) {
-					return irep;
+					this.templateCache.setResolvedPath(fileName,
+							Resolution.hit(fullpath), probedPaths);
+					return new Resolved(fullpath, irep);
 				}
 			}
 
-			File fullpathFile = new File(fullpath);
+			File fullpathFile = file.toFile();
 			if (fullpathFile.exists()) {
-				Irep irep = this.compileFile(fullpath, syntax);
-				this.templateCache.set(fullpath.toString(), irep);
-				return irep;
+				this.templateCache.setResolvedPath(fileName,
+						Resolution.hit(fullpath), probedPaths);
+				return new Resolved(fullpath, this.compileOnce(fullpath,
+						syntax));
 			}
 		}
+		this.templateCache.setResolvedPath(fileName, Resolution.MISSING,
+				probedPaths);
 		throw new TemplateLoadingError(fileName, this.includePaths);
 	}
 
+	/**
+	 * Is the resolved template still in the cache? The cache evicts the
+	 * modified templates, and the caller must resolve it again.
+	 */
+	boolean isCurrent(Resolved resolved) {
+		return resolved.fullpath == null
+				|| this.isCurrent(resolved.fullpath, resolved.irep);
+	}
+
+	/**
+	 * Is the template file still cached as the irep? The VM checks it
+	 * before running the linked template.
+	 */
+	public boolean isCurrent(String fullpath, Irep irep) {
+		return this.templateCache.get(fullpath) == irep;
+	}
+
+	/**
+	 * Compile the file and put it in the cache. If another thread is
+	 * compiling the same file, wait for its result instead.
+	 */
+	private Irep compileOnce(String fullpath, Syntax syntax) throws JTTError {
+		FutureTask<Irep> task = new FutureTask<>(() -> {
+			// Another thread may have finished the compilation just now.
+			Irep cached = this.templateCache.get(fullpath);
+			if (cached != null) {
+				return cached;
+			}
+			// Watch the file and read the attributes before the source. Then
+			// the changes during the compilation are detected by the cache.
+			this.templateCache.watch(Paths.get(fullpath));
+			BasicFileAttributes attributes = this.readAttributes(fullpath);
+			Irep irep = this.compileFile(fullpath, syntax);
+			if (linking) {
+				this.link(fullpath, irep, syntax);
+			}
+			this.templateCache.set(fullpath, irep, attributes);
+			this.templateCache.setDependencies(fullpath,
+					this.findDependencyPaths(irep));
+			return irep;
+		});
+
+		FutureTask<Irep> running = compiling.putIfAbsent(fullpath, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				compiling.remove(fullpath, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JTTError(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new JTTError(cause);
+			}
+		}
+	}
+
+	/**
+	 * Find the files of the templates included or wrapped by the template.
+	 * The templates in the archive and the missing templates are skipped.
+	 */
+	private List<String> findDependencyPaths(Irep irep) {
+		List<String> paths = new ArrayList<>();
+		for (String fileName : irep.getDependencies()) {
+			String path = this.findPath(fileName);
+			if (path != null) {
+				paths.add(path);
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Find the file of the template, without compiling it.
+	 * 
+	 * @return null if the template is in the archive, or not found.
+	 */
+	private String findPath(String fileName) {
+		if (templateArchive != null && templateArchive.contains(fileName)) {
+			return null;
+		}
+		Resolution cached = this.templateCache.getResolvedPath(fileName);
+		if (cached.getStatus() != Resolution.Status.UNKNOWN) {
+			return cached.getFilePath();
+		}
+		for (Path path : includePaths) {
+			Path file = Paths.get(path.toString(), fileName).toAbsolutePath()
+					.normalize();
+			if (file.toFile().exists()) {
+				return file.toString();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Link the templates included or wrapped by the irep. The linked
+	 * templates run in the same VM, without resolving the name.
+	 * 
+	 * The instruction is left for the run time resolution if the template
+	 * can't be compiled now: it's not found, it's in the archive, or it's
+	 * being compiled. The last one breaks the recursive includes, and
+	 * avoids waiting for another thread which may be waiting for this one.
+	 */
+	private void link(String fullpath, Irep irep, Syntax syntax) {
+		Set<String> linkingFiles = this.linkingFiles.get();
+		linkingFiles.add(fullpath);
+		try {
+			Object[] pool = irep.getPool();
+			for (int pc = 0; pc < irep.getIseqLength(); ++pc) {
+				OP op = irep.getOP(pc);
+				if (op != OP.INCLUDE && op != OP.WRAP) {
+					continue;
+				}
+				String fileName = (String) pool[irep.getB(pc)];
+				String path = this.findPath(fileName);
+				if (path == null || linkingFiles.contains(path)
+						|| compiling.containsKey(path)) {
+					continue;
+				}
+
+				Resolved resolved;
+				try {
+					resolved = this.resolve(fileName, syntax);
+				} catch (JTTError e) {
+					// Report the error when the instruction runs.
+					continue;
+				}
+				if (resolved.fullpath != null) {
+					irep.setLinkedTemplate(pc, new LinkedTemplate(
+							resolved.fullpath, resolved.irep));
+				}
+			}
+		} finally {
+			linkingFiles.remove(fullpath);
+		}
+	}
+
+	private BasicFileAttributes readAttributes(String fullpath) {
+		try {
+			return Files.readAttributes(Paths.get(fullpath),
+					BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
 	private Irep compileFile(String fullpath, Syntax syntax) throws JTTError {
 		try {
 			byte[] bytes = Files.readAllBytes(Paths.get(fullpath));
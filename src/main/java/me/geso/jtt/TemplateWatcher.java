@@ -0,0 +1,111 @@
+package me.geso.jtt;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import me.geso.jtt.exception.JTTError;
+
+/**
+ * Watch the directories of template files, and notify the changed paths.
+ * 
+ * @author tokuhirom
+ *
+ */
+class TemplateWatcher implements Closeable {
+	private final WatchService watchService;
+	private final Map<Path, WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+	private final Consumer<Path> fileChanged;
+	private final Consumer<Path> directoryOverflowed;
+	private final Thread thread;
+
+	/**
+	 * @param fileChanged
+	 *            Called with the absolute path of the changed file.
+	 * @param directoryOverflowed
+	 *            Called with the directory if the events were lost.
+	 */
+	TemplateWatcher(Consumer<Path> fileChanged,
+			Consumer<Path> directoryOverflowed) {
+		try {
+			this.watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			throw new JTTError(e);
+		}
+		this.fileChanged = fileChanged;
+		this.directoryOverflowed = directoryOverflowed;
+		this.thread = new Thread(this::run, "jtt-template-watcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Start watching the directory of the file.
+	 */
+	void watch(Path file) {
+		Path dir = file.toAbsolutePath().normalize().getParent();
+		if (dir != null) {
+			this.watchDirectory(dir);
+		}
+	}
+
+	/**
+	 * Start watching the directory.
+	 */
+	void watchDirectory(Path dir) {
+		if (watchedDirectories.containsKey(dir)) {
+			return;
+		}
+		watchedDirectories.computeIfAbsent(dir, d -> {
+			try {
+				return d.register(watchService, ENTRY_CREATE, ENTRY_MODIFY,
+						ENTRY_DELETE);
+			} catch (IOException e) {
+				throw new JTTError(e);
+			}
+		});
+	}
+
+	private void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					directoryOverflowed.accept(dir);
+				} else {
+					fileChanged.accept(dir.resolve((Path) event.context()));
+				}
+			}
+			if (!key.reset()) {
+				// The directory was removed.
+				watchedDirectories.remove(dir);
+				directoryOverflowed.accept(dir);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+}
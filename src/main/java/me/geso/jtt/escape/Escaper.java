@@ -2,4 +2,15 @@ package me.geso.jtt.escape;
 
 public interface Escaper {
 	public String escape(String string);
+
+	/**
+	 * Escape the string into the output buffer. The VM uses this method.
+	 * Override this to avoid the intermediate String.
+	 * 
+	 * @param string
+	 * @param out
+	 */
+	public default void escape(CharSequence string, StringBuilder out) {
+		out.append(this.escape(string.toString()));
+	}
 }
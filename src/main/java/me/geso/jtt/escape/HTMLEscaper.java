@@ -1,11 +1,72 @@
 package me.geso.jtt.escape;
 
-import com.google.common.html.HtmlEscapers;
-
+/**
+ * Escape &amp;, &lt;, &gt;, &quot; and &#39;. Same as Guava's
+ * HtmlEscapers.htmlEscaper().
+ * 
+ * The runs of the characters which don't need escaping are copied to the
+ * output as is.
+ * 
+ * @author tokuhirom
+ *
+ */
 public class HTMLEscaper implements Escaper {
+	/**
+	 * All the escaped characters are less than or equal to '&gt;'.
+	 */
+	private static final String[] REPLACEMENTS = new String['>' + 1];
+	static {
+		REPLACEMENTS['"'] = "&quot;";
+		REPLACEMENTS['\''] = "&#39;";
+		REPLACEMENTS['&'] = "&amp;";
+		REPLACEMENTS['<'] = "&lt;";
+		REPLACEMENTS['>'] = "&gt;";
+	}
+
 	@Override
 	public String escape(String str) {
-		return HtmlEscapers.htmlEscaper().escape(str);
+		int first = indexOfEscape(str, 0);
+		if (first < 0) {
+			// Nothing to escape.
+			return str;
+		}
+		StringBuilder builder = new StringBuilder(str.length() + 16);
+		escape(str, first, builder);
+		return builder.toString();
+	}
+
+	@Override
+	public void escape(CharSequence str, StringBuilder out) {
+		int first = indexOfEscape(str, 0);
+		if (first < 0) {
+			out.append(str);
+		} else {
+			escape(str, first, out);
+		}
+	}
+
+	private void escape(CharSequence str, int first, StringBuilder out) {
+		int start = 0;
+		int i = first;
+		int length = str.length();
+		while (i >= 0) {
+			out.append(str, start, i);
+			out.append(REPLACEMENTS[str.charAt(i)]);
+			start = i + 1;
+			i = indexOfEscape(str, start);
+		}
+		out.append(str, start, length);
+	}
+
+	private static int indexOfEscape(CharSequence str, int from) {
+		int length = str.length();
+		for (int i = from; i < length; ++i) {
+			char c = str.charAt(i);
+			if (c <= '>' && REPLACEMENTS[c] != null) {
+				return i;
+			}
+		}
+		return -1;
 	}
 
 }
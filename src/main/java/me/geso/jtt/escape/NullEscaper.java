@@ -7,4 +7,9 @@ public class NullEscaper implements Escaper {
 		return string;
 	}
 
+	@Override
+	public void escape(CharSequence string, StringBuilder out) {
+		out.append(string);
+	}
+
 }
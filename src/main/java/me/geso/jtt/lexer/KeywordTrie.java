@@ -0,0 +1,58 @@
+package me.geso.jtt.lexer;
+
+import java.util.List;
+
+/**
+ * Trie of the keywords. Finds the longest keyword at the position without
+ * scanning the whole keyword list.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class KeywordTrie {
+	private final Node root = new Node();
+
+	private static class Node {
+		private final Node[] children = new Node[128];
+		private TokenPair keyword;
+	}
+
+	public KeywordTrie(List<TokenPair> keywords) {
+		for (TokenPair keyword : keywords) {
+			Node node = root;
+			for (int i = 0; i < keyword.pattern.length(); ++i) {
+				char c = keyword.pattern.charAt(i);
+				if (c >= 128) {
+					throw new IllegalArgumentException(
+							"Keyword must be ASCII: " + keyword.pattern);
+				}
+				if (node.children[c] == null) {
+					node.children[c] = new Node();
+				}
+				node = node.children[c];
+			}
+			node.keyword = keyword;
+		}
+	}
+
+	/**
+	 * Match the longest keyword starting at the position.
+	 * 
+	 * @return Matched keyword, or null if no keyword matches.
+	 */
+	public TokenPair match(String string, int pos) {
+		Node node = root;
+		TokenPair matched = null;
+		for (int i = pos; i < string.length(); ++i) {
+			char c = string.charAt(i);
+			if (c >= 128 || node.children[c] == null) {
+				break;
+			}
+			node = node.children[c];
+			if (node.keyword != null) {
+				matched = node.keyword;
+			}
+		}
+		return matched;
+	}
+}
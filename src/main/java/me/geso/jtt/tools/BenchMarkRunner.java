@@ -22,14 +22,6 @@ class Item {
 
 public class BenchMarkRunner {
 	public static void main(String[] args) {
-		long t1 = System.currentTimeMillis();
-
-		System.out.println("start");
-		InMemoryTemplateCache templateCache = new InMemoryTemplateCache(
-				InMemoryTemplateCache.CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES);
-		JTT jtt = new JTTBuilder()
-				.addIncludePath(new File("src/test/resources").toPath())
-				.setTemplateCache(templateCache).build();
 		List<Item> items = new ArrayList<>();
 		IntStream.rangeClosed(0, 10000).forEach(i -> {
 			Item item = new Item();
@@ -41,6 +33,22 @@ public class BenchMarkRunner {
 			item.ratio = 3.14;
 			items.add(item);
 		});
+
+		bench("interpreter", -1, items);
+		bench("bytecode", 0, items);
+	}
+
+	private static void bench(String name, int bytecodeCompileThreshold,
+			List<Item> items) {
+		long t1 = System.currentTimeMillis();
+
+		System.out.println("start: " + name);
+		InMemoryTemplateCache templateCache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES);
+		JTT jtt = new JTTBuilder()
+				.addIncludePath(new File("src/test/resources").toPath())
+				.setTemplateCache(templateCache)
+				.setBytecodeCompileThreshold(bytecodeCompileThreshold).build();
 		for (int i = 0; i < 1000; ++i) {
 			Map<String, Object> vars = new HashMap<>();
 			vars.put("items", items);
@@ -48,6 +56,6 @@ public class BenchMarkRunner {
 		}
 
 		long t2 = System.currentTimeMillis();
-		System.out.println("done: " + (t2-t1) + " [ms]");
+		System.out.println("done: " + name + ": " + (t2 - t1) + " [ms]");
 	}
 }
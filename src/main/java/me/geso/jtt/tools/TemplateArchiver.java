@@ -0,0 +1,74 @@
+package me.geso.jtt.tools;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import me.geso.jtt.Syntax;
+import me.geso.jtt.TemplateArchive;
+import me.geso.jtt.tt.TTSyntax;
+
+/**
+ * Command line tool to build the precompiled template archive.
+ * 
+ * <pre>
+ * java me.geso.jtt.tools.TemplateArchiver src/main/resources/templates templates.jtta
+ * java me.geso.jtt.tools.TemplateArchiver --tags '&lt;%' '%&gt;' templates templates.jtta
+ * java me.geso.jtt.tools.TemplateArchiver --syntax com.example.MySyntax templates templates.jtta
+ * </pre>
+ * 
+ * The templates must be archived with the same syntax as the application
+ * renders them. The default is TTSyntax with [% %] tags. --syntax takes the
+ * class name of the Syntax, which must have a public no-argument
+ * constructor.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class TemplateArchiver {
+	private static final String USAGE = "Usage: TemplateArchiver [--tags openTag closeTag | --syntax className] includePath output";
+
+	public static void main(String[] args) throws IOException {
+		Syntax syntax = new TTSyntax();
+		int i = 0;
+		if (args.length > 0 && args[0].equals("--tags")) {
+			if (args.length < 3) {
+				usage();
+			}
+			syntax = new TTSyntax(args[1], args[2]);
+			i = 3;
+		} else if (args.length > 0 && args[0].equals("--syntax")) {
+			if (args.length < 2) {
+				usage();
+			}
+			syntax = createSyntax(args[1]);
+			i = 2;
+		}
+		if (args.length - i != 2) {
+			usage();
+		}
+
+		Path includePath = Paths.get(args[i]);
+		Path output = Paths.get(args[i + 1]);
+		TemplateArchive.build(includePath, syntax, output);
+
+		TemplateArchive archive = TemplateArchive.open(output);
+		System.out.println("Wrote " + archive.size() + " templates to "
+				+ output);
+	}
+
+	static Syntax createSyntax(String className) {
+		try {
+			return Class.forName(className).asSubclass(Syntax.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalArgumentException("Cannot create the syntax: "
+					+ className, e);
+		}
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(1);
+	}
+}
@@ -3,6 +3,7 @@ package me.geso.jtt.tt;
 import com.google.common.collect.Lists;
 
 import me.geso.jtt.Source;
+import me.geso.jtt.lexer.KeywordTrie;
 import me.geso.jtt.lexer.LexerMode;
 import me.geso.jtt.lexer.Token;
 import me.geso.jtt.lexer.TokenPair;
@@ -10,30 +11,21 @@ import me.geso.jtt.lexer.TokenType;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Lexer for TT syntax.
+ * 
+ * The lexer scans the source string in place, by indexOf and regionMatches.
+ * It never copies the rest of the source, so lexing runs in linear time.
+ */
 class TTLexer {
-	private final Pattern closeTagRe;
-	private final Pattern openTagRe;
-
-	private static final Pattern intRe = Pattern
-			.compile("\\A(?:[1-9][0-9]*|0)");
-	private static final Pattern doubleRe = Pattern
-			.compile("\\A(?:(?:[1-9][0-9]*|0)\\.[0-9]+)");
-
-	private static final Pattern identRe = Pattern
-			.compile("\\A(?:[a-zA-Z][_a-zA-Z0-9]*)");
-
-	private static final Pattern positionRe = Pattern
-			.compile("\\A__(FILE|LINE)__(?!\\w)");
-
 	private int pos;
 	private int lineNumber;
 	private final String sourceString;
 
 	private LexerMode mode;
 	private List<Token> tokens;
+	private final String openTag;
 	private final String closeTag;
 	private final Source source;
 
@@ -61,15 +53,13 @@ class TTLexer {
 			new TokenPair("false", TokenType.FALSE), //
 			new TokenPair("null", TokenType.NULL) //
 			);
+	private static final KeywordTrie keywordTrie = new KeywordTrie(keywords);
 
 	public TTLexer(Source source, String sourceString, String openTag, String closeTag) {
 		this.source = source;
 		this.sourceString = sourceString;
+		this.openTag = openTag;
 		this.closeTag = closeTag;
-		this.openTagRe = Pattern.compile(String.format("\\A(?:\\n?[ ]*%s-|%s)",
-				Pattern.quote(openTag), Pattern.quote(openTag)));
-		this.closeTagRe = Pattern.compile(String.format("\\A(?:%s|-%s[ ]*\n?)",
-				Pattern.quote(closeTag), Pattern.quote(closeTag)));
 	}
 
 	public List<Token> lex() {
@@ -102,9 +92,9 @@ class TTLexer {
 	private void lexTagBody(String string, List<Token> tokens) {
 		while (pos < string.length()) {
 			// %]
-			Matcher matcher = closeTagRe.matcher(string.substring(pos));
-			if (matcher.find()) {
-				pos += matcher.group(0).length();
+			int closeTagLength = this.matchCloseTag(string);
+			if (closeTagLength > 0) {
+				pos += closeTagLength;
 				mode = LexerMode.IN_RAW;
 				tokens.add(this.createToken(TokenType.CLOSE));
 				return;
@@ -266,10 +256,10 @@ class TTLexer {
 					break;
 				case '=':
 					if (pos + 1 < string.length()) {
-						if (sourceString.substring(pos).startsWith("==")) {
+						if (string.charAt(pos + 1) == '=') {
 							tokens.add(this.createToken(TokenType.EQUALS));
 							pos += 2;
-						} else if (sourceString.substring(pos).startsWith("=>")) {
+						} else if (string.charAt(pos + 1) == '>') {
 							tokens.add(this.createToken(TokenType.ARROW));
 							pos += 2;
 						} else {
@@ -315,13 +305,40 @@ class TTLexer {
 		}
 	}
 
+	/**
+	 * Match the close tag at the current position: `%]` or `-%]` with
+	 * following spaces and a newline.
+	 * 
+	 * @return Length of the matched close tag, or 0.
+	 */
+	private int matchCloseTag(String string) {
+		if (string.startsWith(closeTag, pos)) {
+			return closeTag.length();
+		}
+		if (string.charAt(pos) == '-' && string.startsWith(closeTag, pos + 1)) {
+			int end = pos + 1 + closeTag.length();
+			while (end < string.length() && string.charAt(end) == ' ') {
+				++end;
+			}
+			if (end < string.length() && string.charAt(end) == '\n') {
+				++end;
+			}
+			return end - pos;
+		}
+		return 0;
+	}
+
 	private Token lexUnderScore() {
-		Matcher matcher = positionRe.matcher(sourceString.substring(pos));
-		if (matcher.find()) {
-			pos += matcher.group(0).length();
-			return this
-					.createToken(matcher.group(1).equals("FILE") ? TokenType.FILE
-							: TokenType.LINE);
+		// __FILE__, __LINE__
+		TokenType type = null;
+		if (sourceString.startsWith("__FILE__", pos)) {
+			type = TokenType.FILE;
+		} else if (sourceString.startsWith("__LINE__", pos)) {
+			type = TokenType.LINE;
+		}
+		if (type != null && !isWordChar(pos + "__FILE__".length())) {
+			pos += "__FILE__".length();
+			return this.createToken(type);
 		} else {
 			++pos;
 			return this.createToken(TokenType.CONCAT);
@@ -329,16 +346,59 @@ class TTLexer {
 	}
 
 	private Token lexDollarVar() {
-		Matcher matcher = identRe.matcher(sourceString.substring(pos));
-		if (matcher.find()) {
-			String name = matcher.group(0);
-			pos += name.length();
+		int end = this.scanIdent(pos);
+		if (end > pos) {
+			String name = sourceString.substring(pos, end);
+			pos = end;
 			return this.createToken(TokenType.DOLLARVAR, name);
 		} else {
 			throw this.createError("Invalid token after '$'");
 		}
 	}
 
+	/**
+	 * Scan the identifier: [a-zA-Z][_a-zA-Z0-9]*
+	 * 
+	 * @return End position of the identifier. Same as start if there is no
+	 *         identifier.
+	 */
+	private int scanIdent(int start) {
+		if (start >= sourceString.length()) {
+			return start;
+		}
+		char c = sourceString.charAt(start);
+		if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+			return start;
+		}
+		int end = start + 1;
+		while (end < sourceString.length()) {
+			c = sourceString.charAt(end);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '_') {
+				++end;
+			} else {
+				break;
+			}
+		}
+		return end;
+	}
+
+	private boolean isWordChar(int i) {
+		if (i >= sourceString.length()) {
+			return false;
+		}
+		char c = sourceString.charAt(i);
+		return Character.isLetterOrDigit(c) && c < 128 || c == '_';
+	}
+
+	private boolean isDigit(int i) {
+		if (i >= sourceString.length()) {
+			return false;
+		}
+		char c = sourceString.charAt(i);
+		return c >= '0' && c <= '9';
+	}
+
 	private void lexLineComment() {
 		while (pos < sourceString.length()) {
 			if (sourceString.charAt(pos) == '\n') {
@@ -423,48 +483,47 @@ class TTLexer {
 
 	private Token lexOthers() {
 		// keywords
-		for (TokenPair keyword : keywords) {
-			if (sourceString.substring(pos).startsWith(keyword.pattern)) {
-				pos += keyword.pattern.length();
-				return this.createToken(keyword.type);
-			}
+		TokenPair keyword = keywordTrie.match(sourceString, pos);
+		if (keyword != null) {
+			pos += keyword.pattern.length();
+			return this.createToken(keyword.type);
 		}
 
 		// ident.
-		{
-			Matcher matcher = identRe.matcher(this.sourceString.substring(pos));
-			if (matcher.find()) {
-				String s = matcher.group(0);
-				pos += s.length();
-				return this.createToken(TokenType.IDENT, s);
-			}
+		int end = this.scanIdent(pos);
+		if (end > pos) {
+			String s = sourceString.substring(pos, end);
+			pos = end;
+			return this.createToken(TokenType.IDENT, s);
 		}
 
 		throw this.createError("Cannot tokenize template.");
 	}
 
 	private Token lexNumber(String string) {
-		// double
-		{
-			Matcher matcher = doubleRe.matcher(this.sourceString.substring(pos));
-			if (matcher.find()) {
-				String s = matcher.group(0);
-				pos += s.length();
-				return this.createToken(TokenType.DOUBLE, s);
+		// int: [1-9][0-9]*|0
+		int end = pos + 1;
+		if (string.charAt(pos) != '0') {
+			while (isDigit(end)) {
+				++end;
 			}
 		}
 
-		// lex int
-		{
-			Matcher matcher = intRe.matcher(this.sourceString.substring(pos));
-			if (matcher.find()) {
-				String s = matcher.group(0);
-				pos += s.length();
-				return this.createToken(TokenType.INTEGER, s);
+		// double: int\.[0-9]+
+		if (end + 1 < string.length() && string.charAt(end) == '.'
+				&& isDigit(end + 1)) {
+			end += 2;
+			while (isDigit(end)) {
+				++end;
 			}
+			String s = string.substring(pos, end);
+			pos = end;
+			return this.createToken(TokenType.DOUBLE, s);
 		}
 
-		throw this.createError("Cannot tokenize number");
+		String s = string.substring(pos, end);
+		pos = end;
+		return this.createToken(TokenType.INTEGER, s);
 	}
 
 	private TTLexerError createError(String message) {
@@ -472,46 +531,57 @@ class TTLexer {
 	}
 
 	private void lexRaw(String string) {
-		StringBuilder builder = new StringBuilder();
-		while (pos < string.length()) {
-			// [%-
-			Matcher matcher = openTagRe.matcher(string.substring(pos));
-			if (matcher.find()) {
-				mode = LexerMode.IN_TAG;
-				pos += matcher.group(0).length();
-
-				if (builder.toString().length() > 0) {
-					tokens.add(this.createToken(TokenType.RAW,
-							builder.toString()));
-				}
+		int tagStart = string.indexOf(openTag, pos);
+		if (tagStart < 0) {
+			this.addRaw(string, string.length());
+			pos = string.length();
+			return;
+		}
 
-				// [%# comments %]
-				if (pos < string.length() && string.charAt(pos) == '#') {
-					this.lexTagComment();
-				} else {
-					tokens.add(this.createToken(TokenType.OPEN));
-				}
-				return;
-			} else {
-				char c = string.charAt(pos);
-				if (c == '\n') {
-					++lineNumber;
-				}
-				builder.append(string.charAt(pos));
-				++pos;
+		// [%- removes preceding spaces and a newline.
+		int rawEnd = tagStart;
+		int tagEnd = tagStart + openTag.length();
+		if (tagEnd < string.length() && string.charAt(tagEnd) == '-') {
+			++tagEnd;
+			while (rawEnd > pos && string.charAt(rawEnd - 1) == ' ') {
+				--rawEnd;
+			}
+			if (rawEnd > pos && string.charAt(rawEnd - 1) == '\n') {
+				--rawEnd;
 			}
 		}
-		if (builder.toString().length() > 0) {
-			tokens.add(this.createToken(TokenType.RAW, builder.toString()));
+
+		this.addRaw(string, rawEnd);
+		mode = LexerMode.IN_TAG;
+		pos = tagEnd;
+
+		// [%# comments %]
+		if (pos < string.length() && string.charAt(pos) == '#') {
+			this.lexTagComment();
+		} else {
+			tokens.add(this.createToken(TokenType.OPEN));
+		}
+	}
+
+	/**
+	 * Add the raw string from the current position to the end.
+	 */
+	private void addRaw(String string, int end) {
+		if (end == pos) {
+			return;
+		}
+		for (int i = pos; i < end; ++i) {
+			if (string.charAt(i) == '\n') {
+				++lineNumber;
+			}
 		}
+		tokens.add(this.createToken(TokenType.RAW, string.substring(pos, end)));
 	}
 
 	private void lexTagComment() {
-		Matcher commentMatcher = Pattern.compile(
-				"\\A.*?" + Pattern.quote(closeTag), Pattern.DOTALL).matcher(
-				sourceString.substring(pos));
-		if (commentMatcher.find()) {
-			this.pos += commentMatcher.group(0).length();
+		int end = sourceString.indexOf(closeTag, pos);
+		if (end >= 0) {
+			this.pos = end + closeTag.length();
 			this.mode = LexerMode.IN_RAW;
 		} else {
 			throw new TTLexerError("Missing closing tag after tag comments.",
@@ -0,0 +1,93 @@
+package me.geso.jtt.vm;
+
+/**
+ * Inline cache for an ATTRIBUTE instruction.
+ * 
+ * The cache remembers the receiver classes seen at the call site, with the
+ * resolved property accessor. If the call site sees too many classes, the cache
+ * gives up and VM falls back to the generic lookup.
+ * 
+ * Irep is shared between threads. The entries array is never modified after
+ * publishing, it's replaced by the new array instead.
+ * 
+ * @author tokuhirom
+ *
+ */
+class AttributeCache {
+	private static final int MAX_ENTRIES = 4;
+	/**
+	 * Estimated bytes retained by a full cache: the cache, the entries array
+	 * and the entries with the accessors.
+	 */
+	static final int MAX_RETAINED_SIZE = 32 + 16 + MAX_ENTRIES * (4 + 24 + 32);
+	private static final Entry[] EMPTY = new Entry[0];
+
+	private volatile Entry[] entries = EMPTY;
+	private volatile boolean megamorphic = false;
+
+	static final class Entry {
+		final Class<?> klass;
+		final String name;
+		final PropertyAccessor accessor;
+
+		Entry(Class<?> klass, String name, PropertyAccessor accessor) {
+			this.klass = klass;
+			this.name = name;
+			this.accessor = accessor;
+		}
+
+		Object get(Object container) {
+			return accessor.get(container);
+		}
+	}
+
+	/**
+	 * Lookup the cache entry.
+	 * 
+	 * @return null if the cache doesn't know the class.
+	 */
+	Entry lookup(Class<?> klass, String name) {
+		for (Entry entry : entries) {
+			if (entry.klass == klass
+					&& (entry.name == name || entry.name.equals(name))) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	void add(Class<?> klass, String name, PropertyAccessor accessor) {
+		if (megamorphic) {
+			return;
+		}
+		Entry[] current = this.entries;
+		if (current.length >= MAX_ENTRIES) {
+			// Too many receiver types. Stop caching on this call site.
+			this.megamorphic = true;
+			this.entries = EMPTY;
+			return;
+		}
+		Entry[] newEntries = new Entry[current.length + 1];
+		System.arraycopy(current, 0, newEntries, 0, current.length);
+		newEntries[current.length] = new Entry(klass, name, accessor);
+		this.entries = newEntries;
+	}
+
+	/**
+	 * Get the entry if the call site has seen only one class.
+	 * 
+	 * @return null if the call site is not monomorphic.
+	 */
+	Entry getMonomorphic() {
+		Entry[] current = this.entries;
+		return current.length == 1 ? current[0] : null;
+	}
+
+	boolean isMegamorphic() {
+		return megamorphic;
+	}
+
+	int size() {
+		return entries.length;
+	}
+}
@@ -0,0 +1,16 @@
+package me.geso.jtt.vm;
+
+/**
+ * Irep compiled into JVM bytecode by IrepClassGenerator.
+ * 
+ * @author tokuhirom
+ *
+ */
+public interface CompiledIrep {
+	/**
+	 * Run the compiled instructions on the VM.
+	 * 
+	 * @param vm
+	 */
+	public void render(VM vm);
+}
@@ -23,13 +23,13 @@ public class Disassembler {
 		buffer.append(String.format("Iseq:\n"));
 
 		Object[] pool = irep.getPool();
-		Code[] iseq = irep.getIseq();
-		for (int i = 0; i < iseq.length; ++i) {
-			Code code = iseq[i];
-			String detail = analyzeOP(irep, pool, code, i);
-			buffer.append(String.format("  %s %06d %-15s %-4d,%-4d %s\n",
-					i == currentPC ? "*" : " ", i, code.op, code.a, code.b,
-					detail));
+		for (int i = 0; i < irep.getIseqLength(); ++i) {
+			OP op = irep.getOP(i);
+			int a = irep.getA(i);
+			int b = irep.getB(i);
+			String detail = analyzeOP(irep, pool, op, a, b, i);
+			buffer.append(String.format("  %s %06d %-18s %-4d,%-4d %s\n",
+					i == currentPC ? "*" : " ", i, op, a, b, detail));
 		}
 
 		buffer.append(String.format("Pool:\n"));
@@ -45,72 +45,157 @@ public class Disassembler {
 		return buffer.toString();
 	}
 
-	private String analyzeOP(Irep irep, Object[] pool, Code code, int pc) {
-		switch (code.op) {
+	/**
+	 * Run the optimizer and show the instructions after each pass.
+	 * 
+	 * @param builder
+	 *            The builder is optimized by this method.
+	 * @param optimizer
+	 * @return
+	 */
+	public String disasmPasses(IrepBuilder builder, PeepholeOptimizer optimizer) {
+		StringBuilder buffer = new StringBuilder();
+		buffer.append("=== input ===\n");
+		buffer.append(builder.toString());
+		optimizer.optimize(builder, (pass, b) -> {
+			buffer.append("=== " + pass.getName() + " ===\n");
+			buffer.append(b.toString());
+		});
+		return buffer.toString();
+	}
+
+	private String analyzeOP(Irep irep, Object[] pool, OP op, int a, int b,
+			int pc) {
+		switch (op) {
 		case LOAD_CONST: {
-			Object obj = irep.getPool()[code.a];
+			Object obj = irep.getPool()[a];
 			return obj == null ? "(null)" : String.format(" # regs[%d] = %s",
-					code.b, obj.toString());
+					b, obj.toString());
 		}
 		case ADD: {
-			return String.format(" # regs[%d] = regs[%d] + regs[%d]", code.a,
-					code.a, code.b);
+			return String.format(" # regs[%d] = regs[%d] + regs[%d]", a,
+					a, b);
 		}
 		case LOAD_INT:
-			return String.format(" # regs[%d] = %d", code.b, code.a);
+			return String.format(" # regs[%d] = %d", b, a);
 		case MOVE:
-			return String.format(" # regs[%d] = regs[%d]", code.a, code.b);
+			return String.format(" # regs[%d] = regs[%d]", a, b);
 		case MAKE_ARRAY:
-			return String.format(" # regs[%d] = regs[%d]..regs[%d]", code.a,
-					code.a, code.a + code.b);
+			return String.format(" # regs[%d] = regs[%d]..regs[%d]", a,
+					a, a + b);
 		case GET_ELEM:
 			return String.format(" # regs[%d] = getElem(regs[%d], regs[%d])",
-					code.a, code.a, code.b);
+					a, a, b);
 		case APPEND:
-			return String.format(" # append(regs[%d])", code.a);
+			return String.format(" # append(regs[%d])", a);
 		case LOAD_VAR:
 			return String
-					.format(" # regs[%d] = vars[regs[%d]]", code.b, code.a);
+					.format(" # regs[%d] = vars[regs[%d]]", b, a);
 		case SET_VAR:
 			return String
-					.format(" # vars[%s] = regs[%d]", pool[code.a], code.b);
+					.format(" # vars[%s] = regs[%d]", pool[a], b);
 		case GT:
-			return String.format(" # regs[%s] = regs[%d] > regs[%d]", code.a,
-					code.a, code.b);
+			return String.format(" # regs[%s] = regs[%d] > regs[%d]", a,
+					a, b);
 		case GE:
-			return String.format(" # regs[%s] = regs[%d] >= regs[%d]", code.a,
-					code.a, code.b);
+			return String.format(" # regs[%s] = regs[%d] >= regs[%d]", a,
+					a, b);
 		case LT:
-			return String.format(" # regs[%s] = regs[%d] < regs[%d]", code.a,
-					code.a, code.b);
+			return String.format(" # regs[%s] = regs[%d] < regs[%d]", a,
+					a, b);
 		case LE:
-			return String.format(" # regs[%s] = regs[%d] <= regs[%d]", code.a,
-					code.a, code.b);
+			return String.format(" # regs[%s] = regs[%d] <= regs[%d]", a,
+					a, b);
 		case FOR_START:
-			return String.format(" # MAKE_ITER(regs[%d])", code.a);
+			return String.format(" # MAKE_ITER(regs[%d])", a);
 		case FOR_ITER:
-			return String.format(" # regs[%d] = FOR_ITER(); GOTO %d IF END", code.a, code.b);
+			return String.format(" # regs[%d] = FOR_ITER(); GOTO %d IF END", a, b);
 		case MODULO:
-			return String.format(" # regs[%d] = regs[%d] %% regs[%d]", code.a,
-					code.a, code.b);
+			return String.format(" # regs[%d] = regs[%d] %% regs[%d]", a,
+					a, b);
 		case MAKE_RANGE:
-			return String.format(" # regs[%d] = regs[%d]..regs[%d]", code.a,
-					code.a, code.b);
+			return String.format(" # regs[%d] = regs[%d]..regs[%d]", a,
+					a, b);
 		case SUBTRACT:
-			return String.format(" # regs[%d] = regs[%d] - regs[%d]", code.a,
-					code.a, code.b);
+			return String.format(" # regs[%d] = regs[%d] - regs[%d]", a,
+					a, b);
 		case FUNCALL:
 			return String.format(" # regs[%d] = funcall(regs[%d]..regs[%d])",
-					code.a, code.a, code.b);
+					a, a, b);
 		case APPEND_RAW: {
-			Object obj = irep.getPool()[code.a];
+			Object obj = irep.getPool()[a];
 			return obj == null ? "(null)" : " # APPEND_RAW("
 					+ escape(obj.toString()) + ")";
 		}
 		case JUMP:
-			return " # GOTO " + (code.a + pc);
+			return " # GOTO " + (a + pc);
 		case JUMP_IF_FALSE:
-			return " # GOTO " + (code.b + pc) + " UNLESS " + code.a;
+			return " # GOTO " + (b + pc) + " UNLESS " + a;
+		case LOAD_INT_I:
+			return String.format(" # iregs[%d] = %d", b, a);
+		case LOOP_INDEX_I:
+			return String.format(" # iregs[%d] = loop.index", a);
+		case LOOP_COUNT_I:
+			return String.format(" # iregs[%d] = loop.count", a);
+		case ADD_I:
+			return String.format(" # iregs[%d] = iregs[%d] + iregs[%d]", a,
+					a, b);
+		case SUBTRACT_I:
+			return String.format(" # iregs[%d] = iregs[%d] - iregs[%d]", a,
+					a, b);
+		case MULTIPLY_I:
+			return String.format(" # iregs[%d] = iregs[%d] * iregs[%d]", a,
+					a, b);
+		case DIVIDE_I:
+			return String.format(" # iregs[%d] = iregs[%d] / iregs[%d]", a,
+					a, b);
+		case MODULO_I:
+			return String.format(" # iregs[%d] = iregs[%d] %% iregs[%d]", a,
+					a, b);
+		case EQUALS_I:
+			return String.format(" # regs[%d] = iregs[%d] == iregs[%d]", a,
+					a, b);
+		case NE_I:
+			return String.format(" # regs[%d] = iregs[%d] != iregs[%d]", a,
+					a, b);
+		case GT_I:
+			return String.format(" # regs[%d] = iregs[%d] > iregs[%d]", a,
+					a, b);
+		case GE_I:
+			return String.format(" # regs[%d] = iregs[%d] >= iregs[%d]", a,
+					a, b);
+		case LT_I:
+			return String.format(" # regs[%d] = iregs[%d] < iregs[%d]", a,
+					a, b);
+		case LE_I:
+			return String.format(" # regs[%d] = iregs[%d] <= iregs[%d]", a,
+					a, b);
+		case BOX_I:
+			return String.format(" # regs[%d] = iregs[%d]", a, a);
+		case APPEND_VAR:
+			return String.format(" # append(vars[%s])", pool[a]);
+		case ATTRIBUTE_CONST:
+			return String.format(" # regs[%d] = regs[%d].%s", a, a, pool[b]);
+		case APPEND_ATTR:
+			return String.format(" # append(regs[%d].%s)", a, pool[b]);
+		case JUMP_UNLESS_EQUALS:
+			return String.format(" # GOTO %d UNLESS regs[%d] == regs[%d]",
+					b + pc, a, a + 1);
+		case JUMP_UNLESS_NE:
+			return String.format(" # GOTO %d UNLESS regs[%d] != regs[%d]",
+					b + pc, a, a + 1);
+		case JUMP_UNLESS_GT:
+			return String.format(" # GOTO %d UNLESS regs[%d] > regs[%d]",
+					b + pc, a, a + 1);
+		case JUMP_UNLESS_GE:
+			return String.format(" # GOTO %d UNLESS regs[%d] >= regs[%d]",
+					b + pc, a, a + 1);
+		case JUMP_UNLESS_LT:
+			return String.format(" # GOTO %d UNLESS regs[%d] < regs[%d]",
+					b + pc, a, a + 1);
+		case JUMP_UNLESS_LE:
+			return String.format(" # GOTO %d UNLESS regs[%d] <= regs[%d]",
+					b + pc, a, a + 1);
 		default: // Support all types.
 			return "";
 		}
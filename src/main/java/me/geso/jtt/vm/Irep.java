@@ -1,36 +1,248 @@
 package me.geso.jtt.vm;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import me.geso.jtt.Source;
 
 public class Irep {
-	private final Code[] iseq;
+	/**
+	 * Number of ints per instruction in the iseq: op, a and b.
+	 */
+	public static final int STRIDE = 3;
+	private static final OP[] OPS = OP.values();
+
+	/**
+	 * Packed instructions. Each instruction is STRIDE ints: the ordinal of
+	 * OP, the A register and the B register.
+	 */
+	private final int[] iseq;
 	private final Object[] pool;
-	private final Integer[] lineNumbers;
+	/**
+	 * Run-length encoded line numbers: pairs of the first pc and the line
+	 * number, ordered by pc.
+	 */
+	private final int[] lineTable;
 	private final Source source;
+	private final OutputSizeStats outputSizeStats = new OutputSizeStats();
 	/**
-	 * Save the last time string size.
+	 * Names of the templates included or wrapped by this template.
 	 */
-	private int capacityHint = -1;
+	private final List<String> dependencies;
 	private final int loopStackSize;
 	private final int registerCount;
+	/**
+	 * Inline caches for ATTRIBUTE instructions, indexed by pc.
+	 */
+	private final AttributeCache[] attributeCaches;
+	/**
+	 * Inline caches for METHOD_CALL instructions, indexed by pc.
+	 */
+	private final MethodCallCache[] methodCallCaches;
+	/**
+	 * Templates linked to the INCLUDE and WRAP instructions, indexed by pc.
+	 * They're set before the irep is shared.
+	 */
+	private final LinkedTemplate[] linkedTemplates;
+	/**
+	 * Give up the quickening at the pc after this many guard failures.
+	 */
+	private static final int MAX_DEOPTS = 4;
+	/**
+	 * Guard failures of the quickened instructions, indexed by pc.
+	 */
+	private final byte[] deopts;
+	/**
+	 * The JVM class compiled from this irep. See IrepClassGenerator.
+	 */
+	private volatile CompiledIrep compiledIrep;
+	private volatile boolean notCompilable = false;
+	private int runCount = 0;
 
 	public Irep(List<Code> iseq, List<Object> pool,
 			List<Integer> lineNumbers, Source source, int loopStackSize, int registerCount) {
-		this.iseq = iseq.toArray(new Code[iseq.size()]);
-		this.pool = pool.toArray(new Object[pool.size()]);
-		this.lineNumbers = lineNumbers.toArray(new Integer[lineNumbers.size()]);
+		this(iseq, pool, lineNumbers, source, loopStackSize, registerCount,
+				Collections.emptyList());
+	}
+
+	/**
+	 * @param dependencies
+	 *            Names of the templates included or wrapped by this
+	 *            template.
+	 */
+	public Irep(List<Code> iseq, List<Object> pool,
+			List<Integer> lineNumbers, Source source, int loopStackSize,
+			int registerCount, List<String> dependencies) {
+		this(pack(iseq), encodeLineNumbers(lineNumbers), pool
+				.toArray(new Object[pool.size()]), source, loopStackSize,
+				registerCount, dependencies);
+	}
+
+	/**
+	 * Create the irep from the packed form.
+	 * 
+	 * @param iseq
+	 *            Packed instructions. See getIseq().
+	 * @param lineTable
+	 *            Run-length encoded line numbers. See getLineTable().
+	 */
+	public Irep(int[] iseq, int[] lineTable, Object[] pool, Source source,
+			int loopStackSize, int registerCount) {
+		this(iseq, lineTable, pool, source, loopStackSize, registerCount,
+				Collections.emptyList());
+	}
+
+	public Irep(int[] iseq, int[] lineTable, Object[] pool, Source source,
+			int loopStackSize, int registerCount, List<String> dependencies) {
+		this.iseq = iseq;
+		this.dependencies = Collections.unmodifiableList(new ArrayList<>(
+				dependencies));
+		this.lineTable = lineTable;
+		this.pool = pool;
 		this.source = source;
 		this.loopStackSize = loopStackSize;
 		this.registerCount = registerCount;
+
+		int length = this.getIseqLength();
+		this.attributeCaches = new AttributeCache[length];
+		this.methodCallCaches = new MethodCallCache[length];
+		for (int i = 0; i < length; ++i) {
+			// The packed iseq may be saved after the quickening.
+			switch (getGenericOP(this.getOP(i))) {
+			case ATTRIBUTE:
+			case ATTRIBUTE_CONST:
+			case APPEND_ATTR:
+				this.attributeCaches[i] = new AttributeCache();
+				break;
+			case METHOD_CALL:
+				this.methodCallCaches[i] = new MethodCallCache();
+				break;
+			default:
+				break;
+			}
+		}
+		this.deopts = new byte[length];
+		this.linkedTemplates = new LinkedTemplate[length];
+	}
+
+	private static int[] pack(List<Code> codes) {
+		int[] iseq = new int[codes.size() * STRIDE];
+		for (int i = 0; i < codes.size(); ++i) {
+			Code code = codes.get(i);
+			iseq[i * STRIDE] = code.op.ordinal();
+			iseq[i * STRIDE + 1] = code.a;
+			iseq[i * STRIDE + 2] = code.b;
+		}
+		return iseq;
+	}
+
+	private static int[] encodeLineNumbers(List<Integer> lineNumbers) {
+		int[] table = new int[lineNumbers.size() * 2];
+		int n = 0;
+		for (int pc = 0; pc < lineNumbers.size(); ++pc) {
+			int line = lineNumbers.get(pc);
+			if (n == 0 || table[n - 1] != line) {
+				table[n++] = pc;
+				table[n++] = line;
+			}
+		}
+		return Arrays.copyOf(table, n);
 	}
 
-	public Code[] getIseq() {
+	/**
+	 * Get the packed instructions. Instruction at pc is
+	 * iseq[pc*STRIDE..pc*STRIDE+2]: the ordinal of OP, A and B.
+	 */
+	public int[] getIseq() {
 		return iseq;
 	}
 
+	/**
+	 * Get a copy of the packed instructions, with the quickened instructions
+	 * rewritten back to the generic forms. Use this to save the irep.
+	 */
+	public int[] getCanonicalIseq() {
+		int[] canonical = iseq.clone();
+		for (int i = 0; i < canonical.length; i += STRIDE) {
+			canonical[i] = getGenericOP(OPS[canonical[i]]).ordinal();
+		}
+		return canonical;
+	}
+
+	/**
+	 * Get the generic form of the quickened OP.
+	 * 
+	 * @return op itself if it's not a quickened one.
+	 */
+	static OP getGenericOP(OP op) {
+		switch (op) {
+		case ADD_INT:
+		case ADD_DOUBLE:
+			return OP.ADD;
+		case SUBTRACT_INT:
+		case SUBTRACT_DOUBLE:
+			return OP.SUBTRACT;
+		case MULTIPLY_INT:
+		case MULTIPLY_DOUBLE:
+			return OP.MULTIPLY;
+		case GT_INT:
+		case GT_DOUBLE:
+			return OP.GT;
+		case GE_INT:
+		case GE_DOUBLE:
+			return OP.GE;
+		case LT_INT:
+		case LT_DOUBLE:
+			return OP.LT;
+		case LE_INT:
+		case LE_DOUBLE:
+			return OP.LE;
+		case EQUALS_INT:
+		case EQUALS_STRING:
+			return OP.EQUALS;
+		case ATTRIBUTE_CONST_MAP:
+		case ATTRIBUTE_CONST_BEAN:
+			return OP.ATTRIBUTE_CONST;
+		case APPEND_ATTR_MAP:
+		case APPEND_ATTR_BEAN:
+			return OP.APPEND_ATTR;
+		case METHOD_CALL_CACHED:
+			return OP.METHOD_CALL;
+		default:
+			return op;
+		}
+	}
+
+	/**
+	 * Get the number of instructions.
+	 */
+	public int getIseqLength() {
+		return iseq.length / STRIDE;
+	}
+
+	public OP getOP(int pc) {
+		return OPS[iseq[pc * STRIDE]];
+	}
+
+	public int getA(int pc) {
+		return iseq[pc * STRIDE + 1];
+	}
+
+	public int getB(int pc) {
+		return iseq[pc * STRIDE + 2];
+	}
+
+	/**
+	 * Get the run-length encoded line numbers: pairs of the first pc and
+	 * the line number.
+	 */
+	public int[] getLineTable() {
+		return lineTable;
+	}
+
 	public Object[] getPool() {
 		return pool;
 	}
@@ -39,8 +251,91 @@ public class Irep {
 		return new Disassembler().disasm(this, -1);
 	}
 
+	/**
+	 * Link the template to the INCLUDE or WRAP instruction. The template
+	 * loader does it before the irep is cached.
+	 */
+	public void setLinkedTemplate(int pc, LinkedTemplate linked) {
+		OP op = getOP(pc);
+		if (op != OP.INCLUDE && op != OP.WRAP) {
+			throw new IllegalArgumentException("Not INCLUDE nor WRAP: " + op);
+		}
+		linkedTemplates[pc] = linked;
+	}
+
+	/**
+	 * @return null if no template is linked to the instruction.
+	 */
+	public LinkedTemplate getLinkedTemplate(int pc) {
+		return linkedTemplates[pc];
+	}
+
+	/**
+	 * Get the inline cache for the ATTRIBUTE instruction.
+	 * 
+	 * @return null if the instruction is not an ATTRIBUTE.
+	 */
+	AttributeCache getAttributeCache(int pc) {
+		if (pc < 0 || pc >= attributeCaches.length) {
+			return null;
+		}
+		return attributeCaches[pc];
+	}
+
+	/**
+	 * Get the inline cache for the METHOD_CALL instruction.
+	 * 
+	 * @return null if the instruction is not a METHOD_CALL.
+	 */
+	MethodCallCache getMethodCallCache(int pc) {
+		if (pc < 0 || pc >= methodCallCaches.length) {
+			return null;
+		}
+		return methodCallCaches[pc];
+	}
+
+	/**
+	 * Rewrite the instruction at pc into the quickened form. The operands
+	 * are not changed.
+	 * 
+	 * Irep is shared between threads. The OP is a single int in iseq, then
+	 * other threads see either the generic form or the quickened form. Both
+	 * are correct, since the quickened form checks the operand types and
+	 * falls back to the generic one.
+	 */
+	void quicken(int pc, OP op) {
+		if (deopts[pc] < MAX_DEOPTS) {
+			iseq[pc * STRIDE] = op.ordinal();
+		}
+	}
+
+	/**
+	 * Rewrite the quickened instruction at pc back to the generic form,
+	 * since the guard failed.
+	 */
+	void deoptimize(int pc, OP op) {
+		iseq[pc * STRIDE] = op.ordinal();
+		// The counter is not thread safe. But it's just a hint.
+		if (deopts[pc] < MAX_DEOPTS) {
+			++deopts[pc];
+		}
+	}
+
 	public int getLineNumber(int pos) {
-		return lineNumbers[pos];
+		// Binary search the last entry that starts at or before pos.
+		int lo = 0;
+		int hi = lineTable.length / 2 - 1;
+		int line = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (lineTable[mid * 2] <= pos) {
+				line = lineTable[mid * 2 + 1];
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return line;
 	}
 
 	public String getFileName() {
@@ -51,12 +346,85 @@ public class Irep {
 		return source.getSourceLines();
 	}
 	
-	public int getCapacityHint() {
-		return capacityHint;
+	/**
+	 * Get the names of the templates included or wrapped by this template,
+	 * in the order of appearance.
+	 */
+	public List<String> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Get the output size statistics, to presize the output buffer.
+	 */
+	public OutputSizeStats getOutputSizeStats() {
+		return outputSizeStats;
 	}
 
-	public void setCapacityHint(int capacityHint) {
-		this.capacityHint = capacityHint;
+	/**
+	 * Get the compiled class for this irep. The irep is compiled when it was
+	 * run more than the threshold.
+	 * 
+	 * @param threshold
+	 * @return null if the irep is not hot yet, or it can't be compiled.
+	 */
+	public CompiledIrep getCompiledIrep(int threshold) {
+		CompiledIrep compiled = this.compiledIrep;
+		if (compiled != null || notCompilable) {
+			return compiled;
+		}
+		// The counter is not thread safe. But it's just a hint.
+		if (runCount++ < threshold) {
+			return null;
+		}
+		synchronized (this) {
+			if (this.compiledIrep == null && !notCompilable) {
+				this.compiledIrep = new IrepClassGenerator().generate(this);
+				this.notCompilable = this.compiledIrep == null;
+			}
+			return this.compiledIrep;
+		}
+	}
+
+	/**
+	 * Estimate the retained memory size of this irep, in bytes. This is a
+	 * rough estimation for the cache eviction.
+	 * 
+	 * The inline caches and the linked templates are filled after the irep
+	 * is cached, so they're counted at their full size. Then the estimate
+	 * doesn't grow with the renderings. The linked ireps are counted by
+	 * their own entries. The class generated by IrepClassGenerator lives in
+	 * the metaspace, and it's not counted.
+	 */
+	public long estimateSize() {
+		// object headers, arrays and the fields.
+		long size = 128;
+		// instructions, line number table and inline cache slots.
+		size += iseq.length * 4 + lineTable.length * 4
+				+ attributeCaches.length * 4 + methodCallCaches.length * 4
+				+ deopts.length + linkedTemplates.length * 4;
+		for (int pc = 0; pc < attributeCaches.length; ++pc) {
+			if (attributeCaches[pc] != null) {
+				size += AttributeCache.MAX_RETAINED_SIZE;
+			}
+			if (methodCallCaches[pc] != null) {
+				size += MethodCallCache.MAX_RETAINED_SIZE;
+			}
+			OP op = this.getOP(pc);
+			if (op == OP.INCLUDE || op == OP.WRAP) {
+				// LinkedTemplate
+				size += 24;
+			}
+		}
+		for (Object o : pool) {
+			size += 8;
+			if (o instanceof String) {
+				size += 40 + ((String) o).length() * 2;
+			} else {
+				size += 16;
+			}
+		}
+		return size;
 	}
 
 	public int getLoopStackSize() {
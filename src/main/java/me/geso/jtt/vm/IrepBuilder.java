@@ -21,6 +21,7 @@ public class IrepBuilder {
 	private final List<Integer> lineNumbers = new ArrayList<>();
 	private final Source source;
 	private int loopStackSize = 0;
+	private final List<String> dependencies = new ArrayList<>();
 
 	public IrepBuilder(Source source) {
 		this.source = source;
@@ -99,9 +100,157 @@ public class IrepBuilder {
 		return iseq.size();
 	}
 
+	/**
+	 * Get the instruction. Optimization passes may modify the operands.
+	 */
+	public Code getCode(int pc) {
+		return iseq.get(pc);
+	}
+
+	/**
+	 * Replace the instruction. The line number is kept.
+	 */
+	public void setCode(int pc, Code code) {
+		iseq.set(pc, code);
+	}
+
+	/**
+	 * Is the instruction a jump? Jumps have the target pc in an operand.
+	 */
+	public static boolean isJump(OP op) {
+		switch (op) {
+		case JUMP:
+		case JUMP_ABS:
+		case JUMP_IF_FALSE:
+		case FOR_ITER:
+		case JUMP_UNLESS_EQUALS:
+		case JUMP_UNLESS_NE:
+		case JUMP_UNLESS_GT:
+		case JUMP_UNLESS_GE:
+		case JUMP_UNLESS_LT:
+		case JUMP_UNLESS_LE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Get the absolute target pc of the jump instruction.
+	 */
+	public int getJumpTarget(int pc) {
+		Code code = iseq.get(pc);
+		switch (code.op) {
+		case JUMP:
+			return pc + code.a;
+		case JUMP_ABS:
+			return code.a;
+		case JUMP_IF_FALSE:
+		case JUMP_UNLESS_EQUALS:
+		case JUMP_UNLESS_NE:
+		case JUMP_UNLESS_GT:
+		case JUMP_UNLESS_GE:
+		case JUMP_UNLESS_LT:
+		case JUMP_UNLESS_LE:
+			return pc + code.b;
+		case FOR_ITER:
+			return code.b;
+		default:
+			throw new IllegalArgumentException("Not a jump: " + code);
+		}
+	}
+
+	/**
+	 * Set the absolute target pc of the jump instruction.
+	 */
+	public void setJumpTarget(int pc, int target) {
+		Code code = iseq.get(pc);
+		switch (code.op) {
+		case JUMP:
+			code.a = target - pc;
+			break;
+		case JUMP_ABS:
+			code.a = target;
+			break;
+		case JUMP_IF_FALSE:
+		case JUMP_UNLESS_EQUALS:
+		case JUMP_UNLESS_NE:
+		case JUMP_UNLESS_GT:
+		case JUMP_UNLESS_GE:
+		case JUMP_UNLESS_LT:
+		case JUMP_UNLESS_LE:
+			code.b = target - pc;
+			break;
+		case FOR_ITER:
+			code.b = target;
+			break;
+		default:
+			throw new IllegalArgumentException("Not a jump: " + code);
+		}
+	}
+
+	/**
+	 * Remove the instructions. Jumps to a removed instruction are moved to
+	 * the next remaining instruction. Line numbers are removed together.
+	 * 
+	 * @param removed
+	 *            removed[pc] is true if the instruction should be removed.
+	 * @return true if any instruction was removed.
+	 */
+	public boolean removeCodes(boolean[] removed) {
+		int size = iseq.size();
+		// newIndex[pc] is the new pc of the first remaining instruction at
+		// or after pc.
+		int[] newIndex = new int[size + 1];
+		int n = 0;
+		for (int pc = 0; pc < size; ++pc) {
+			newIndex[pc] = n;
+			if (!removed[pc]) {
+				++n;
+			}
+		}
+		newIndex[size] = n;
+		if (n == size) {
+			return false;
+		}
+
+		List<Code> codes = new ArrayList<>(n);
+		List<Integer> lines = new ArrayList<>(n);
+		List<Integer> targets = new ArrayList<>(n);
+		for (int pc = 0; pc < size; ++pc) {
+			if (!removed[pc]) {
+				Code code = iseq.get(pc);
+				codes.add(code);
+				lines.add(lineNumbers.get(pc));
+				targets.add(isJump(code.op) ? newIndex[getJumpTarget(pc)]
+						: -1);
+			}
+		}
+
+		iseq.clear();
+		iseq.addAll(codes);
+		lineNumbers.clear();
+		lineNumbers.addAll(lines);
+		for (int pc = 0; pc < n; ++pc) {
+			if (targets.get(pc) != -1) {
+				setJumpTarget(pc, targets.get(pc));
+			}
+		}
+		return true;
+	}
+
 	public Irep build(int registerNum) {
 		return new Irep(iseq, pool, this.lineNumbers, this.source,
-				this.loopStackSize, registerNum);
+				this.loopStackSize, registerNum, this.dependencies);
+	}
+
+	/**
+	 * Record the name of the template included or wrapped by this template.
+	 */
+	public void addDependency(String fileName) {
+		if (!dependencies.contains(fileName)) {
+			dependencies.add(fileName);
+		}
 	}
 
 	public void increaseLoopStackSize() {
@@ -0,0 +1,219 @@
+package me.geso.jtt.vm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Compile the Irep into the JVM class.
+ * 
+ * Control flow instructions are compiled into the real JVM branches. Other
+ * instructions are compiled into the direct call for the VM's op* method. Then
+ * the JIT compiler can inline the whole template.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class IrepClassGenerator implements Opcodes {
+	/**
+	 * HotSpot doesn't JIT compile the method larger than 8000 bytes
+	 * (HugeMethodLimit). The interpreted render() is much slower than the VM's
+	 * interpreter loop, so give up before reaching the limit.
+	 */
+	static final int MAX_CODE_SIZE = 6000;
+	private static final AtomicInteger sequence = new AtomicInteger();
+	private static final String VM_NAME = Type.getInternalName(VM.class);
+
+	/**
+	 * Generate the class for the irep.
+	 * 
+	 * @param irep
+	 * @return Compiled instance. Returns null if the irep can't be compiled.
+	 */
+	public CompiledIrep generate(Irep irep) {
+		int length = irep.getIseqLength();
+
+		String className = "me/geso/jtt/vm/generated/CompiledIrep"
+				+ sequence.incrementAndGet();
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_6, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, className, null,
+				"java/lang/Object",
+				new String[] { Type.getInternalName(CompiledIrep.class) });
+
+		MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V",
+				null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>",
+				"()V");
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "render", "(L"
+				+ VM_NAME + ";)V", null, null);
+		mv.visitCode();
+		Label[] labels = new Label[length];
+		for (int i = 0; i < length; ++i) {
+			labels[i] = new Label();
+		}
+		for (int pc = 0; pc < length; ++pc) {
+			OP op = irep.getOP(pc);
+			int a = irep.getA(pc);
+			int b = irep.getB(pc);
+			mv.visitLabel(labels[pc]);
+			if (labels[pc].getOffset() > MAX_CODE_SIZE) {
+				return null;
+			}
+			switch (op) {
+			case RETURN:
+				mv.visitInsn(RETURN);
+				break;
+			case JUMP:
+				if (!isValidTarget(length, pc + a)) {
+					return null;
+				}
+				mv.visitJumpInsn(GOTO, labels[pc + a]);
+				break;
+			case JUMP_ABS:
+				if (!isValidTarget(length, a)) {
+					return null;
+				}
+				mv.visitJumpInsn(GOTO, labels[a]);
+				break;
+			case JUMP_IF_FALSE:
+				if (!isValidTarget(length, pc + b)) {
+					return null;
+				}
+				mv.visitVarInsn(ALOAD, 1);
+				pushInt(mv, a);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VM_NAME, "isTrueReg",
+						"(I)Z");
+				mv.visitJumpInsn(IFEQ, labels[pc + b]);
+				break;
+			case JUMP_UNLESS_EQUALS:
+			case JUMP_UNLESS_NE:
+			case JUMP_UNLESS_GT:
+			case JUMP_UNLESS_GE:
+			case JUMP_UNLESS_LT:
+			case JUMP_UNLESS_LE:
+				if (!isValidTarget(length, pc + b)) {
+					return null;
+				}
+				// The comparison may throw the error.
+				mv.visitVarInsn(ALOAD, 1);
+				pushInt(mv, pc);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VM_NAME, "setPC", "(I)V");
+				mv.visitVarInsn(ALOAD, 1);
+				pushInt(mv, a);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VM_NAME,
+						getCompareMethodName(op), "(I)Z");
+				mv.visitJumpInsn(IFEQ, labels[pc + b]);
+				break;
+			case FOR_ITER:
+				if (!isValidTarget(length, b)) {
+					return null;
+				}
+				mv.visitVarInsn(ALOAD, 1);
+				pushInt(mv, a);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VM_NAME, "opForIter",
+						"(I)Z");
+				mv.visitJumpInsn(IFEQ, labels[b]);
+				break;
+			default: {
+				String methodName = getMethodName(op);
+				try {
+					VM.class.getMethod(methodName, int.class, int.class);
+				} catch (NoSuchMethodException e) {
+					// The VM doesn't provide the instruction as a method.
+					return null;
+				}
+				mv.visitVarInsn(ALOAD, 1);
+				pushInt(mv, pc);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VM_NAME, "setPC", "(I)V");
+				mv.visitVarInsn(ALOAD, 1);
+				pushInt(mv, a);
+				pushInt(mv, b);
+				mv.visitMethodInsn(INVOKEVIRTUAL, VM_NAME, methodName,
+						"(II)V");
+				break;
+			}
+			}
+		}
+		// Irep built by hand may not have RETURN at the end.
+		mv.visitInsn(RETURN);
+		Label end = new Label();
+		mv.visitLabel(end);
+		if (end.getOffset() > MAX_CODE_SIZE) {
+			return null;
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+
+		try {
+			Class<?> klass = new GeneratedClassLoader(
+					VM.class.getClassLoader()).define(
+					className.replace('/', '.'), cw.toByteArray());
+			return (CompiledIrep) klass.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the VM's method name for the OP. e.g. LOAD_CONST to opLoadConst.
+	 */
+	static String getMethodName(OP op) {
+		StringBuilder buf = new StringBuilder("op");
+		for (String part : op.name().split("_")) {
+			buf.append(part.charAt(0));
+			buf.append(part.substring(1).toLowerCase());
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Get the VM's method name for JUMP_UNLESS_*. e.g. JUMP_UNLESS_GT to
+	 * isGtReg.
+	 */
+	static String getCompareMethodName(OP op) {
+		String name = op.name().substring("JUMP_UNLESS_".length());
+		return "is" + name.charAt(0) + name.substring(1).toLowerCase()
+				+ "Reg";
+	}
+
+	private boolean isValidTarget(int length, int target) {
+		return target >= 0 && target < length;
+	}
+
+	private void pushInt(MethodVisitor mv, int i) {
+		if (i >= -1 && i <= 5) {
+			mv.visitInsn(ICONST_0 + i);
+		} else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, i);
+		} else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, i);
+		} else {
+			mv.visitLdcInsn(i);
+		}
+	}
+
+	/**
+	 * Each generated class has its own class loader. Then the class can be
+	 * unloaded with the irep.
+	 */
+	private static class GeneratedClassLoader extends ClassLoader {
+		GeneratedClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package me.geso.jtt.vm;
+
+/**
+ * Jump threading.
+ * 
+ * <ul>
+ * <li>A jump to an unconditional jump goes to the final target directly.</li>
+ * <li>An unconditional jump to RETURN is replaced by RETURN.</li>
+ * <li>A jump to the next instruction is removed.</li>
+ * </ul>
+ * 
+ * @author tokuhirom
+ *
+ */
+public class JumpThreadingPass implements PeepholePass {
+	@Override
+	public String getName() {
+		return "jump-threading";
+	}
+
+	@Override
+	public boolean run(IrepBuilder builder) {
+		int size = builder.getSize();
+		boolean changed = false;
+		boolean[] removed = new boolean[size];
+		for (int pc = 0; pc < size; ++pc) {
+			Code code = builder.getCode(pc);
+			if (!IrepBuilder.isJump(code.op)) {
+				continue;
+			}
+
+			int target = builder.getJumpTarget(pc);
+			int original = target;
+			// Follow the chain. The step limit stops at the infinite loop.
+			for (int steps = 0; steps < size && target < size; ++steps) {
+				OP op = builder.getCode(target).op;
+				if (op != OP.JUMP && op != OP.JUMP_ABS) {
+					break;
+				}
+				target = builder.getJumpTarget(target);
+			}
+			if (target != original) {
+				builder.setJumpTarget(pc, target);
+				changed = true;
+			}
+
+			if ((code.op == OP.JUMP || code.op == OP.JUMP_ABS)
+					&& target < size
+					&& builder.getCode(target).op == OP.RETURN) {
+				builder.setCode(pc, new Code(OP.RETURN));
+				changed = true;
+			} else if (target == pc + 1
+					&& (code.op == OP.JUMP || code.op == OP.JUMP_ABS
+							|| code.op == OP.JUMP_IF_FALSE)) {
+				// JUMP_IF_FALSE has no side effect. FOR_ITER and the
+				// comparisons have.
+				removed[pc] = true;
+			}
+		}
+		return builder.removeCodes(removed) || changed;
+	}
+}
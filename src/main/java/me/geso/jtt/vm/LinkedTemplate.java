@@ -0,0 +1,25 @@
+package me.geso.jtt.vm;
+
+/**
+ * The template resolved at link time for an INCLUDE or WRAP instruction.
+ * 
+ * @author tokuhirom
+ *
+ */
+public final class LinkedTemplate {
+	private final String filePath;
+	private final Irep irep;
+
+	public LinkedTemplate(String filePath, Irep irep) {
+		this.filePath = filePath;
+		this.irep = irep;
+	}
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public Irep getIrep() {
+		return irep;
+	}
+}
@@ -0,0 +1,386 @@
+package me.geso.jtt.vm;
+
+import java.util.BitSet;
+
+/**
+ * Register liveness analysis on the control flow graph of IrepBuilder's
+ * instructions. Also knows which registers each instruction reads and
+ * writes.
+ *
+ * The int registers(iregs) share the index with regs. The compiler doesn't
+ * use one index for both at the same time, then they're analyzed as one.
+ * But only regs can be renamed, since MOVE copies regs.
+ *
+ * @author tokuhirom
+ *
+ */
+class Liveness {
+	private final BitSet[] liveOut;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             The instructions contain an unsupported OP.
+	 */
+	Liveness(IrepBuilder builder) {
+		int size = builder.getSize();
+		BitSet[] uses = new BitSet[size];
+		int[] defs = new int[size];
+		for (int pc = 0; pc < size; ++pc) {
+			Code code = builder.getCode(pc);
+			if (!isSupported(code.op)) {
+				throw new IllegalArgumentException("Unsupported: " + code.op);
+			}
+			uses[pc] = new BitSet();
+			addUses(code, uses[pc]);
+			defs[pc] = getDef(code);
+		}
+
+		BitSet[] liveIn = new BitSet[size];
+		this.liveOut = new BitSet[size];
+		for (int pc = 0; pc < size; ++pc) {
+			liveIn[pc] = new BitSet();
+			liveOut[pc] = new BitSet();
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int pc = size - 1; pc >= 0; --pc) {
+				Code code = builder.getCode(pc);
+				BitSet out = new BitSet();
+				if (hasFallthrough(code.op) && pc + 1 < size) {
+					out.or(liveIn[pc + 1]);
+				}
+				if (IrepBuilder.isJump(code.op)) {
+					int target = builder.getJumpTarget(pc);
+					if (target < size) {
+						out.or(liveIn[target]);
+					}
+				}
+
+				BitSet in = (BitSet) out.clone();
+				if (defs[pc] >= 0) {
+					in.clear(defs[pc]);
+				}
+				in.or(uses[pc]);
+
+				if (!out.equals(liveOut[pc]) || !in.equals(liveIn[pc])) {
+					liveOut[pc] = out;
+					liveIn[pc] = in;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Is the register read after the instruction?
+	 */
+	boolean isLiveOut(int pc, int reg) {
+		return liveOut[pc].get(reg);
+	}
+
+	static boolean hasFallthrough(OP op) {
+		switch (op) {
+		case JUMP:
+		case JUMP_ABS:
+		case RETURN:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	static boolean isSupported(OP op) {
+		switch (op) {
+		case LOAD_CONST:
+		case LOAD_INT:
+		case APPEND_RAW:
+		case APPEND:
+		case ADD:
+		case MODULO:
+		case SUBTRACT:
+		case MULTIPLY:
+		case DIVIDE:
+		case ANDAND:
+		case OROR:
+		case MATCH:
+		case EQUALS:
+		case NE:
+		case GT:
+		case GE:
+		case LT:
+		case LE:
+		case CONCAT:
+		case GET_ELEM:
+		case ATTRIBUTE:
+		case MAKE_RANGE:
+		case LOAD_TRUE:
+		case LOAD_FALSE:
+		case LOAD_NULL:
+		case MOVE:
+		case LOAD_VAR:
+		case SET_VAR:
+		case MAKE_ARRAY:
+		case MAKE_MAP:
+		case SPRINTF:
+		case FUNCALL:
+		case METHOD_CALL:
+		case LC:
+		case UC:
+		case URI_ESCAPE:
+		case NOT:
+		case FOR_START:
+		case FOR_ITER:
+		case JUMP:
+		case JUMP_ABS:
+		case JUMP_IF_FALSE:
+		case INCLUDE:
+		case WRAP_START:
+		case UNWIND_CAPTURE:
+		case WRAP:
+		case LOOP_INDEX:
+		case LOOP_COUNT:
+		case LOOP_HAS_NEXT:
+		case RETURN:
+		case APPEND_VAR:
+		case ATTRIBUTE_CONST:
+		case APPEND_ATTR:
+		case JUMP_UNLESS_EQUALS:
+		case JUMP_UNLESS_NE:
+		case JUMP_UNLESS_GT:
+		case JUMP_UNLESS_GE:
+		case JUMP_UNLESS_LT:
+		case JUMP_UNLESS_LE:
+		case LOAD_INT_I:
+		case LOOP_INDEX_I:
+		case LOOP_COUNT_I:
+		case ADD_I:
+		case SUBTRACT_I:
+		case MULTIPLY_I:
+		case DIVIDE_I:
+		case MODULO_I:
+		case EQUALS_I:
+		case NE_I:
+		case GT_I:
+		case GE_I:
+		case LT_I:
+		case LE_I:
+		case BOX_I:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Add the registers read by the instruction.
+	 */
+	static void addUses(Code code, BitSet uses) {
+		switch (code.op) {
+		case APPEND:
+		case JUMP_IF_FALSE:
+		case INCLUDE:
+		case WRAP:
+		case FOR_START:
+		case LC:
+		case UC:
+		case URI_ESCAPE:
+		case NOT:
+		case ATTRIBUTE_CONST:
+		case APPEND_ATTR:
+		case BOX_I:
+			uses.set(code.a);
+			break;
+		case MOVE:
+		case SET_VAR:
+			uses.set(code.b);
+			break;
+		case ADD:
+		case MODULO:
+		case SUBTRACT:
+		case MULTIPLY:
+		case DIVIDE:
+		case ANDAND:
+		case OROR:
+		case MATCH:
+		case EQUALS:
+		case NE:
+		case GT:
+		case GE:
+		case LT:
+		case LE:
+		case CONCAT:
+		case GET_ELEM:
+		case ATTRIBUTE:
+		case MAKE_RANGE:
+		case ADD_I:
+		case SUBTRACT_I:
+		case MULTIPLY_I:
+		case DIVIDE_I:
+		case MODULO_I:
+		case EQUALS_I:
+		case NE_I:
+		case GT_I:
+		case GE_I:
+		case LT_I:
+		case LE_I:
+			uses.set(code.a);
+			uses.set(code.b);
+			break;
+		case JUMP_UNLESS_EQUALS:
+		case JUMP_UNLESS_NE:
+		case JUMP_UNLESS_GT:
+		case JUMP_UNLESS_GE:
+		case JUMP_UNLESS_LT:
+		case JUMP_UNLESS_LE:
+			// regs[a] and regs[a+1]
+			uses.set(code.a, code.a + 2);
+			break;
+		case MAKE_ARRAY:
+		case MAKE_MAP:
+		case SPRINTF:
+			// regs[a]..regs[a+b-1]
+			if (code.b > 0) {
+				uses.set(code.a, code.a + code.b);
+			}
+			break;
+		case FUNCALL:
+			// function name and arguments.
+			uses.set(code.a, code.a + code.b + 1);
+			break;
+		case METHOD_CALL:
+			// object, method name and arguments.
+			uses.set(code.a, code.a + code.b + 2);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Get the register written by the instruction.
+	 *
+	 * @return -1 if the instruction doesn't write any register.
+	 */
+	static int getDef(Code code) {
+		switch (code.op) {
+		case LOAD_CONST:
+		case LOAD_INT:
+		case LOAD_VAR:
+		case LOAD_INT_I:
+			return code.b;
+		case APPEND:
+		case APPEND_RAW:
+		case SET_VAR:
+		case FOR_START:
+		case JUMP:
+		case JUMP_ABS:
+		case JUMP_IF_FALSE:
+		case INCLUDE:
+		case WRAP_START:
+		case UNWIND_CAPTURE:
+		case WRAP:
+		case RETURN:
+		case APPEND_VAR:
+		case APPEND_ATTR:
+		case JUMP_UNLESS_EQUALS:
+		case JUMP_UNLESS_NE:
+		case JUMP_UNLESS_GT:
+		case JUMP_UNLESS_GE:
+		case JUMP_UNLESS_LT:
+		case JUMP_UNLESS_LE:
+			return -1;
+		default:
+			return code.a;
+		}
+	}
+
+	/**
+	 * Can the destination register be changed without changing the inputs?
+	 */
+	static boolean hasIndependentDef(OP op) {
+		switch (op) {
+		case LOAD_CONST:
+		case LOAD_INT:
+		case LOAD_VAR:
+		case LOAD_TRUE:
+		case LOAD_FALSE:
+		case LOAD_NULL:
+		case LOOP_INDEX:
+		case LOOP_COUNT:
+		case LOOP_HAS_NEXT:
+		case MOVE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	static void setDef(Code code, int reg) {
+		switch (code.op) {
+		case LOAD_CONST:
+		case LOAD_INT:
+		case LOAD_VAR:
+			code.b = reg;
+			break;
+		default:
+			code.a = reg;
+			break;
+		}
+	}
+
+	/**
+	 * Replace the register read by the instruction. Only the operands which
+	 * are read and not written are replaced.
+	 *
+	 * @return false if the register is also used in the other way, and it
+	 *         can't be replaced.
+	 */
+	static boolean replaceUse(Code code, int from, int to) {
+		if (getDef(code) == from) {
+			return false;
+		}
+		switch (code.op) {
+		case APPEND:
+		case JUMP_IF_FALSE:
+		case INCLUDE:
+		case WRAP:
+		case FOR_START:
+		case APPEND_ATTR:
+			if (code.a != from) {
+				return false;
+			}
+			code.a = to;
+			return true;
+		case MOVE:
+		case SET_VAR:
+		case ADD:
+		case MODULO:
+		case SUBTRACT:
+		case MULTIPLY:
+		case DIVIDE:
+		case ANDAND:
+		case OROR:
+		case MATCH:
+		case EQUALS:
+		case NE:
+		case GT:
+		case GE:
+		case LT:
+		case LE:
+		case CONCAT:
+		case GET_ELEM:
+		case ATTRIBUTE:
+		case MAKE_RANGE:
+			// regs[a] is written by the binary operators.
+			if (code.b != from) {
+				return false;
+			}
+			code.b = to;
+			return true;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package me.geso.jtt.vm;
+
+import com.esotericsoftware.reflectasm.MethodAccess;
+
+/**
+ * Inline cache for a METHOD_CALL instruction. It remembers the last
+ * receiver class and the resolved method index, for METHOD_CALL_CACHED.
+ * 
+ * Irep is shared between threads. The entry is immutable, and it's
+ * replaced as a whole.
+ * 
+ * @author tokuhirom
+ *
+ */
+class MethodCallCache {
+	/**
+	 * Estimated bytes retained by a filled cache: the cache and the entry.
+	 * MethodAccess is shared by the call sites of the class.
+	 */
+	static final int MAX_RETAINED_SIZE = 16 + 32;
+
+	private volatile Entry entry;
+
+	static final class Entry {
+		final Class<?> klass;
+		final String name;
+		final MethodAccess access;
+		final int index;
+
+		Entry(Class<?> klass, String name, MethodAccess access, int index) {
+			this.klass = klass;
+			this.name = name;
+			this.access = access;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * @return null if no method was resolved yet.
+	 */
+	Entry get() {
+		return entry;
+	}
+
+	void set(Entry entry) {
+		this.entry = entry;
+	}
+}
@@ -0,0 +1,86 @@
+package me.geso.jtt.vm;
+
+/**
+ * Remove MOVE instructions by the register liveness.
+ * 
+ * <ul>
+ * <li>MOVE to the dead register, and MOVE to itself are removed.</li>
+ * <li><code>LOAD_VAR x -&gt; t; MOVE d, t</code> is rewritten to
+ * <code>LOAD_VAR x -&gt; d</code> if t is dead after the MOVE.</li>
+ * <li><code>MOVE d, s; APPEND d</code> is rewritten to <code>APPEND s</code>
+ * if d is dead after the APPEND.</li>
+ * </ul>
+ * 
+ * @author tokuhirom
+ *
+ */
+public class MoveCoalescingPass implements PeepholePass {
+	@Override
+	public String getName() {
+		return "move-coalescing";
+	}
+
+	@Override
+	public boolean run(IrepBuilder builder) {
+		int size = builder.getSize();
+		Liveness liveness;
+		try {
+			liveness = new Liveness(builder);
+		} catch (IllegalArgumentException e) {
+			// Don't know the registers used by the instruction.
+			return false;
+		}
+
+		boolean[] jumpTargets = new boolean[size + 1];
+		for (int pc = 0; pc < size; ++pc) {
+			if (IrepBuilder.isJump(builder.getCode(pc).op)) {
+				jumpTargets[builder.getJumpTarget(pc)] = true;
+			}
+		}
+
+		boolean[] removed = new boolean[size];
+		// Rewrites change the liveness around them. Don't rewrite the
+		// instructions next to the last rewrite until the next run.
+		int lastTouched = -1;
+		for (int pc = 0; pc < size; ++pc) {
+			Code code = builder.getCode(pc);
+			if (code.op != OP.MOVE) {
+				continue;
+			}
+			int dst = code.a;
+			int src = code.b;
+
+			if (dst == src || !liveness.isLiveOut(pc, dst)) {
+				removed[pc] = true;
+				continue;
+			}
+			if (pc - 1 <= lastTouched) {
+				continue;
+			}
+
+			// Write to dst directly.
+			if (pc > 0 && !jumpTargets[pc] && !removed[pc - 1]
+					&& !liveness.isLiveOut(pc, src)) {
+				Code prev = builder.getCode(pc - 1);
+				if (Liveness.hasIndependentDef(prev.op)
+						&& Liveness.getDef(prev) == src) {
+					Liveness.setDef(prev, dst);
+					removed[pc] = true;
+					lastTouched = pc;
+					continue;
+				}
+			}
+
+			// Read from src directly.
+			if (pc + 1 < size && !jumpTargets[pc + 1]
+					&& !liveness.isLiveOut(pc + 1, dst)) {
+				Code next = builder.getCode(pc + 1);
+				if (Liveness.replaceUse(next, dst, src)) {
+					removed[pc] = true;
+					lastTouched = pc + 1;
+				}
+			}
+		}
+		return builder.removeCodes(removed);
+	}
+}
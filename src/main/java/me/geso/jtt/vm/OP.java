@@ -1,5 +1,11 @@
 package me.geso.jtt.vm;
 
 public enum OP {
-	LOAD_CONST, APPEND, ADD, RETURN, GET_ELEM, LOAD_VAR, SUBTRACT, DIVIDE, MULTIPLY, FOR_START, FOR_ITER, SET_VAR, EQUALS, GE, GT, LE, LT, MAKE_ARRAY, MODULO, LOAD_FALSE, LOAD_TRUE, LOAD_NULL, JUMP_IF_FALSE, JUMP, CONCAT, JUMP_ABS, INCLUDE, ATTRIBUTE, MAKE_MAP, MATCH, FUNCALL, LC, UC, SPRINTF, URI_ESCAPE, MAKE_RANGE, NOT, METHOD_CALL, ANDAND, NE, OROR, WRAP, APPEND_RAW, LOAD_INT, MOVE, LOOP_COUNT, LOOP_HAS_NEXT, LOOP_INDEX;
+	LOAD_CONST, APPEND, ADD, RETURN, GET_ELEM, LOAD_VAR, SUBTRACT, DIVIDE, MULTIPLY, FOR_START, FOR_ITER, SET_VAR, EQUALS, GE, GT, LE, LT, MAKE_ARRAY, MODULO, LOAD_FALSE, LOAD_TRUE, LOAD_NULL, JUMP_IF_FALSE, JUMP, CONCAT, JUMP_ABS, INCLUDE, ATTRIBUTE, MAKE_MAP, MATCH, FUNCALL, LC, UC, SPRINTF, URI_ESCAPE, MAKE_RANGE, NOT, METHOD_CALL, ANDAND, NE, OROR, WRAP, APPEND_RAW, LOAD_INT, MOVE, LOOP_COUNT, LOOP_HAS_NEXT, LOOP_INDEX, WRAP_START, UNWIND_CAPTURE,
+	// Superinstructions. See SuperinstructionPass.
+	APPEND_VAR, ATTRIBUTE_CONST, APPEND_ATTR, JUMP_UNLESS_EQUALS, JUMP_UNLESS_NE, JUMP_UNLESS_GT, JUMP_UNLESS_GE, JUMP_UNLESS_LT, JUMP_UNLESS_LE,
+	// Instructions for the int registers.
+	LOAD_INT_I, LOOP_INDEX_I, LOOP_COUNT_I, ADD_I, SUBTRACT_I, MULTIPLY_I, DIVIDE_I, MODULO_I, EQUALS_I, NE_I, GT_I, GE_I, LT_I, LE_I, BOX_I,
+	// Quickened forms. The VM rewrites the generic instructions at run time.
+	ADD_INT, ADD_DOUBLE, SUBTRACT_INT, SUBTRACT_DOUBLE, MULTIPLY_INT, MULTIPLY_DOUBLE, GT_INT, GT_DOUBLE, GE_INT, GE_DOUBLE, LT_INT, LT_DOUBLE, LE_INT, LE_DOUBLE, EQUALS_INT, EQUALS_STRING, ATTRIBUTE_CONST_MAP, ATTRIBUTE_CONST_BEAN, APPEND_ATTR_MAP, APPEND_ATTR_BEAN, METHOD_CALL_CACHED;
 }
@@ -0,0 +1,94 @@
+package me.geso.jtt.vm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Output size statistics of a template. The VM presizes the output buffer
+ * with the estimate.
+ *
+ * The estimate is a decaying max. It grows to a larger output at once, and
+ * shrinks toward a smaller output by 1/8 of the difference. Then a small
+ * rendering doesn't shrink the buffer for the next large rendering.
+ *
+ * Irep is shared between threads. All fields are updated without locks.
+ *
+ * @author tokuhirom
+ *
+ */
+public class OutputSizeStats {
+	private static final int DECAY_SHIFT = 3;
+
+	private final AtomicInteger estimate = new AtomicInteger(-1);
+	private final AtomicInteger maxSize = new AtomicInteger(0);
+	private final LongAdder renderCount = new LongAdder();
+	private final LongAdder totalSize = new LongAdder();
+
+	/**
+	 * Record the size of a rendered output.
+	 */
+	public void record(int size) {
+		renderCount.increment();
+		totalSize.add(size);
+		update(maxSize, size, Math::max);
+		update(estimate, size, OutputSizeStats::decay);
+	}
+
+	/**
+	 * Update the value only if it's changed. Concurrent renderings of the
+	 * same template mostly produce the same values, and don't write the
+	 * shared cache line.
+	 */
+	private static void update(AtomicInteger value, int size,
+			IntBinaryOperator function) {
+		while (true) {
+			int current = value.get();
+			int next = function.applyAsInt(current, size);
+			if (next == current || value.compareAndSet(current, next)) {
+				return;
+			}
+		}
+	}
+
+	private static int decay(int current, int size) {
+		if (size >= current) {
+			return size;
+		}
+		return current - ((current - size) >>> DECAY_SHIFT);
+	}
+
+	/**
+	 * Get the expected size of the next output.
+	 *
+	 * @return -1 if the template was not rendered yet.
+	 */
+	public int getEstimate() {
+		return estimate.get();
+	}
+
+	/**
+	 * Get the largest output size ever recorded.
+	 */
+	public int getMaxSize() {
+		return maxSize.get();
+	}
+
+	public long getRenderCount() {
+		return renderCount.sum();
+	}
+
+	/**
+	 * Get the sum of the recorded output sizes.
+	 */
+	public long getTotalSize() {
+		return totalSize.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "OutputSizeStats [estimate=" + getEstimate() + ", maxSize="
+				+ getMaxSize() + ", renderCount=" + getRenderCount()
+				+ ", totalSize=" + getTotalSize() + "]";
+	}
+}
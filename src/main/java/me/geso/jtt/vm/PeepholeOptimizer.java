@@ -0,0 +1,63 @@
+package me.geso.jtt.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Run the peephole passes over the IrepBuilder's instructions until they
+ * don't change.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class PeepholeOptimizer {
+	private static final int MAX_ROUNDS = 8;
+	private final List<PeepholePass> passes;
+
+	/**
+	 * Called after each pass, for debugging.
+	 */
+	public interface Listener {
+		public void afterPass(PeepholePass pass, IrepBuilder builder);
+	}
+
+	/**
+	 * Create the optimizer with the default passes.
+	 */
+	public PeepholeOptimizer() {
+		this.passes = new ArrayList<>();
+		this.passes.add(new JumpThreadingPass());
+		this.passes.add(new UnreachableCodePass());
+		this.passes.add(new MoveCoalescingPass());
+		this.passes.add(new SuperinstructionPass());
+	}
+
+	public PeepholeOptimizer(List<PeepholePass> passes) {
+		this.passes = passes;
+	}
+
+	public List<PeepholePass> getPasses() {
+		return passes;
+	}
+
+	public void optimize(IrepBuilder builder) {
+		this.optimize(builder, null);
+	}
+
+	public void optimize(IrepBuilder builder, Listener listener) {
+		for (int round = 0; round < MAX_ROUNDS; ++round) {
+			boolean changed = false;
+			for (PeepholePass pass : passes) {
+				if (pass.run(builder)) {
+					changed = true;
+				}
+				if (listener != null) {
+					listener.afterPass(pass, builder);
+				}
+			}
+			if (!changed) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package me.geso.jtt.vm;
+
+/**
+ * An optimization pass over the instructions in IrepBuilder.
+ * 
+ * Passes modify the instructions in place. Use IrepBuilder#removeCodes to
+ * remove instructions, then jump targets and line numbers are kept
+ * consistent.
+ * 
+ * @author tokuhirom
+ *
+ */
+public interface PeepholePass {
+	/**
+	 * Name of the pass, shown in the disassembler's pass-by-pass view.
+	 */
+	public String getName();
+
+	/**
+	 * Run the pass.
+	 * 
+	 * @return true if the instructions were changed.
+	 */
+	public boolean run(IrepBuilder builder);
+}
@@ -0,0 +1,140 @@
+package me.geso.jtt.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.geso.jtt.exception.JTTError;
+
+/**
+ * Accessor for the object's property, used by the ATTRIBUTE instruction.
+ * 
+ * `item.price` is resolved in following order:
+ * 
+ * <ol>
+ * <li>public field `price`</li>
+ * <li>getter method `getPrice()`</li>
+ * <li>boolean getter method `isPrice()`</li>
+ * <li>accessor method `price()`(e.g. record components)</li>
+ * </ol>
+ * 
+ * Accessors are built once per class and name, and cached.
+ * 
+ * @author tokuhirom
+ *
+ */
+class PropertyAccessor {
+	private static final MethodType GETTER_TYPE = MethodType.methodType(
+			Object.class, Object.class);
+	private static final PropertyAccessor NOT_FOUND = new PropertyAccessor(
+			null);
+
+	private static final ClassValue<Map<String, PropertyAccessor>> cache = new ClassValue<Map<String, PropertyAccessor>>() {
+		@Override
+		protected Map<String, PropertyAccessor> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
+	private final MethodHandle handle;
+
+	private PropertyAccessor(MethodHandle handle) {
+		this.handle = handle;
+	}
+
+	/**
+	 * Get the accessor for the property.
+	 * 
+	 * @return null if the class doesn't have such property.
+	 */
+	static PropertyAccessor get(Class<?> klass, String name) {
+		Map<String, PropertyAccessor> accessors = cache.get(klass);
+		PropertyAccessor accessor = accessors.get(name);
+		if (accessor == null) {
+			accessor = resolve(klass, name);
+			accessors.put(name, accessor);
+		}
+		return accessor == NOT_FOUND ? null : accessor;
+	}
+
+	Object get(Object container) {
+		try {
+			return (Object) handle.invokeExact(container);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new JTTError(e);
+		}
+	}
+
+	private static PropertyAccessor resolve(Class<?> klass, String name) {
+		try {
+			Field field = klass.getField(name);
+			if (!Modifier.isStatic(field.getModifiers())) {
+				setAccessible(field);
+				return new PropertyAccessor(MethodHandles.lookup()
+						.unreflectGetter(field).asType(GETTER_TYPE));
+			}
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			// try next.
+		}
+
+		if (name.isEmpty()) {
+			return NOT_FOUND;
+		}
+		String capitalized = Character.toUpperCase(name.charAt(0))
+				+ name.substring(1);
+		Method method = findGetter(klass, "get" + capitalized);
+		if (method == null) {
+			method = findGetter(klass, "is" + capitalized);
+			if (method != null && method.getReturnType() != boolean.class
+					&& method.getReturnType() != Boolean.class) {
+				method = null;
+			}
+		}
+		if (method == null) {
+			method = findGetter(klass, name);
+		}
+		if (method != null) {
+			try {
+				setAccessible(method);
+				return new PropertyAccessor(MethodHandles.lookup()
+						.unreflect(method).asType(GETTER_TYPE));
+			} catch (IllegalAccessException e) {
+				return NOT_FOUND;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	private static Method findGetter(Class<?> klass, String methodName) {
+		try {
+			Method method = klass.getMethod(methodName);
+			if (Modifier.isStatic(method.getModifiers())
+					|| method.getReturnType() == void.class) {
+				return null;
+			}
+			return method;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Public members of non-public classes are not accessible from the
+	 * lookup without this.
+	 */
+	private static void setAccessible(AccessibleObject object) {
+		try {
+			object.setAccessible(true);
+		} catch (RuntimeException e) {
+			// Module system may deny it. Try to access without it.
+		}
+	}
+}
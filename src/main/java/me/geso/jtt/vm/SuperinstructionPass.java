@@ -0,0 +1,115 @@
+package me.geso.jtt.vm;
+
+/**
+ * Fuse the common instruction pairs into the superinstructions. The
+ * temporary register between them must be dead after the pair.
+ *
+ * <ul>
+ * <li><code>LOAD_VAR x -&gt; t; APPEND t</code> to <code>APPEND_VAR x</code></li>
+ * <li><code>LOAD_CONST k -&gt; t; ATTRIBUTE r, t</code> to
+ * <code>ATTRIBUTE_CONST r, k</code></li>
+ * <li><code>ATTRIBUTE_CONST r, k; APPEND r</code> to
+ * <code>APPEND_ATTR r, k</code></li>
+ * <li><code>GT r, r+1; JUMP_IF_FALSE r</code> to <code>JUMP_UNLESS_GT r</code>,
+ * and same for the other comparisons.</li>
+ * </ul>
+ *
+ * The fused instruction takes the place of the second one, then its line
+ * number and the jump offset are kept.
+ *
+ * @author tokuhirom
+ *
+ */
+public class SuperinstructionPass implements PeepholePass {
+	@Override
+	public String getName() {
+		return "superinstruction";
+	}
+
+	@Override
+	public boolean run(IrepBuilder builder) {
+		int size = builder.getSize();
+		Liveness liveness;
+		try {
+			liveness = new Liveness(builder);
+		} catch (IllegalArgumentException e) {
+			// Don't know the registers used by the instruction.
+			return false;
+		}
+
+		boolean[] jumpTargets = new boolean[size + 1];
+		for (int pc = 0; pc < size; ++pc) {
+			if (IrepBuilder.isJump(builder.getCode(pc).op)) {
+				jumpTargets[builder.getJumpTarget(pc)] = true;
+			}
+		}
+
+		// Fusing a pair makes the registers less live. The liveness
+		// computed before the fusing is still safe for the rest.
+		boolean[] removed = new boolean[size];
+		for (int pc = 0; pc + 1 < size; ++pc) {
+			if (jumpTargets[pc + 1]) {
+				continue;
+			}
+			Code fused = fuse(builder.getCode(pc), builder.getCode(pc + 1),
+					liveness, pc + 1);
+			if (fused != null) {
+				builder.setCode(pc + 1, fused);
+				removed[pc] = true;
+			}
+		}
+		return builder.removeCodes(removed);
+	}
+
+	private Code fuse(Code first, Code second, Liveness liveness, int pc) {
+		switch (second.op) {
+		case APPEND:
+			if (liveness.isLiveOut(pc, second.a)) {
+				return null;
+			}
+			if (first.op == OP.LOAD_VAR && first.b == second.a) {
+				return new Code(OP.APPEND_VAR, first.a);
+			}
+			if (first.op == OP.ATTRIBUTE_CONST && first.a == second.a) {
+				return new Code(OP.APPEND_ATTR, first.a, first.b);
+			}
+			return null;
+		case ATTRIBUTE:
+			if (first.op == OP.LOAD_CONST && first.b == second.b
+					&& second.a != second.b
+					&& !liveness.isLiveOut(pc, second.b)) {
+				return new Code(OP.ATTRIBUTE_CONST, second.a, first.a);
+			}
+			return null;
+		case JUMP_IF_FALSE: {
+			OP op = getFusedJump(first.op);
+			if (op != null && first.a == second.a && first.b == first.a + 1
+					&& !liveness.isLiveOut(pc, second.a)) {
+				return new Code(op, first.a, second.b);
+			}
+			return null;
+		}
+		default:
+			return null;
+		}
+	}
+
+	private OP getFusedJump(OP op) {
+		switch (op) {
+		case EQUALS:
+			return OP.JUMP_UNLESS_EQUALS;
+		case NE:
+			return OP.JUMP_UNLESS_NE;
+		case GT:
+			return OP.JUMP_UNLESS_GT;
+		case GE:
+			return OP.JUMP_UNLESS_GE;
+		case LT:
+			return OP.JUMP_UNLESS_LT;
+		case LE:
+			return OP.JUMP_UNLESS_LE;
+		default:
+			return null;
+		}
+	}
+}
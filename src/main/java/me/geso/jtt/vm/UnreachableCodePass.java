@@ -0,0 +1,51 @@
+package me.geso.jtt.vm;
+
+import java.util.ArrayDeque;
+
+/**
+ * Remove the instructions which can't be reached from the entry point.
+ * 
+ * @author tokuhirom
+ *
+ */
+public class UnreachableCodePass implements PeepholePass {
+	@Override
+	public String getName() {
+		return "unreachable-code";
+	}
+
+	@Override
+	public boolean run(IrepBuilder builder) {
+		int size = builder.getSize();
+		boolean[] reachable = new boolean[size];
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		if (size > 0) {
+			reachable[0] = true;
+			queue.add(0);
+		}
+		while (!queue.isEmpty()) {
+			int pc = queue.poll();
+			OP op = builder.getCode(pc).op;
+			if (Liveness.hasFallthrough(op)) {
+				visit(pc + 1, size, reachable, queue);
+			}
+			if (IrepBuilder.isJump(op)) {
+				visit(builder.getJumpTarget(pc), size, reachable, queue);
+			}
+		}
+
+		boolean[] removed = new boolean[size];
+		for (int pc = 0; pc < size; ++pc) {
+			removed[pc] = !reachable[pc];
+		}
+		return builder.removeCodes(removed);
+	}
+
+	private void visit(int pc, int size, boolean[] reachable,
+			ArrayDeque<Integer> queue) {
+		if (pc < size && !reachable[pc]) {
+			reachable[pc] = true;
+			queue.add(pc);
+		}
+	}
+}
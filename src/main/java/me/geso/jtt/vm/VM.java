@@ -1,5 +1,7 @@
 package me.geso.jtt.vm;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -19,7 +21,6 @@ import me.geso.jtt.escape.Escaper;
 import me.geso.jtt.exception.JTTError;
 import me.geso.jtt.exception.VMError;
 
-import com.esotericsoftware.reflectasm.FieldAccess;
 import com.esotericsoftware.reflectasm.MethodAccess;
 import com.google.common.net.UrlEscapers;
 
@@ -35,30 +36,62 @@ public class VM {
 	private final Map<String, Function> functions;
 	// private boolean strictMode = false;
 	private final JTTMessageListener warningListener;
-	private final Irep irep;
+	private Irep irep;
+	private Object[] pool;
+	/**
+	 * Compile the irep into JVM bytecode after this many runs. -1 means
+	 * always use the interpreter.
+	 */
+	private final int bytecodeCompileThreshold;
 
-	private static final Map<Class<?>, FieldAccess> fieldAccessCache = new ConcurrentHashMap<>();
 	private static final Map<Class<?>, MethodAccess> methodAccessCache = new ConcurrentHashMap<>();
 
+	/**
+	 * Pending output is handed over to the sink when the buffer grows past
+	 * this size.
+	 */
+	private static final int FLUSH_THRESHOLD = 8192;
+	private static final OP[] OPS = OP.values();
+
 	/**
 	 * VM innerr status.
 	 */
-	private final StringBuilder buffer;
-	private final Object[] regs;
-	private final Loop[] loopStack;
+	private StringBuilder buffer;
+	private Appendable sink;
+	private final ArrayDeque<Integer> captureStack = new ArrayDeque<>();
+	private Object[] regs;
+	/**
+	 * Registers for the int values. Same index as regs, and the compiler
+	 * decides which one is used for each register.
+	 */
+	private int[] iregs;
+	private Loop[] loopStack;
 	private int pc;
 	private int loopSP;
+	/**
+	 * Rewrite the instructions into the quickened forms. Only the
+	 * interpreter does it.
+	 */
+	private boolean quickening = false;
 	private Map<String, Object> vars;
 
 	private VM newVM(Irep irep, Map<String, Object> vars) {
 		return new VM(syntax, loader, functions, warningListener, escaper,
-				irep, vars);
+				irep, vars, bytecodeCompileThreshold);
 	}
 
 	public VM(Syntax syntax, TemplateLoader loader,
 			Map<String, Function> functions,
 			JTTMessageListener warningListener, Escaper escaper, Irep irep,
 			Map<String, Object> vars) {
+		this(syntax, loader, functions, warningListener, escaper, irep, vars,
+				-1);
+	}
+
+	public VM(Syntax syntax, TemplateLoader loader,
+			Map<String, Function> functions,
+			JTTMessageListener warningListener, Escaper escaper, Irep irep,
+			Map<String, Object> vars, int bytecodeCompileThreshold) {
 		if (vars == null) {
 			throw new IllegalArgumentException("vars must not be null");
 		}
@@ -71,318 +104,1353 @@ public class VM {
 		this.escaper = escaper;
 
 		this.irep = irep;
+		this.pool = irep.getPool();
 		this.vars = vars;
+		this.bytecodeCompileThreshold = bytecodeCompileThreshold;
+
+		this.regs = new Object[irep.getRegisterCount()];
+		this.iregs = new int[irep.getRegisterCount()];
+		this.loopStack = new Loop[irep.getLoopStackSize()];
+
+		this.pc = 0;
+	}
 
-		int capacityHint = irep.getCapacityHint();
+	/**
+	 * Run the VM and return the rendered result as String.
+	 * 
+	 * @return Rendered string.
+	 */
+	public String run() throws JTTError {
+		int capacityHint = irep.getOutputSizeStats().getEstimate();
 		if (capacityHint >= 0) {
 			this.buffer = new StringBuilder(capacityHint);
 		} else {
-			this.buffer = new StringBuilder();
+			this.buffer = new StringBuilder();
+		}
+
+		this.execute();
+
+		String result = new String(buffer);
+		this.irep.getOutputSizeStats().record(result.length());
+		return result;
+	}
+
+	/**
+	 * Run the VM and write the rendered result into the sink. The output is
+	 * written through while the template is running, and only a small chunk
+	 * is buffered in the VM.
+	 * 
+	 * @param sink
+	 *            Output destination.
+	 */
+	public void run(Appendable sink) throws JTTError {
+		int capacityHint = irep.getOutputSizeStats().getEstimate();
+		if (capacityHint >= 0) {
+			this.buffer = new StringBuilder(Math.min(capacityHint,
+					FLUSH_THRESHOLD));
+		} else {
+			this.buffer = new StringBuilder();
+		}
+		this.sink = sink;
+
+		this.execute();
+
+		this.flush();
+	}
+
+	private void execute() throws JTTError {
+		if (bytecodeCompileThreshold >= 0) {
+			CompiledIrep compiled = irep.getCompiledIrep(bytecodeCompileThreshold);
+			if (compiled != null) {
+				compiled.render(this);
+				return;
+			}
+		}
+
+		int[] iseq = irep.getIseq();
+		this.quickening = true;
+
+		while (true) {
+			int i = pc * Irep.STRIDE;
+			OP op = OPS[iseq[i]];
+			int a = iseq[i + 1];
+			int b = iseq[i + 2];
+
+			// System.out.println(String.format("%06d %s", pc, op));
+
+			switch (op) {
+			case LOAD_CONST:
+				opLoadConst(a, b);
+				++pc;
+				break;
+			case LOAD_INT:
+				opLoadInt(a, b);
+				++pc;
+				break;
+			case APPEND_RAW:
+				opAppendRaw(a, b);
+				++pc;
+				break;
+			case APPEND:
+				opAppend(a, b);
+				++pc;
+				break;
+			case ADD:
+				opAdd(a, b);
+				++pc;
+				break;
+			case MODULO:
+				opModulo(a, b);
+				++pc;
+				break;
+			case SUBTRACT:
+				opSubtract(a, b);
+				++pc;
+				break;
+			case MULTIPLY:
+				opMultiply(a, b);
+				++pc;
+				break;
+			case DIVIDE:
+				opDivide(a, b);
+				++pc;
+				break;
+			case ANDAND:
+				opAndand(a, b);
+				++pc;
+				break;
+			case OROR:
+				opOror(a, b);
+				++pc;
+				break;
+			case MATCH:
+				opMatch(a, b);
+				++pc;
+				break;
+			case EQUALS:
+				opEquals(a, b);
+				++pc;
+				break;
+			case NE:
+				opNe(a, b);
+				++pc;
+				break;
+			case GT:
+				opGt(a, b);
+				++pc;
+				break;
+			case GE:
+				opGe(a, b);
+				++pc;
+				break;
+			case LT:
+				opLt(a, b);
+				++pc;
+				break;
+			case LE:
+				opLe(a, b);
+				++pc;
+				break;
+			case CONCAT:
+				opConcat(a, b);
+				++pc;
+				break;
+			case LOAD_TRUE:
+				opLoadTrue(a, b);
+				++pc;
+				break;
+			case LOAD_FALSE:
+				opLoadFalse(a, b);
+				++pc;
+				break;
+			case LOAD_NULL:
+				opLoadNull(a, b);
+				++pc;
+				break;
+			case MOVE:
+				opMove(a, b);
+				++pc;
+				break;
+			case GET_ELEM:
+				opGetElem(a, b);
+				++pc;
+				break;
+			case LOAD_VAR:
+				opLoadVar(a, b);
+				++pc;
+				break;
+			case SET_VAR:
+				opSetVar(a, b);
+				++pc;
+				break;
+			case MAKE_ARRAY:
+				opMakeArray(a, b);
+				++pc;
+				break;
+			case RETURN:
+				return;
+			case FOR_START:
+				opForStart(a, b);
+				++pc;
+				break;
+			case FOR_ITER:
+				if (opForIter(a)) {
+					++pc;
+				} else {
+					pc = b;
+				}
+				break;
+			case JUMP:
+				pc += a;
+				break;
+			case JUMP_ABS:
+				pc = a;
+				break;
+			case JUMP_IF_FALSE:
+				if (isTrue(regs[a])) {
+					++pc;
+				} else {
+					pc += b;
+				}
+				break;
+			case INCLUDE:
+				opInclude(a, b);
+				++pc;
+				break;
+			case WRAP_START:
+				opWrapStart(a, b);
+				++pc;
+				break;
+			case UNWIND_CAPTURE:
+				opUnwindCapture(a, b);
+				++pc;
+				break;
+			case WRAP:
+				opWrap(a, b);
+				++pc;
+				break;
+			case ATTRIBUTE:
+				opAttribute(a, b);
+				++pc;
+				break;
+			case MAKE_MAP:
+				opMakeMap(a, b);
+				++pc;
+				break;
+			case LC:
+				opLc(a, b);
+				++pc;
+				break;
+			case UC:
+				opUc(a, b);
+				++pc;
+				break;
+			case URI_ESCAPE:
+				opUriEscape(a, b);
+				++pc;
+				break;
+			case SPRINTF:
+				opSprintf(a, b);
+				++pc;
+				break;
+			case FUNCALL:
+				opFuncall(a, b);
+				++pc;
+				break;
+			case MAKE_RANGE:
+				opMakeRange(a, b);
+				++pc;
+				break;
+			case NOT:
+				opNot(a, b);
+				++pc;
+				break;
+			case METHOD_CALL:
+				opMethodCall(a, b);
+				++pc;
+				break;
+			case LOOP_INDEX:
+				opLoopIndex(a, b);
+				++pc;
+				break;
+			case LOOP_COUNT:
+				opLoopCount(a, b);
+				++pc;
+				break;
+			case LOOP_HAS_NEXT:
+				opLoopHasNext(a, b);
+				++pc;
+				break;
+			case APPEND_VAR:
+				opAppendVar(a, b);
+				++pc;
+				break;
+			case ATTRIBUTE_CONST:
+				opAttributeConst(a, b);
+				++pc;
+				break;
+			case APPEND_ATTR:
+				opAppendAttr(a, b);
+				++pc;
+				break;
+			case JUMP_UNLESS_EQUALS:
+				pc += isEqualsReg(a) ? 1 : b;
+				break;
+			case JUMP_UNLESS_NE:
+				pc += isNeReg(a) ? 1 : b;
+				break;
+			case JUMP_UNLESS_GT:
+				pc += isGtReg(a) ? 1 : b;
+				break;
+			case JUMP_UNLESS_GE:
+				pc += isGeReg(a) ? 1 : b;
+				break;
+			case JUMP_UNLESS_LT:
+				pc += isLtReg(a) ? 1 : b;
+				break;
+			case JUMP_UNLESS_LE:
+				pc += isLeReg(a) ? 1 : b;
+				break;
+			case LOAD_INT_I:
+				opLoadIntI(a, b);
+				++pc;
+				break;
+			case LOOP_INDEX_I:
+				opLoopIndexI(a, b);
+				++pc;
+				break;
+			case LOOP_COUNT_I:
+				opLoopCountI(a, b);
+				++pc;
+				break;
+			case ADD_I:
+				opAddI(a, b);
+				++pc;
+				break;
+			case SUBTRACT_I:
+				opSubtractI(a, b);
+				++pc;
+				break;
+			case MULTIPLY_I:
+				opMultiplyI(a, b);
+				++pc;
+				break;
+			case DIVIDE_I:
+				opDivideI(a, b);
+				++pc;
+				break;
+			case MODULO_I:
+				opModuloI(a, b);
+				++pc;
+				break;
+			case EQUALS_I:
+				opEqualsI(a, b);
+				++pc;
+				break;
+			case NE_I:
+				opNeI(a, b);
+				++pc;
+				break;
+			case GT_I:
+				opGtI(a, b);
+				++pc;
+				break;
+			case GE_I:
+				opGeI(a, b);
+				++pc;
+				break;
+			case LT_I:
+				opLtI(a, b);
+				++pc;
+				break;
+			case LE_I:
+				opLeI(a, b);
+				++pc;
+				break;
+			case BOX_I:
+				opBoxI(a, b);
+				++pc;
+				break;
+			case ADD_INT:
+				opAddInt(a, b);
+				++pc;
+				break;
+			case ADD_DOUBLE:
+				opAddDouble(a, b);
+				++pc;
+				break;
+			case SUBTRACT_INT:
+				opSubtractInt(a, b);
+				++pc;
+				break;
+			case SUBTRACT_DOUBLE:
+				opSubtractDouble(a, b);
+				++pc;
+				break;
+			case MULTIPLY_INT:
+				opMultiplyInt(a, b);
+				++pc;
+				break;
+			case MULTIPLY_DOUBLE:
+				opMultiplyDouble(a, b);
+				++pc;
+				break;
+			case GT_INT:
+				opGtInt(a, b);
+				++pc;
+				break;
+			case GT_DOUBLE:
+				opGtDouble(a, b);
+				++pc;
+				break;
+			case GE_INT:
+				opGeInt(a, b);
+				++pc;
+				break;
+			case GE_DOUBLE:
+				opGeDouble(a, b);
+				++pc;
+				break;
+			case LT_INT:
+				opLtInt(a, b);
+				++pc;
+				break;
+			case LT_DOUBLE:
+				opLtDouble(a, b);
+				++pc;
+				break;
+			case LE_INT:
+				opLeInt(a, b);
+				++pc;
+				break;
+			case LE_DOUBLE:
+				opLeDouble(a, b);
+				++pc;
+				break;
+			case EQUALS_INT:
+				opEqualsInt(a, b);
+				++pc;
+				break;
+			case EQUALS_STRING:
+				opEqualsString(a, b);
+				++pc;
+				break;
+			case ATTRIBUTE_CONST_MAP:
+				opAttributeConstMap(a, b);
+				++pc;
+				break;
+			case ATTRIBUTE_CONST_BEAN:
+				opAttributeConstBean(a, b);
+				++pc;
+				break;
+			case APPEND_ATTR_MAP:
+				opAppendAttrMap(a, b);
+				++pc;
+				break;
+			case APPEND_ATTR_BEAN:
+				opAppendAttrBean(a, b);
+				++pc;
+				break;
+			case METHOD_CALL_CACHED:
+				opMethodCallCached(a, b);
+				++pc;
+				break;
+			default:
+				throw new RuntimeException("SHOULD NOT REACH HERE: " + op);
+			}
+		}
+	}
+
+	/*
+	 * Implementation of each instructions. These methods are called from the
+	 * interpreter loop and from the classes generated by IrepClassGenerator.
+	 * The name of the method must be "op" + camel cased OP name. Control flow
+	 * instructions are not here, since they're compiled into the real jumps.
+	 */
+
+	public void opLoadConst(int a, int b) {
+		assert b != -1;
+		regs[b] = pool[a];
+	}
+
+	public void opLoadInt(int a, int b) {
+		regs[b] = a;
+	}
+
+	public void opAppendRaw(int a, int b) {
+		buffer.append(pool[a]);
+		flushIfNeeded();
+	}
+
+	/**
+	 * Append regs[A] into string builder.
+	 */
+	public void opAppend(int a, int b) {
+		appendValue(regs[a]);
+	}
+
+	/**
+	 * Append vars[pool[A]]. LOAD_VAR and APPEND.
+	 */
+	public void opAppendVar(int a, int b) {
+		appendValue(vars.get(pool[a]));
+	}
+
+	/**
+	 * Append regs[A].pool[B]. ATTRIBUTE_CONST and APPEND.
+	 */
+	public void opAppendAttr(int a, int b) {
+		Object container = regs[a];
+		appendValue(this.getAttribute(container, pool[b]));
+		quickenAttribute(container, pool[b], OP.APPEND_ATTR_MAP,
+				OP.APPEND_ATTR_BEAN);
+	}
+
+	private void appendValue(Object obj) {
+		if (obj == null) {
+			warn("Appending null");
+			buffer.append("(null)");
+		} else if (obj instanceof String) {
+			escaper.escape((String) obj, buffer);
+		} else if (obj instanceof Integer) {
+			// Numbers and booleans don't have the characters to escape.
+			buffer.append(((Integer) obj).intValue());
+		} else if (obj instanceof Long) {
+			buffer.append(((Long) obj).longValue());
+		} else if (obj instanceof Double) {
+			buffer.append(((Double) obj).doubleValue());
+		} else if (obj instanceof Boolean) {
+			buffer.append(((Boolean) obj).booleanValue());
+		} else if (obj instanceof JTTRawString) {
+			buffer.append(((JTTRawString) obj).toString());
+		} else {
+			escaper.escape(obj.toString(), buffer);
+		}
+		flushIfNeeded();
+	}
+
+	public void opAdd(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		regs[a] = doAdd(lhs, rhs);
+		quickenNumeric(lhs, rhs, OP.ADD_INT, OP.ADD_DOUBLE);
+	}
+
+	public void opModulo(int a, int b) {
+		regs[a] = doModulo(regs[a], regs[b]);
+	}
+
+	public void opSubtract(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		regs[a] = doSubtract(lhs, rhs);
+		quickenNumeric(lhs, rhs, OP.SUBTRACT_INT, OP.SUBTRACT_DOUBLE);
+	}
+
+	public void opMultiply(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		regs[a] = doMultiply(lhs, rhs);
+		quickenNumeric(lhs, rhs, OP.MULTIPLY_INT, OP.MULTIPLY_DOUBLE);
+	}
+
+	public void opDivide(int a, int b) {
+		regs[a] = doDivide(regs[a], regs[b]);
+	}
+
+	// && operator
+	public void opAndand(int a, int b) {
+		regs[a] = convertToBoolean(regs[a]) && convertToBoolean(regs[b]);
+	}
+
+	// || operator
+	public void opOror(int a, int b) {
+		regs[a] = convertToBoolean(regs[a]) || convertToBoolean(regs[b]);
+	}
+
+	// Smart match for SWITCH.
+	public void opMatch(int a, int b) {
+		regs[a] = doEquals(regs[a], regs[b]);
+	}
+
+	public void opEquals(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		regs[a] = doEquals(lhs, rhs);
+		if (lhs instanceof String) {
+			quicken(OP.EQUALS_STRING);
+		} else {
+			quickenNumeric(lhs, rhs, OP.EQUALS_INT, null);
+		}
+	}
+
+	public void opNe(int a, int b) {
+		regs[a] = doNotEquals(regs[a], regs[b]);
+	}
+
+	public void opGt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		regs[a] = doGT(lhs, rhs);
+		quickenNumeric(lhs, rhs, OP.GT_INT, OP.GT_DOUBLE);
+	}
+
+	public void opGe(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		regs[a] = doGE(lhs, rhs);
+		quickenNumeric(lhs, rhs, OP.GE_INT, OP.GE_DOUBLE);
+	}
+
+	public void opLt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		regs[a] = doLT(lhs, rhs);
+		quickenNumeric(lhs, rhs, OP.LT_INT, OP.LT_DOUBLE);
+	}
+
+	public void opLe(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		regs[a] = doLE(lhs, rhs);
+		quickenNumeric(lhs, rhs, OP.LE_INT, OP.LE_DOUBLE);
+	}
+
+	public void opConcat(int a, int b) {
+		regs[a] = doConcat(regs[a], regs[b]);
+	}
+
+	public void opLoadTrue(int a, int b) {
+		regs[a] = Boolean.TRUE;
+	}
+
+	public void opLoadFalse(int a, int b) {
+		regs[a] = Boolean.FALSE;
+	}
+
+	public void opLoadNull(int a, int b) {
+		regs[a] = null;
+	}
+
+	public void opMove(int a, int b) {
+		regs[a] = regs[b];
+	}
+
+	public void opLoadVar(int a, int b) {
+		regs[b] = vars.get(pool[a]);
+	}
+
+	public void opSetVar(int a, int b) {
+		vars.put((String) pool[a], regs[b]);
+	}
+
+	public void opMakeArray(int a, int b) {
+		LinkedList<Object> list = new LinkedList<Object>();
+		for (int i = 0; i < b; ++i) {
+			list.add(regs[a + i]);
+		}
+		regs[a] = list;
+	}
+
+	/**
+	 * Start new iterator. Created new iterator will put on the regs[A].
+	 */
+	public void opForStart(int a, int b) {
+		Object container = regs[a];
+		Iterator<Object> iterator = this.getIterator(container);
+		Loop loop = new Loop(iterator);
+		loopStack[loopSP] = loop;
+		++loopSP;
+	}
+
+	/**
+	 * Get next element from the current iterator.
+	 * 
+	 * @return false if there is no rest element in iterator.
+	 */
+	public boolean opForIter(int a) {
+		assert loopSP > 0;
+
+		Loop loop = loopStack[loopSP - 1];
+		if (loop.hasNext()) {
+			regs[a] = loop.next();
+			return true;
+		} else {
+			// There is no rest element in iterator.
+			--loopSP;
+			return false;
+		}
+	}
+
+	/**
+	 * INCLUDE regs[A]. B is the pool index of the name.
+	 */
+	public void opInclude(int a, int b) {
+		Irep linked = this.getLinkedIrep();
+		if (linked != null) {
+			this.runNested(linked, vars);
+			return;
+		}
+		String path = (String) regs[a];
+		Irep compiledIrep = loader.compile(path, syntax);
+		this.newVM(compiledIrep, vars).run(this.getNestedOutput());
+	}
+
+	public void opWrapStart(int a, int b) {
+		// Capture the output until WRAP.
+		captureStack.push(buffer.length());
+	}
+
+	/**
+	 * Drop A captures started by WRAP_START. NEXT/LAST jumps over the WRAPs.
+	 * The captured output is kept as is.
+	 */
+	public void opUnwindCapture(int a, int b) {
+		for (int i = 0; i < a; ++i) {
+			captureStack.pop();
+		}
+	}
+
+	/**
+	 * WRAP regs[A]. B is the pool index of the name.
+	 */
+	public void opWrap(int a, int b) {
+		Irep linked = this.getLinkedIrep();
+		Irep compiledIrep = linked != null ? linked : loader.compile(
+				(String) regs[a], syntax);
+		int start = captureStack.pop();
+		HashMap<String, Object> newvars = new HashMap<>(vars);
+		newvars.put("content", buffer.substring(start));
+		buffer.setLength(start);
+		if (linked != null) {
+			this.runNested(linked, newvars);
+		} else {
+			this.newVM(compiledIrep, newvars).run(this.getNestedOutput());
+		}
+	}
+
+	/**
+	 * Get the template linked to the current instruction, if it's still the
+	 * cached one.
+	 */
+	private Irep getLinkedIrep() {
+		LinkedTemplate linked = irep.getLinkedTemplate(pc);
+		if (linked != null
+				&& loader.isCurrent(linked.getFilePath(), linked.getIrep())) {
+			return linked.getIrep();
+		}
+		return null;
+	}
+
+	/**
+	 * Run the linked template in this VM. It writes into the same buffer,
+	 * and the state of the current template is restored after that.
+	 */
+	private void runNested(Irep nested, Map<String, Object> vars) {
+		Irep irep = this.irep;
+		Object[] pool = this.pool;
+		Object[] regs = this.regs;
+		int[] iregs = this.iregs;
+		Loop[] loopStack = this.loopStack;
+		int loopSP = this.loopSP;
+		int pc = this.pc;
+		boolean quickening = this.quickening;
+		Map<String, Object> outerVars = this.vars;
+
+		this.irep = nested;
+		this.pool = nested.getPool();
+		this.regs = new Object[nested.getRegisterCount()];
+		this.iregs = new int[nested.getRegisterCount()];
+		this.loopStack = new Loop[nested.getLoopStackSize()];
+		this.loopSP = 0;
+		this.pc = 0;
+		this.quickening = false;
+		this.vars = vars;
+		try {
+			this.execute();
+		} finally {
+			this.irep = irep;
+			this.pool = pool;
+			this.regs = regs;
+			this.iregs = iregs;
+			this.loopStack = loopStack;
+			this.loopSP = loopSP;
+			this.pc = pc;
+			this.quickening = quickening;
+			this.vars = outerVars;
+		}
+	}
+
+	public void opAttribute(int a, int b) {
+		regs[a] = this.getAttribute(regs[a], regs[b]);
+	}
+
+	/**
+	 * regs[A] = regs[A].pool[B]. LOAD_CONST and ATTRIBUTE.
+	 */
+	public void opAttributeConst(int a, int b) {
+		Object container = regs[a];
+		regs[a] = this.getAttribute(container, pool[b]);
+		quickenAttribute(container, pool[b], OP.ATTRIBUTE_CONST_MAP,
+				OP.ATTRIBUTE_CONST_BEAN);
+	}
+
+	public void opMakeMap(int a, int b) {
+		Map<String, Object> map = new HashMap<>();
+		for (int i = 0; i < b; i += 2) {
+			Object key = regs[a + i];
+			Object value = regs[a + i + 1];
+			map.put(key.toString(), value);
+		}
+		regs[a] = map;
+	}
+
+	public void opLc(int a, int b) {
+		regs[a] = regs[a].toString().toLowerCase();
+	}
+
+	public void opUc(int a, int b) {
+		regs[a] = regs[a].toString().toUpperCase();
+	}
+
+	public void opUriEscape(int a, int b) {
+		regs[a] = UrlEscapers.urlFormParameterEscaper().escape(
+				regs[a].toString());
+	}
+
+	public void opSprintf(int a, int b) {
+		Object[] args = new Object[b - 1];
+		for (int i = 1; i < b; ++i) {
+			args[i - 1] = regs[a + i];
+		}
+		String format = regs[a].toString();
+		String result = String.format(format, args);
+		regs[a] = result;
+	}
+
+	public void opFuncall(int a, int b) {
+		Object method = regs[a];
+		if (method instanceof String) {
+			Function function = this.functions.get(method);
+			if (function != null) {
+				Object[] objects = new Object[b];
+				for (int i = 0; i < b; ++i) {
+					objects[i] = regs[a + 1 + i];
+				}
+				regs[a] = function.call(objects);
+			} else {
+				warn("Unknown function: " + method);
+				regs[a] = null;
+			}
+		} else {
+			throw new RuntimeException("NIY: " + method.getClass());
+		}
+	}
+
+	public void opMakeRange(int a, int b) throws JTTError {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (!(lhs instanceof Integer)) {
+			throw new JTTError(
+					"Left side of range construction operator should be Integer but : "
+							+ lhs.getClass());
+		}
+		if (!(rhs instanceof Integer)) {
+			throw new JTTError(
+					"Right side of range construction operator should be Integer but : "
+							+ rhs.getClass());
+		}
+
+		int startInclusive = ((Integer) lhs).intValue();
+		int endInclusive = ((Integer) rhs).intValue();
+		regs[a] = IntStream.rangeClosed(startInclusive, endInclusive);
+	}
+
+	public void opNot(int a, int b) {
+		regs[a] = !convertToBoolean(regs[a]);
+	}
+
+	public void opMethodCall(int a, int b) {
+		regs[a] = doMethodCall(a, b);
+	}
+
+	public void opLoopIndex(int a, int b) {
+		regs[a] = loopStack[loopSP - 1].getIndex();
+	}
+
+	public void opLoopCount(int a, int b) {
+		regs[a] = loopStack[loopSP - 1].getCount();
+	}
+
+	public void opLoopHasNext(int a, int b) {
+		regs[a] = loopStack[loopSP - 1].hasNext();
+	}
+
+	/*
+	 * Instructions for the int registers. The compiler uses them for the
+	 * expressions known to be int at compile time, then the values are not
+	 * boxed until BOX_I.
+	 */
+
+	public void opLoadIntI(int a, int b) {
+		iregs[b] = a;
+	}
+
+	public void opLoopIndexI(int a, int b) {
+		iregs[a] = loopStack[loopSP - 1].getCount() - 1;
+	}
+
+	public void opLoopCountI(int a, int b) {
+		iregs[a] = loopStack[loopSP - 1].getCount();
+	}
+
+	public void opAddI(int a, int b) {
+		iregs[a] += iregs[b];
+	}
+
+	public void opSubtractI(int a, int b) {
+		iregs[a] -= iregs[b];
+	}
+
+	public void opMultiplyI(int a, int b) {
+		iregs[a] *= iregs[b];
+	}
+
+	public void opDivideI(int a, int b) {
+		iregs[a] /= iregs[b];
+	}
+
+	public void opModuloI(int a, int b) {
+		iregs[a] %= iregs[b];
+	}
+
+	public void opEqualsI(int a, int b) {
+		regs[a] = Boolean.valueOf(iregs[a] == iregs[b]);
+	}
+
+	public void opNeI(int a, int b) {
+		regs[a] = Boolean.valueOf(iregs[a] != iregs[b]);
+	}
+
+	public void opGtI(int a, int b) {
+		regs[a] = Boolean.valueOf(iregs[a] > iregs[b]);
+	}
+
+	public void opGeI(int a, int b) {
+		regs[a] = Boolean.valueOf(iregs[a] >= iregs[b]);
+	}
+
+	public void opLtI(int a, int b) {
+		regs[a] = Boolean.valueOf(iregs[a] < iregs[b]);
+	}
+
+	public void opLeI(int a, int b) {
+		regs[a] = Boolean.valueOf(iregs[a] <= iregs[b]);
+	}
+
+	/**
+	 * regs[A] = iregs[A]
+	 */
+	public void opBoxI(int a, int b) {
+		regs[a] = Integer.valueOf(iregs[a]);
+	}
+
+	/*
+	 * Quickening. The generic instructions observe the operand types, and
+	 * rewrite themselves into the quickened forms. The quickened forms check
+	 * the operand types, and fall back to the generic form if the check
+	 * fails. After some failures, the instruction stays generic. See
+	 * Irep#quicken.
+	 */
+
+	private void quicken(OP op) {
+		if (quickening) {
+			irep.quicken(pc, op);
+		}
+	}
+
+	private void deoptimize(OP op) {
+		if (quickening) {
+			irep.deoptimize(pc, op);
+		}
+	}
+
+	private void quickenNumeric(Object lhs, Object rhs, OP intOp,
+			OP doubleOp) {
+		if (!quickening) {
+			return;
+		}
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			quicken(intOp);
+		} else if (doubleOp != null && lhs instanceof Double
+				&& rhs instanceof Double) {
+			quicken(doubleOp);
+		}
+	}
+
+	private void quickenAttribute(Object container, Object name, OP mapOp,
+			OP beanOp) {
+		if (!quickening || container == null || name == null) {
+			return;
+		}
+		if (container instanceof Map) {
+			quicken(mapOp);
+		} else if (!(container instanceof List)) {
+			AttributeCache cache = irep.getAttributeCache(pc);
+			if (cache != null && cache.getMonomorphic() != null) {
+				quicken(beanOp);
+			}
+		}
+	}
+
+	public void opAddInt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			regs[a] = Integer.valueOf((Integer) lhs + (Integer) rhs);
+		} else {
+			deoptimize(OP.ADD);
+			opAdd(a, b);
+		}
+	}
+
+	public void opAddDouble(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Double && rhs instanceof Double) {
+			regs[a] = Double.valueOf((Double) lhs + (Double) rhs);
+		} else {
+			deoptimize(OP.ADD);
+			opAdd(a, b);
+		}
+	}
+
+	public void opSubtractInt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			regs[a] = Integer.valueOf((Integer) lhs - (Integer) rhs);
+		} else {
+			deoptimize(OP.SUBTRACT);
+			opSubtract(a, b);
+		}
+	}
+
+	public void opSubtractDouble(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Double && rhs instanceof Double) {
+			regs[a] = Double.valueOf((Double) lhs - (Double) rhs);
+		} else {
+			deoptimize(OP.SUBTRACT);
+			opSubtract(a, b);
+		}
+	}
+
+	public void opMultiplyInt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			regs[a] = Integer.valueOf((Integer) lhs * (Integer) rhs);
+		} else {
+			deoptimize(OP.MULTIPLY);
+			opMultiply(a, b);
+		}
+	}
+
+	public void opMultiplyDouble(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Double && rhs instanceof Double) {
+			regs[a] = Double.valueOf((Double) lhs * (Double) rhs);
+		} else {
+			deoptimize(OP.MULTIPLY);
+			opMultiply(a, b);
+		}
+	}
+
+	/*
+	 * The comparisons use Integer.compare and Double.compare, which are same
+	 * as compareTo in the generic form. e.g. NaN is greater than any other
+	 * double.
+	 */
+
+	public void opGtInt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			regs[a] = Boolean.valueOf(Integer.compare((Integer) lhs,
+					(Integer) rhs) > 0);
+		} else {
+			deoptimize(OP.GT);
+			opGt(a, b);
+		}
+	}
+
+	public void opGtDouble(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Double && rhs instanceof Double) {
+			regs[a] = Boolean.valueOf(Double.compare((Double) lhs,
+					(Double) rhs) > 0);
+		} else {
+			deoptimize(OP.GT);
+			opGt(a, b);
+		}
+	}
+
+	public void opGeInt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			regs[a] = Boolean.valueOf(Integer.compare((Integer) lhs,
+					(Integer) rhs) >= 0);
+		} else {
+			deoptimize(OP.GE);
+			opGe(a, b);
+		}
+	}
+
+	public void opGeDouble(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Double && rhs instanceof Double) {
+			regs[a] = Boolean.valueOf(Double.compare((Double) lhs,
+					(Double) rhs) >= 0);
+		} else {
+			deoptimize(OP.GE);
+			opGe(a, b);
+		}
+	}
+
+	public void opLtInt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			regs[a] = Boolean.valueOf(Integer.compare((Integer) lhs,
+					(Integer) rhs) < 0);
+		} else {
+			deoptimize(OP.LT);
+			opLt(a, b);
+		}
+	}
+
+	public void opLtDouble(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Double && rhs instanceof Double) {
+			regs[a] = Boolean.valueOf(Double.compare((Double) lhs,
+					(Double) rhs) < 0);
+		} else {
+			deoptimize(OP.LT);
+			opLt(a, b);
+		}
+	}
+
+	public void opLeInt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			regs[a] = Boolean.valueOf(Integer.compare((Integer) lhs,
+					(Integer) rhs) <= 0);
+		} else {
+			deoptimize(OP.LE);
+			opLe(a, b);
+		}
+	}
+
+	public void opLeDouble(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Double && rhs instanceof Double) {
+			regs[a] = Boolean.valueOf(Double.compare((Double) lhs,
+					(Double) rhs) <= 0);
+		} else {
+			deoptimize(OP.LE);
+			opLe(a, b);
+		}
+	}
+
+	public void opEqualsInt(int a, int b) {
+		Object lhs = regs[a];
+		Object rhs = regs[b];
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			regs[a] = Boolean.valueOf(((Integer) lhs).intValue() == ((Integer) rhs)
+					.intValue());
+		} else {
+			deoptimize(OP.EQUALS);
+			opEquals(a, b);
+		}
+	}
+
+	public void opEqualsString(int a, int b) {
+		Object lhs = regs[a];
+		if (lhs instanceof String) {
+			regs[a] = Boolean.valueOf(((String) lhs).equals(regs[b]));
+		} else {
+			deoptimize(OP.EQUALS);
+			opEquals(a, b);
+		}
+	}
+
+	public void opAttributeConstMap(int a, int b) {
+		Object container = regs[a];
+		if (container instanceof Map) {
+			regs[a] = ((Map<?, ?>) container).get(pool[b].toString());
+		} else {
+			deoptimize(OP.ATTRIBUTE_CONST);
+			opAttributeConst(a, b);
+		}
+	}
+
+	public void opAttributeConstBean(int a, int b) {
+		Object container = regs[a];
+		AttributeCache.Entry entry = irep.getAttributeCache(pc)
+				.getMonomorphic();
+		if (container != null && entry != null
+				&& entry.klass == container.getClass()) {
+			regs[a] = entry.get(container);
+		} else {
+			deoptimize(OP.ATTRIBUTE_CONST);
+			opAttributeConst(a, b);
+		}
+	}
+
+	public void opAppendAttrMap(int a, int b) {
+		Object container = regs[a];
+		if (container instanceof Map) {
+			appendValue(((Map<?, ?>) container).get(pool[b].toString()));
+		} else {
+			deoptimize(OP.APPEND_ATTR);
+			opAppendAttr(a, b);
+		}
+	}
+
+	public void opAppendAttrBean(int a, int b) {
+		Object container = regs[a];
+		AttributeCache.Entry entry = irep.getAttributeCache(pc)
+				.getMonomorphic();
+		if (container != null && entry != null
+				&& entry.klass == container.getClass()) {
+			appendValue(entry.get(container));
+		} else {
+			deoptimize(OP.APPEND_ATTR);
+			opAppendAttr(a, b);
+		}
+	}
+
+	public void opMethodCallCached(int a, int b) {
+		Object object = regs[a];
+		MethodCallCache.Entry entry = irep.getMethodCallCache(pc).get();
+		if (object == null || entry == null
+				|| entry.klass != object.getClass()
+				|| !entry.name.equals(regs[a + 1])) {
+			deoptimize(OP.METHOD_CALL);
+			opMethodCall(a, b);
+			return;
+		}
+
+		Object[] params = new Object[b];
+		for (int i = 0; i < b; ++i) {
+			params[i] = regs[a + i + 2];
+		}
+		try {
+			regs[a] = entry.access.invoke(object, entry.index, params);
+		} catch (IllegalArgumentException e) {
+			warn(e.toString());
+			regs[a] = null;
+		}
+	}
+
+	public void opGetElem(int a, int b) throws VMError {
+		Object container = regs[a];
+		Object key = regs[b];
+		if (container instanceof Map) {
+			Object elem = ((Map<?, ?>) container).get(key);
+			regs[a] = elem;
+		} else if (container instanceof List) {
+			Object elem = ((List<?>) container).get((Integer) key);
+			regs[a] = elem;
+		} else {
+			throw this.createError("Container must be List or Map: "
+					+ container.getClass());
 		}
-		this.regs = new Object[irep.getRegisterCount()];
-		this.loopStack = new Loop[irep.getLoopStackSize()];
+	}
 
-		this.pc = 0;
+	/**
+	 * Test regs[A] for JUMP_IF_FALSE.
+	 */
+	public boolean isTrueReg(int a) {
+		return isTrue(regs[a]);
 	}
 
-	public String run() throws JTTError {
+	/*
+	 * Compare regs[A] and regs[A+1] for JUMP_UNLESS_*. Same as the
+	 * comparison followed by JUMP_IF_FALSE.
+	 */
 
-		Code[] codes = irep.getIseq();
-		Object[] pool = irep.getPool();
+	public boolean isEqualsReg(int a) {
+		return doEquals(regs[a], regs[a + 1]);
+	}
 
-		while (true) {
-			Code code = codes[pc];
+	public boolean isNeReg(int a) {
+		return isTrue(doNotEquals(regs[a], regs[a + 1]));
+	}
 
-			// System.out.println(String.format("%06d %s", pc, code.op));
+	public boolean isGtReg(int a) {
+		return isTrue(doGT(regs[a], regs[a + 1]));
+	}
 
-			switch (code.op) {
-			case LOAD_CONST:
-				assert code.b != -1;
-				regs[code.b] = pool[code.a];
-				++pc;
-				break;
-			case LOAD_INT:
-				regs[code.b] = code.a;
-				++pc;
-				break;
-			case APPEND_RAW: {
-				buffer.append(pool[code.a]);
-				++pc;
-				break;
-			}
-			case APPEND:
-				opAppend(code);
-				break;
-			case ADD: {
-				regs[code.a] = doAdd(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			}
-			case MODULO: {
-				regs[code.a] = doModulo(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			}
-			case SUBTRACT: {
-				regs[code.a] = doSubtract(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			}
-			case MULTIPLY: {
-				regs[code.a] = doMultiply(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			}
-			case DIVIDE: {
-				regs[code.a] = doDivide(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			}
-			case ANDAND: { // && operator
-				regs[code.a] = convertToBoolean(regs[code.a])
-						&& convertToBoolean(regs[code.b]);
-				++pc;
-				break;
-			}
-			case OROR: { // && operator
-				regs[code.a] = convertToBoolean(regs[code.a])
-						|| convertToBoolean(regs[code.b]);
-				++pc;
-				break;
-			}
-			case MATCH: // Smart match for SWITCH.
-			case EQUALS: {
-				regs[code.a] = doEquals(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			}
-			case NE:
-				regs[code.a] = doNotEquals(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			case GT:
-				regs[code.a] = doGT(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			case GE:
-				regs[code.a] = doGE(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			case LT:
-				regs[code.a] = doLT(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			case LE:
-				regs[code.a] = doLE(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			case CONCAT:
-				regs[code.a] = opConcat(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			case LOAD_TRUE:
-				regs[code.a] = Boolean.TRUE;
-				++pc;
-				break;
-			case LOAD_FALSE:
-				regs[code.a] = Boolean.FALSE;
-				++pc;
-				break;
-			case LOAD_NULL:
-				regs[code.a] = null;
-				++pc;
-				break;
-			case MOVE:
-				regs[code.a] = regs[code.b];
-				++pc;
-				break;
-			case GET_ELEM: { // a[0], a['hoge']
-				this.opGetElem(code);
-				++pc;
-				break;
-			}
-			case LOAD_VAR:
-				opLoadVar(pool, code);
-				break;
-			case SET_VAR:
-				opSetVar(pool, code);
-				break;
-			case MAKE_ARRAY: {
-				LinkedList<Object> list = new LinkedList<Object>();
-				for (int i = 0; i < code.b; ++i) {
-					list.add(regs[code.a + i]);
-				}
-				regs[code.a] = list;
-				++pc;
-				break;
-			}
-			case RETURN: {
-				String result = new String(buffer);
-				this.irep.setCapacityHint(result.length());
-				return result;
-			}
-			case FOR_START:
-				opForStart(code);
-				break;
-			case FOR_ITER:
-				opForIter(code);
-				break;
-			case JUMP:
-				pc += code.a;
-				break;
-			case JUMP_ABS:
-				pc = code.a;
-				break;
-			case JUMP_IF_FALSE: {
-				boolean b = isTrue(regs[code.a]);
-				if (!b) {
-					pc += code.b;
-				} else {
-					++pc;
-				}
-				break;
-			}
-			case INCLUDE: {
-				String path = (String) regs[code.a];
-				Irep compiledIrep = loader.compile(path, syntax);
-				String result = this.newVM(compiledIrep, vars).run();
-				regs[code.a] = result;
-				++pc;
-				break;
-			}
-			case WRAP: {
-				String path = (String) regs[code.a];
-				Irep compiledIrep = loader.compile(path, syntax);
-				HashMap<String, Object> newvars = new HashMap<>(vars);
-				newvars.put("content", buffer.toString());
-				buffer.delete(0, buffer.length());
-				String result = this.newVM(compiledIrep, newvars).run();
-				buffer.append(result);
-				++pc;
-				break;
-			}
-			case ATTRIBUTE: {
-				regs[code.a] = this.getAttribute(regs[code.a], regs[code.b]);
-				++pc;
-				break;
-			}
-			case MAKE_MAP: {
-				Map<String, Object> map = new HashMap<>();
-				for (int i = 0; i < code.b; i += 2) {
-					Object key = regs[code.a + i];
-					Object value = regs[code.a + i + 1];
-					map.put(key.toString(), value);
-				}
-				regs[code.a] = map;
-				++pc;
-				break;
-			}
-			case LC: {
-				regs[code.a] = regs[code.a].toString().toLowerCase();
-				++pc;
-				break;
-			}
-			case UC: {
-				regs[code.a] = regs[code.a].toString().toUpperCase();
-				++pc;
-				break;
-			}
-			case URI_ESCAPE: {
-				regs[code.a] = UrlEscapers.urlFormParameterEscaper().escape(
-						regs[code.a].toString());
-				++pc;
-				break;
-			}
-			case SPRINTF: {
-				Object[] args = new Object[code.b - 1];
-				for (int i = 1; i < code.b; ++i) {
-					args[i - 1] = regs[code.a + i];
-				}
-				String format = regs[code.a].toString();
-				String result = String.format(format, args);
-				regs[code.a] = result;
-				++pc;
-				break;
-			}
-			case FUNCALL: {
-				doFuncall(code);
-				++pc;
-				break;
-			}
-			case MAKE_RANGE: {
-				doMakeRange(code);
-				++pc;
-				break;
-			}
-			case NOT: {
-				regs[code.a] = !convertToBoolean(regs[code.a]);
-				++pc;
-				break;
-			}
-			case METHOD_CALL: {
-				regs[code.a] = doMethodCall(code);
-				++pc;
-				break;
-			}
-			case LOOP_INDEX: {
-				regs[code.a] = loopStack[loopSP - 1].getIndex();
-				++pc;
-				break;
-			}
-			case LOOP_COUNT: {
-				regs[code.a] = loopStack[loopSP - 1].getCount();
-				++pc;
-				break;
-			}
-			case LOOP_HAS_NEXT:
-				regs[code.a] = loopStack[loopSP - 1].hasNext();
-				++pc;
-				break;
-			default:
-				throw new RuntimeException("SHOULD NOT REACH HERE: " + code.op);
-			}
-		}
+	public boolean isGeReg(int a) {
+		return doGE(regs[a], regs[a + 1]);
 	}
 
-	/**
-	 * Append regs[A] into string builder.
-	 * 
-	 * @param code
-	 */
-	private void opAppend(Code code) {
-		Object obj = regs[code.a];
-		if (obj == null) {
-			warn("Appending null");
-			buffer.append("(null)");
-		} else if (obj instanceof JTTRawString) {
-			buffer.append(((JTTRawString) obj).toString());
-		} else {
-			buffer.append(escaper.escape(obj.toString()));
-		}
-		++pc;
+	public boolean isLtReg(int a) {
+		return isTrue(doLT(regs[a], regs[a + 1]));
 	}
 
-	private void opSetVar(Object[] pool, Code code) {
-		vars.put((String) pool[code.a], regs[code.b]);
-		++pc;
+	public boolean isLeReg(int a) {
+		return isTrue(doLE(regs[a], regs[a + 1]));
 	}
 
-	private void opLoadVar(Object[] pool, Code code) {
-		regs[code.b] = vars.get(pool[code.a]);
-		++pc;
+	/**
+	 * Set the current position. Generated code calls this before running
+	 * each instruction, for warnings and error messages.
+	 */
+	public void setPC(int pc) {
+		this.pc = pc;
 	}
 
 	/**
-	 * Start new iterator. Created new iterator will put on the regs[A].
+	 * Get the output destination for INCLUDE/WRAP. If the VM is writing
+	 * through to the sink, nested VM writes into the sink directly.
 	 */
-	private void opForStart(final Code code) {
-		Object container = regs[code.a];
-		Iterator<Object> iterator = this.getIterator(container);
-		Loop loop = new Loop(iterator);
-		loopStack[loopSP] = loop;
-		++loopSP;
+	private Appendable getNestedOutput() {
+		if (sink != null && captureStack.isEmpty()) {
+			this.flush();
+			return sink;
+		} else {
+			return buffer;
+		}
+	}
 
-		++pc;
+	private void flushIfNeeded() {
+		if (buffer.length() >= FLUSH_THRESHOLD && sink != null
+				&& captureStack.isEmpty()) {
+			this.flush();
+		}
+	}
+
+	private void flush() {
+		if (sink == null || buffer.length() == 0) {
+			return;
+		}
+		try {
+			sink.append(buffer);
+		} catch (IOException e) {
+			throw new JTTError(e);
+		}
+		buffer.setLength(0);
 	}
 
 	// Get iterator from top of stack.
@@ -402,33 +1470,14 @@ public class VM {
 		}
 	}
 
-	/**
-	 * Get next element from the current iterator.
-	 */
-	private void opForIter(Code code) {
-		// FOR_ITER()
-
-		assert loopSP > 0;
-
-		Loop loop = loopStack[loopSP - 1];
-		if (loop.hasNext()) {
-			regs[code.a] = loop.next();
-			++pc;
-		} else {
-			// There is no rest element in iterator.
-			--loopSP;
-			pc = code.b;
-		}
-	}
-
-	private Object doMethodCall(Code code) {
-		Object[] params = new Object[code.b];
-		for (int i = 0; i < code.b; ++i) {
-			params[i] = regs[code.a + i + 2];
+	private Object doMethodCall(int a, int b) {
+		Object[] params = new Object[b];
+		for (int i = 0; i < b; ++i) {
+			params[i] = regs[a + i + 2];
 		}
 
-		Object methodName = regs[code.a + 1];
-		Object object = regs[code.a];
+		Object methodName = regs[a + 1];
+		Object object = regs[a];
 
 		try {
 			MethodAccess access = methodAccessCache.get(object.getClass());
@@ -437,8 +1486,16 @@ public class VM {
 				methodAccessCache.put(object.getClass(), access);
 			}
 
-			Object retval = access
-					.invoke(object, methodName.toString(), params);
+			String name = methodName.toString();
+			int index = access.getIndex(name, params.length);
+			Object retval = access.invoke(object, index, params);
+
+			MethodCallCache cache = irep.getMethodCallCache(pc);
+			if (quickening && cache != null) {
+				cache.set(new MethodCallCache.Entry(object.getClass(), name,
+						access, index));
+				quicken(OP.METHOD_CALL_CACHED);
+			}
 			return retval;
 		} catch (IllegalArgumentException e) {
 			warn(e.toString());
@@ -458,44 +1515,6 @@ public class VM {
 		}
 	}
 
-	private void doMakeRange(Code code) throws JTTError {
-		Object lhs = regs[code.a];
-		Object rhs = regs[code.b];
-		if (!(lhs instanceof Integer)) {
-			throw new JTTError(
-					"Left side of range construction operator should be Integer but : "
-							+ lhs.getClass());
-		}
-		if (!(rhs instanceof Integer)) {
-			throw new JTTError(
-					"Right side of range construction operator should be Integer but : "
-							+ rhs.getClass());
-		}
-
-		int startInclusive = ((Integer) lhs).intValue();
-		int endInclusive = ((Integer) rhs).intValue();
-		regs[code.a] = IntStream.rangeClosed(startInclusive, endInclusive);
-	}
-
-	private void doFuncall(Code code) {
-		Object method = regs[code.a];
-		if (method instanceof String) {
-			Function function = this.functions.get(method);
-			if (function != null) {
-				Object[] objects = new Object[code.b];
-				for (int i = 0; i < code.b; ++i) {
-					objects[i] = regs[code.a + 1 + i];
-				}
-				regs[code.a] = function.call(objects);
-			} else {
-				warn("Unknown function: " + method);
-				regs[code.a] = null;
-			}
-		} else {
-			throw new RuntimeException("NIY: " + method.getClass());
-		}
-	}
-
 	private Object getAttribute(Object container, Object index) {
 		if (container instanceof Map) {
 			if (index == null) {
@@ -522,35 +1541,43 @@ public class VM {
 		} else if (container == null) {
 			warn("container is null");
 			return null;
+		} else if (index instanceof String) {
+			return this.getField(container, (String) index);
+		} else if (index == null) {
+			warn("null index for accessor name");
+			return null;
 		} else {
-			FieldAccess access;
-			Class<? extends Object> klass = container.getClass();
-			if (fieldAccessCache.containsKey(klass)) {
-				access = fieldAccessCache.get(klass);
-			} else {
-				access = FieldAccess.get(container.getClass());
-				fieldAccessCache.put(klass, access);
-			}
+			warn("Index is not a string: " + index.getClass());
+			return null;
+		}
+	}
 
-			if (index instanceof String) {
-				try {
-					Object result = access.get(container, (String) index);
-					return result;
-				} catch (IllegalArgumentException e) {
-					warn(e.toString());
-					return null;
-				}
-			} else if (index == null) {
-				warn("null index for accessor name");
-				return null;
-			} else {
-				warn("Index is not a string: " + index.getClass());
-				return null;
+	/**
+	 * Get the property value. The resolved accessor is cached on the inline
+	 * cache of the current ATTRIBUTE instruction.
+	 */
+	private Object getField(Object container, String name) {
+		Class<?> klass = container.getClass();
+		AttributeCache cache = irep.getAttributeCache(pc);
+		if (cache != null) {
+			AttributeCache.Entry entry = cache.lookup(klass, name);
+			if (entry != null) {
+				return entry.get(container);
 			}
 		}
+
+		PropertyAccessor accessor = PropertyAccessor.get(klass, name);
+		if (accessor == null) {
+			warn("Unknown property '" + name + "' for " + klass.getName());
+			return null;
+		}
+		if (cache != null) {
+			cache.add(klass, name, accessor);
+		}
+		return accessor.get(container);
 	}
 
-	private Object opConcat(Object lhs, Object rhs) {
+	private Object doConcat(Object lhs, Object rhs) {
 		StringBuilder builder = new StringBuilder();
 		if (lhs == null) {
 			warn("null in string concatenation.");
@@ -585,21 +1612,6 @@ public class VM {
 		return true;
 	}
 
-	private void opGetElem(Code code) throws VMError {
-		Object container = regs[code.a];
-		Object key = regs[code.b];
-		if (container instanceof Map) {
-			Object elem = ((Map<?, ?>) container).get(key);
-			regs[code.a] = elem;
-		} else if (container instanceof List) {
-			Object elem = ((List<?>) container).get((Integer) key);
-			regs[code.a] = elem;
-		} else {
-			throw this.createError("Container must be List or Map: "
-					+ container.getClass());
-		}
-	}
-
 	private Object doAdd(Object lhs, Object rhs) throws VMError {
 		if (lhs instanceof Integer) {
 			if (rhs instanceof Integer) {
@@ -723,14 +1735,14 @@ public class VM {
 		if (lhs == null) {
 			return rhs == null;
 		}
-		return new Boolean(lhs.equals(rhs));
+		return Boolean.valueOf(lhs.equals(rhs));
 	}
 
 	private Object doNotEquals(Object lhs, Object rhs) {
 		if (lhs == null) {
 			return rhs != null;
 		}
-		return new Boolean(!lhs.equals(rhs));
+		return Boolean.valueOf(!lhs.equals(rhs));
 	}
 
 	// lhs > rhs
@@ -805,7 +1817,9 @@ public class VM {
 		builder.append("]\n");
 		builder.append(new Disassembler().disasm(this.irep, this.pc));
 		builder.append("Buffer:\n");
-		builder.append(new String(this.buffer));
+		if (this.buffer != null) {
+			builder.append(new String(this.buffer));
+		}
 		return new String(builder);
 	}
 
@@ -0,0 +1,42 @@
+package me.geso.jtt;
+
+import static me.geso.jtt.TestTemplates.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import me.geso.jtt.vm.Irep;
+
+import org.junit.Test;
+
+public class BoundedTemplateCacheTest {
+
+	@Test
+	public void testStats() {
+		BoundedTemplateCache cache = new BoundedTemplateCache(1024 * 1024);
+		Irep irep = compile("hoge");
+		cache.set("/tmp/a.tt", irep);
+
+		assertSame(irep, cache.get("/tmp/a.tt"));
+		assertNull(cache.get("/tmp/b.tt"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testEviction() {
+		Irep irep = compile("[% FOR x IN [1,2,3] %][% x %][% END %]");
+		long limit = irep.estimateSize() * 10;
+		BoundedTemplateCache cache = new BoundedTemplateCache(limit);
+		for (int i = 0; i < 100; ++i) {
+			cache.set("/tmp/" + i + ".tt", irep);
+		}
+
+		assertTrue(cache.size() <= 10);
+		assertTrue(cache.getEvictionCount() >= 90);
+		// The last one is alive.
+		assertSame(irep, cache.get("/tmp/99.tt"));
+	}
+}
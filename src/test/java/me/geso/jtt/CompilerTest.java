@@ -1,8 +1,14 @@
 package me.geso.jtt;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +23,7 @@ import me.geso.jtt.tt.TTSyntax;
 import me.geso.jtt.vm.Irep;
 import me.geso.jtt.vm.VM;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 import com.google.common.collect.ImmutableMap;
@@ -592,6 +599,108 @@ public class CompilerTest {
 	//
 	// ---------------------------------------------------------------------
 
+	@Test
+	public void testRegisterReuse() throws JTTCompilerError, ParserError,
+			IOException, TemplateLoadingError {
+		StringBuilder builder = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20; ++i) {
+			builder.append("[% " + i + " + (x + 2) * 3 %]");
+			expected.append(i + 9);
+		}
+		String src = builder.toString();
+		Irep irep = TestTemplates.compile(syntax, src);
+		// Each expression reuses the registers of the previous one.
+		assertEquals(3, irep.getRegisterCount());
+		assertEquals(expected.toString(), eval(src, ImmutableMap.of("x", 1)));
+	}
+
+	@Test
+	public void testLoopVariableAfterLoop() throws JTTCompilerError,
+			ParserError, IOException, TemplateLoadingError {
+		// The register for x must not be reused by the temporaries.
+		assertEquals("12|32",
+				eval("[% FOR x IN [1,2] %][% x %][% END %]|[% 1 + 2 %][% x %]"));
+	}
+
+	@Test
+	public void testSuperinstructions() throws JTTCompilerError,
+			ParserError, IOException, TemplateLoadingError {
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("items", Lists.newArrayList(ImmutableMap.of("n", 1),
+				ImmutableMap.of("n", 5)));
+		vars.put("foo", "<>");
+		assertEquals(
+				"1&lt;&gt;x|5&lt;&gt;y|",
+				eval("[% FOR item IN items %][% item.n %][% foo %][% IF item.n > 3 %]y[% ELSE %]x[% END %]|[% END %]",
+						vars));
+		assertEquals("1&lt;&gt;",
+				eval("[% FOR item IN items %][% IF loop.index == 0 %][% item.n %][% foo %][% END %][% END %]",
+						vars));
+	}
+
+	@Test
+	public void testIntExpressions() throws JTTCompilerError, ParserError,
+			IOException, TemplateLoadingError {
+		assertEquals(
+				"1:0:3:true|2:1:5:false|3:2:7:true|",
+				eval("[% FOR x IN [5,6,7] %][% loop.count %]:[% loop.index %]:[% loop.count * 2 + 1 %]:[% loop.count % 2 == 1 %]|[% END %]"));
+		assertEquals("a-b-c",
+				eval("[% FOR x IN ['a','b','c'] %][% IF loop.index > 0 %]-[% END %][% x %][% END %]"));
+		// Not int. Use the generic instructions.
+		assertEquals("0.5", eval("[% FOR x IN [1] %][% 0.5 * loop.count %][% END %]"));
+		assertEquals("1000", eval("[% 999 + x %]",
+				ImmutableMap.<String, Object> of("x", 1)));
+	}
+
+	@Test
+	public void testIntExpressionsAllocateNothing() throws JTTCompilerError,
+			ParserError, IOException, TemplateLoadingError {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+
+		String src = "[% FOR x IN items %][% IF loop.count % 2 == 0 && loop.index * 3 > 1000 %]x[% END %][% END %]";
+		Irep irep = TestTemplates.compile(syntax, src);
+		Map<String, Object> small = new HashMap<>();
+		small.put("items", new ArrayList<>(Collections.nCopies(1000, 1)));
+		Map<String, Object> large = new HashMap<>();
+		large.put("items", new ArrayList<>(Collections.nCopies(101000, 1)));
+
+		for (int threshold : new int[] { -1, 0 }) {
+			long id = Thread.currentThread().getId();
+			// Warm up.
+			render(irep, small, threshold);
+			render(irep, large, threshold);
+
+			long before = threadBean.getThreadAllocatedBytes(id);
+			render(irep, small, threshold);
+			long mid = threadBean.getThreadAllocatedBytes(id);
+			render(irep, large, threshold);
+			long after = threadBean.getThreadAllocatedBytes(id);
+
+			// The output is one char for two iterations.
+			long perIteration = ((after - mid) - (mid - before)) / 100000;
+			assertTrue("allocated " + perIteration + " bytes per iteration",
+					perIteration <= 4);
+		}
+	}
+
+	@Test
+	public void testDependencies() {
+		String src = "[% INCLUDE 'a.tt' %][% WRAPPER 'layout.tt' %][% INCLUDE 'a.tt' %][% END %]";
+		Irep irep = TestTemplates.compile(syntax, src);
+		assertEquals(Arrays.asList("a.tt", "layout.tt"),
+				irep.getDependencies());
+	}
+
+	private String render(Irep irep, Map<String, Object> vars, int threshold) {
+		return new VM(syntax, loader, null, null, new HTMLEscaper(), irep,
+				vars, threshold).run();
+	}
+
 	private String eval(String src) throws ParserError, JTTCompilerError,
 			IOException, TemplateLoadingError {
 		return eval(src, new HashMap<String, Object>());
@@ -605,7 +714,15 @@ public class CompilerTest {
 		List<Token> tokens = syntax.tokenize(source, srcString);
 		Node ast = syntax.parse(source, tokens);
 		Irep irep = syntax.compile(source, ast);
-		return new VM(syntax, loader, null, null, new HTMLEscaper(), irep, vars)
-				.run();
+		String got = new VM(syntax, loader, null, null, new HTMLEscaper(),
+				irep, new HashMap<>(vars)).run();
+		// The bytecode compiled irep must render same result.
+		String compiled = new VM(syntax, loader, null, null,
+				new HTMLEscaper(), irep, new HashMap<>(vars), 0).run();
+		assertEquals(got, compiled);
+		// And the generator must have compiled it; VM falls back to the
+		// interpreter silently.
+		assertNotNull(irep.getCompiledIrep(0));
+		return got;
 	}
 }
@@ -0,0 +1,89 @@
+package me.geso.jtt;
+
+import static me.geso.jtt.TestTemplates.compile;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+
+import me.geso.jtt.parser.Node;
+import me.geso.jtt.tt.TTSyntax;
+import me.geso.jtt.vm.Irep;
+import me.geso.jtt.vm.OP;
+
+import org.junit.Test;
+
+public class ConstantFolderTest {
+	private final Syntax syntax = new TTSyntax();
+
+	private String fold(String src) {
+		Source source = Source.fromString(src);
+		Node ast = syntax.parse(source, syntax.tokenize(source, src));
+		return new ConstantFolder().fold(ast).toString();
+	}
+
+	@Test
+	public void testArithmetic() {
+		assertEquals("(template (expression (integer 20)))",
+				fold("[% (3+2)*4 %]"));
+		assertEquals("(template (expression (double 4.5)))",
+				fold("[% 1.5 * 3 %]"));
+		assertEquals("(template (expression (integer 1)))", fold("[% 7 % 3 %]"));
+	}
+
+	@Test
+	public void testNotFolded() {
+		// The VM reports these errors at run time.
+		assertEquals("(template (expression (divide (integer 1) (integer 0))))",
+				fold("[% 1 / 0 %]"));
+		assertEquals("(template (expression (add (integer 1) (double 1.5))))",
+				fold("[% 1 + 1.5 %]"));
+		assertEquals("(template (expression (concat (string a) (null))))",
+				fold("[% 'a' _ null %]"));
+		assertEquals("(template (expression (add (ident x) (integer 1))))",
+				fold("[% x + 1 %]"));
+	}
+
+	@Test
+	public void testComparison() {
+		assertEquals("(template (expression (true)))", fold("[% 3 == 3 %]"));
+		assertEquals("(template (expression (false)))", fold("[% 3 == 3.0 %]"));
+		assertEquals("(template (expression (true)))", fold("[% 'a' < 'b' %]"));
+		assertEquals("(template (expression (true)))", fold("[% !(1 > 2) %]"));
+	}
+
+	@Test
+	public void testConcatAndFunctions() {
+		assertEquals("(template (expression (string foo3)))",
+				fold("[% 'foo' _ 3 %]"));
+		assertEquals("(template (expression (string HOGE)))",
+				fold("[% uc('hoge') %]"));
+		assertEquals("(template (expression (string 3.14)))",
+				fold("[% sprintf('%.2f', 3.14159) %]"));
+	}
+
+	@Test
+	public void testDeadBranch() {
+		assertEquals("(template (raw_string abd))",
+				fold("a[% IF 1 == 1 %]b[% ELSE %]c[% END %]d"));
+		assertEquals("(template (raw_string ad))",
+				fold("a[% IF false %]b[% END %]d"));
+		assertEquals("(template (expression (string x)))",
+				fold("[% true ? 'x' : 'y' %]"));
+	}
+
+	@Test
+	public void testBranchWithLoopVariable() {
+		// x is a local variable even if the loop is not compiled.
+		assertEquals("(null)", new JTTBuilder().build().renderString(
+				"[% IF false %][% FOR x IN [1] %][% END %][% END %][% x %]",
+				new HashMap<>()));
+	}
+
+	@Test
+	public void testMergedRawString() {
+		Irep irep = compile("a[% IF true %]b[% END %]c");
+		assertEquals(2, irep.getIseqLength());
+		assertEquals(OP.APPEND_RAW, irep.getOP(0));
+		assertEquals("abc", irep.getPool()[irep.getA(0)]);
+	}
+}
@@ -1,16 +1,26 @@
 package me.geso.jtt;
 
+import static me.geso.jtt.TestTemplates.compile;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.HashMap;
 
 import me.geso.jtt.exception.JTTError;
+import me.geso.jtt.vm.Irep;
 
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableSet;
+
 /**
  * This class tests in memotry template cache class.
  * 
@@ -78,6 +88,121 @@ public class InMemoryTemplateCacheTest {
 		}
 	}
 
+	@Test
+	public void testCacheWithUpdateCheckHits() throws IOException, JTTError {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Path file = tmpdir.resolve("index.tt");
+		Files.write(file, "hoge".getBytes());
+
+		TemplateCache templateCache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_WITH_UPDATE_CHECK);
+		Irep irep = compile("hoge");
+		templateCache.set(file.toString(), irep);
+
+		// not modified.
+		assertSame(irep, templateCache.get(file.toString()));
+		assertSame(irep, templateCache.get(file.toString()));
+
+		// modified.
+		Files.write(file, "fuga".getBytes());
+		Files.setLastModifiedTime(file,
+				FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		assertNull(templateCache.get(file.toString()));
+	}
+
+	@Test
+	public void testCacheWithUpdateCheckModifiedWhileCompiling()
+			throws IOException, JTTError {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Path file = tmpdir.resolve("index.tt");
+		Files.write(file, "hoge".getBytes());
+
+		TemplateCache templateCache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_WITH_UPDATE_CHECK);
+		// The attributes are read before the source.
+		BasicFileAttributes attrs = Files.readAttributes(file,
+				BasicFileAttributes.class);
+		Irep irep = compile("hoge");
+
+		// The file is modified before the irep is cached.
+		Files.write(file, "fuga!".getBytes());
+		Files.setLastModifiedTime(file,
+				FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		templateCache.set(file.toString(), irep, attrs);
+		assertNull(templateCache.get(file.toString()));
+	}
+
+	@Test
+	public void testCacheWithUpdateCheckInterval() throws IOException,
+			JTTError {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Path file = tmpdir.resolve("index.tt");
+		Files.write(file, "hoge".getBytes());
+
+		TemplateCache templateCache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_WITH_UPDATE_CHECK,
+				60 * 1000);
+		Irep irep = compile("hoge");
+		templateCache.set(file.toString(), irep);
+
+		Files.write(file, "fuga!".getBytes());
+		// The file was checked recently. Cache returns the old one.
+		assertSame(irep, templateCache.get(file.toString()));
+	}
+
+	@Test
+	public void testCacheWithFileWatcher() throws IOException, JTTError,
+			InterruptedException {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Files.write(tmpdir.resolve("index.tt"), "hoge".getBytes());
+		Files.write(tmpdir.resolve("other.tt"), "other".getBytes());
+
+		try (InMemoryTemplateCache templateCache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_WITH_FILE_WATCHER)) {
+			JTT jtt = new JTTBuilder().setTemplateCache(templateCache)
+					.addIncludePath(tmpdir).build();
+
+			assertEquals("hoge", jtt.renderFile("index.tt", new HashMap<>()));
+			assertEquals("other", jtt.renderFile("other.tt", new HashMap<>()));
+			assertEquals(2, templateCache.size());
+
+			// rewrite
+			Files.write(tmpdir.resolve("index.tt"), "fuga".getBytes());
+
+			// Only the changed entry is evicted.
+			long limit = System.currentTimeMillis() + 10 * 1000;
+			while (templateCache.size() != 1
+					&& System.currentTimeMillis() < limit) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, templateCache.size());
+			assertEquals("fuga", jtt.renderFile("index.tt", new HashMap<>()));
+		}
+	}
+
+	@Test
+	public void testCacheWithFileWatcherModifiedWhileCompiling()
+			throws IOException, JTTError {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Path file = tmpdir.resolve("index.tt");
+		Files.write(file, "hoge".getBytes());
+
+		try (InMemoryTemplateCache templateCache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_WITH_FILE_WATCHER)) {
+			templateCache.watch(file);
+			BasicFileAttributes attrs = Files.readAttributes(file,
+					BasicFileAttributes.class);
+			Irep irep = compile("hoge");
+
+			// The event may be handled before the irep is cached.
+			Files.write(file, "fuga!".getBytes());
+			Files.setLastModifiedTime(file,
+					FileTime.fromMillis(System.currentTimeMillis() + 10000));
+			templateCache.set(file.toString(), irep, attrs);
+			assertNull(templateCache.get(file.toString()));
+		}
+	}
+
 	@Test
 	public void testCacheButDoNotCheckUpdates() throws IOException, JTTError {
 		Path tmpdir = Files.createTempDirectory("jtt");
@@ -106,4 +231,64 @@ public class InMemoryTemplateCacheTest {
 		}
 	}
 
+	@Test
+	public void testEvictDependents() throws IOException, JTTError {
+		Path tmpdir = Files.createTempDirectory("jtt").toRealPath();
+		Files.write(tmpdir.resolve("layout.tt"), "<[% content %]>".getBytes());
+		Files.write(tmpdir.resolve("page.tt"),
+				"[% WRAPPER 'layout.tt' %]page[% END %]".getBytes());
+		Files.write(tmpdir.resolve("index.tt"),
+				"[% INCLUDE 'page.tt' %]".getBytes());
+		Files.write(tmpdir.resolve("other.tt"), "other".getBytes());
+
+		InMemoryTemplateCache templateCache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES);
+		JTT jtt = new JTTBuilder().setTemplateCache(templateCache)
+				.addIncludePath(tmpdir).build();
+		assertEquals("<page>", jtt.renderFile("index.tt", new HashMap<>()));
+		assertEquals("other", jtt.renderFile("other.tt", new HashMap<>()));
+		assertEquals(4, templateCache.size());
+
+		String layout = tmpdir.resolve("layout.tt").toString();
+		assertEquals(
+				ImmutableSet.of(tmpdir.resolve("page.tt").toString(), tmpdir
+						.resolve("index.tt").toString()),
+				templateCache.getDependents(layout));
+
+		// The layout and the templates using it are evicted.
+		Files.write(tmpdir.resolve("layout.tt"), "[[% content %]]".getBytes());
+		templateCache.evict(layout);
+		assertEquals(1, templateCache.size());
+		assertNotNull(templateCache.get(tmpdir.resolve("other.tt").toString()));
+		assertEquals("[page]", jtt.renderFile("index.tt", new HashMap<>()));
+		assertEquals(2, templateCache.getDependents(layout).size());
+	}
+
+	@Test
+	public void testUpdateCheckEvictsDependents() throws IOException,
+			JTTError {
+		Path tmpdir = Files.createTempDirectory("jtt").toRealPath();
+		Path layout = tmpdir.resolve("layout.tt");
+		Files.write(layout, "<[% content %]>".getBytes());
+		Files.write(tmpdir.resolve("page.tt"),
+				"[% WRAPPER 'layout.tt' %]page[% END %]".getBytes());
+
+		InMemoryTemplateCache templateCache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_WITH_UPDATE_CHECK);
+		JTT jtt = new JTTBuilder().setTemplateCache(templateCache)
+				.addIncludePath(tmpdir).build();
+		Template template = jtt.getTemplate("page.tt");
+		Irep irep = template.getIrep();
+		assertEquals("<page>", template.render(null));
+
+		Files.write(layout, "[[% content %]]".getBytes());
+		Files.setLastModifiedTime(layout,
+				FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		assertNull(templateCache.get(layout.toString()));
+		// The page was evicted with the layout.
+		assertNull(templateCache.get(tmpdir.resolve("page.tt").toString()));
+		assertEquals("[page]", template.render(null));
+		assertNotSame(irep, template.getIrep());
+	}
+
 }
@@ -5,9 +5,11 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URL;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,9 +17,15 @@ import java.util.Map;
 import me.geso.jtt.exception.JTTError;
 import me.geso.jtt.exception.ParserError;
 import me.geso.jtt.exception.TemplateLoadingError;
+import me.geso.jtt.lexer.Token;
+import me.geso.jtt.parser.Node;
+import me.geso.jtt.tt.TTSyntax;
+import me.geso.jtt.vm.Irep;
 
 import org.junit.Test;
 
+import com.google.common.base.Strings;
+
 public class JTTTest {
 	int n = 0;
 	List<List<Object>> registry = new ArrayList<>();
@@ -91,6 +99,38 @@ public class JTTTest {
 				render("wrap.tt", new HashMap<>()));
 	}
 
+	@Test
+	public void testRenderFileToWriter() throws IOException, JTTError {
+		JTT jtt = new JTTBuilder().setIncludePaths(buildIncludePaths())
+				.build();
+		StringWriter writer = new StringWriter();
+		jtt.renderFile("inc1.tt", new HashMap<>(), writer);
+		assertEquals("INC1_HEAD\nINC2\n\nINC1_FOOT\n", writer.toString());
+
+		writer = new StringWriter();
+		jtt.renderFile("wrap.tt", new HashMap<>(), writer);
+		assertEquals("<body>\nfoo\n</body>\n\n", writer.toString());
+	}
+
+	@Test
+	public void testRenderStringWritesThrough() throws IOException, JTTError {
+		StringBuilder sink = new StringBuilder();
+		List<Integer> written = new ArrayList<>();
+		JTT jtt = new JTTBuilder().addFunction("written", args -> {
+			written.add(sink.length());
+			return "";
+		}).build();
+
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("items", Collections.nCopies(1000, "<item>"));
+		jtt.renderString("[% FOR x IN items %][% x %][% END %][% written() %]",
+				vars, sink);
+
+		// Output was written into the sink before the template finished.
+		assertTrue(written.get(0) > 0);
+		assertEquals(1000 * "&lt;item&gt;".length(), sink.length());
+	}
+
 	@Test
 	public void testRenderString1() throws IOException, JTTError {
 		List<String> items = new ArrayList<>();
@@ -116,6 +156,141 @@ public class JTTTest {
 		assertEquals("odd", renderString("[% ['odd','even'][2%2] %]", params));
 	}
 
+	@Test
+	public void testRenderStringCache() throws JTTError {
+		CountingSyntax syntax = new CountingSyntax(new TTSyntax());
+		JTT jtt = new JTTBuilder().setSyntax(syntax).build();
+		HashMap<String, Object> params = new HashMap<>();
+		params.put("name", "john");
+
+		for (int i = 0; i < 10; ++i) {
+			assertEquals("Hi, john", jtt.renderString("Hi, [% name %]", params));
+		}
+		assertEquals("Bye, john", jtt.renderString("Bye, [% name %]", params));
+		assertEquals(2, syntax.tokenized);
+		assertEquals(9, jtt.getStringCacheStats().hitCount());
+	}
+
+	@Test
+	public void testRenderStringWithoutCache() throws JTTError {
+		CountingSyntax syntax = new CountingSyntax(new TTSyntax());
+		JTT jtt = new JTTBuilder().setSyntax(syntax)
+				.setStringCacheMaximumBytes(0).build();
+		for (int i = 0; i < 3; ++i) {
+			assertEquals("3", jtt.renderString("[% 1 + 2 %]", null));
+		}
+		assertEquals(3, syntax.tokenized);
+	}
+
+	@Test
+	public void testRenderStringCacheWeight() throws JTTError {
+		JTT jtt = new JTTBuilder().setStringCacheMaximumBytes(100 * 1024)
+				.build();
+		String large = Strings.repeat("x", 10 * 1024);
+		for (int i = 0; i < 20; ++i) {
+			assertEquals(large + i, jtt.renderString(large + i, null));
+		}
+		// 20 sources of 10K chars don't fit in 100KB.
+		assertTrue(jtt.getStringCacheStats().evictionCount() >= 15);
+	}
+
+	@Test
+	public void testRenderStringUsesSyntax() throws JTTError {
+		JTT jtt = new JTTBuilder().setSyntax(new TTSyntax("<%", "%>")).build();
+		assertEquals("3[% 1 %]", jtt.renderString("<% 1 + 2 %>[% 1 %]", null));
+	}
+
+	@Test
+	public void testCompileString() throws JTTError {
+		CountingSyntax syntax = new CountingSyntax(new TTSyntax());
+		JTT jtt = new JTTBuilder().setSyntax(syntax)
+				.setStringCacheMaximumBytes(0).build();
+		Template template = jtt.compileString("Hi, [% name %]");
+		HashMap<String, Object> params = new HashMap<>();
+		params.put("name", "john");
+		for (int i = 0; i < 3; ++i) {
+			assertEquals("Hi, john", template.render(params));
+		}
+		assertEquals(1, syntax.tokenized);
+	}
+
+	@Test(expected = ParserError.class)
+	public void testRenderStringParserError() throws JTTError {
+		JTT jtt = new JTTBuilder().build();
+		jtt.renderString("[% IF %]", null);
+	}
+
+	static class CountingSyntax implements Syntax {
+		private final Syntax syntax;
+		int tokenized;
+
+		CountingSyntax(Syntax syntax) {
+			this.syntax = syntax;
+		}
+
+		@Override
+		public List<Token> tokenize(Source source, String src) {
+			++tokenized;
+			return syntax.tokenize(source, src);
+		}
+
+		@Override
+		public Node parse(Source source, List<Token> tokens)
+				throws ParserError {
+			return syntax.parse(source, tokens);
+		}
+
+		@Override
+		public Irep compile(Source source, Node ast) throws ParserError {
+			return syntax.compile(source, ast);
+		}
+	}
+
+	@Test
+	public void testLoopControlInWrapper() throws JTTError {
+		JTT jtt = new JTTBuilder().setIncludePaths(buildIncludePaths())
+				.build();
+		// The loop is inside of the WRAPPER.
+		assertEquals("<body>2</body>\n",
+				jtt.renderString(
+						"[% WRAPPER \"layout.tt\" %][% FOR i IN [1,2] %][% IF i == 1 %][% NEXT %][% END %][% i %][% END %][% END %]",
+						null));
+		// The WRAPPER is closed before NEXT.
+		assertEquals("<body>1</body>\n<body>2</body>\n",
+				jtt.renderString(
+						"[% FOR i IN [1,2] %][% WRAPPER \"layout.tt\" %][% i %][% END %][% NEXT %]x[% END %]",
+						null));
+	}
+
+	@Test
+	public void testNextOutOfWrapper() throws JTTError {
+		JTT jtt = new JTTBuilder().setIncludePaths(buildIncludePaths())
+				.build();
+		// NEXT skips the WRAP. The output is kept without the wrapping.
+		assertEquals(
+				"<body>x1</body>\n<body>x3</body>\n",
+				jtt.renderString(
+						"[% FOR i IN [1,2,3] %][% WRAPPER \"layout.tt\" %][% IF i == 2 %][% NEXT %][% END %]x[% i %][% END %][% END %]",
+						null));
+		// The outer WRAPPER still captures the output.
+		assertEquals(
+				"<body>Aw1&lt;body&gt;w2&lt;/body&gt;\nZ</body>\n",
+				jtt.renderString(
+						"[% WRAPPER \"layout.tt\" %]A[% FOR i IN [1,2] %][% WRAPPER \"layout.tt\" %]w[% i %][% IF i == 1 %][% NEXT %][% END %][% END %][% END %]Z[% END %]",
+						null));
+	}
+
+	@Test
+	public void testLastOutOfWrapper() throws JTTError {
+		JTT jtt = new JTTBuilder().setIncludePaths(buildIncludePaths())
+				.build();
+		assertEquals(
+				"a<body>b</body>\n",
+				jtt.renderString(
+						"[% WHILE 1 %]a[% WRAPPER \"layout.tt\" %][% LAST %][% END %][% END %][% WRAPPER \"layout.tt\" %]b[% END %]",
+						null));
+	}
+
 	// Added test case for ParserError contains error position.
 	@Test
 	public void testError() throws IOException, JTTError {
@@ -146,6 +321,41 @@ public class JTTTest {
 		public int n;
 	}
 
+	@Test
+	public void testAttributeGetter() throws IOException, JTTError {
+		HashMap<String, Object> params = new HashMap<>();
+		params.put("item", new Item("apple", 120, true));
+		assertEquals("120", renderString("[% item.price %]", params));
+		assertEquals("true", renderString("[% item.active %]", params));
+		assertEquals("apple", renderString("[% item.name %]", params));
+		assertEquals("(null)", renderString("[% item.unknown %]", params));
+	}
+
+	public static class Item {
+		private final String name;
+		private final int price;
+		private final boolean active;
+
+		public Item(String name, int price, boolean active) {
+			this.name = name;
+			this.price = price;
+			this.active = active;
+		}
+
+		// record style accessor
+		public String name() {
+			return name;
+		}
+
+		public int getPrice() {
+			return price;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+	}
+
 	// ---------------------------------------------------------------
 	// utils.
 
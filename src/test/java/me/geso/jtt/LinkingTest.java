@@ -0,0 +1,202 @@
+package me.geso.jtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.geso.jtt.InMemoryTemplateCache.CacheMode;
+import me.geso.jtt.vm.Irep;
+import me.geso.jtt.vm.OP;
+
+import org.junit.Test;
+
+public class LinkingTest {
+
+	@Test
+	public void testIncludeAndWrapper() throws IOException {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		write(tmpdir, "layout.tt", "<body>[% content %]</body>");
+		write(tmpdir, "item.tt", "[% FOR x IN [1,2] %]([% x %][% name %])[% END %]");
+		write(tmpdir, "page.tt",
+				"[% WRAPPER 'layout.tt' %][% FOR y IN ['a','b'] %][% y %][% INCLUDE 'item.tt' %][% END %][% END %]");
+
+		CountingCache cache = new CountingCache(new InMemoryTemplateCache(
+				CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES));
+		JTT jtt = new JTTBuilder().addIncludePath(tmpdir)
+				.setTemplateCache(cache).setLinking(true).build();
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("name", "n");
+
+		String expected = "<body>a(1n)(2n)b(1n)(2n)</body>";
+		Template template = jtt.getTemplate("page.tt");
+		assertNotNull(template.getIrep().getLinkedTemplate(
+				find(template.getIrep(), OP.WRAP)));
+		assertNotNull(template.getIrep().getLinkedTemplate(
+				find(template.getIrep(), OP.INCLUDE)));
+
+		cache.resolved = 0;
+		assertEquals(expected, template.render(vars));
+		StringWriter writer = new StringWriter();
+		template.render(vars, writer);
+		assertEquals(expected, writer.toString());
+		// The linked templates are not resolved by the name.
+		assertEquals(0, cache.resolved);
+	}
+
+	@Test
+	public void testSameAsUnlinked() throws IOException {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		write(tmpdir, "layout.tt", "<[% content %][% x %]>");
+		write(tmpdir, "inc.tt", "[% SET x = x + 1 %][% x %]");
+		write(tmpdir, "index.tt",
+				"[% INCLUDE 'inc.tt' %][% WRAPPER 'layout.tt' %][% INCLUDE 'inc.tt' %][% x %][% END %][% x %]");
+
+		for (int threshold : new int[] { -1, 0 }) {
+			String[] results = new String[2];
+			for (int i = 0; i < 2; ++i) {
+				JTT jtt = new JTTBuilder()
+						.addIncludePath(tmpdir)
+						.setTemplateCache(new InMemoryTemplateCache(
+								CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES))
+						.setBytecodeCompileThreshold(threshold)
+						.setLinking(i == 1).build();
+				Map<String, Object> vars = new HashMap<>();
+				vars.put("x", 0);
+				results[i] = jtt.renderFile("index.tt", vars);
+			}
+			assertEquals("1<222>2", results[0]);
+			assertEquals(results[0], results[1]);
+		}
+	}
+
+	@Test
+	public void testRecursiveInclude() throws IOException {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		write(tmpdir, "a.tt",
+				"a[% IF n > 0 %][% SET n = n - 1 %][% INCLUDE 'b.tt' %][% END %]");
+		write(tmpdir, "b.tt", "b[% INCLUDE 'a.tt' %]");
+
+		JTT jtt = new JTTBuilder()
+				.addIncludePath(tmpdir)
+				.setTemplateCache(
+						new InMemoryTemplateCache(
+								CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES))
+				.setLinking(true).build();
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("n", 2);
+		assertEquals("ababa", jtt.renderFile("a.tt", vars));
+
+		// b.tt was linked while a.tt was being compiled. The cycle is
+		// resolved at run time.
+		Irep a = jtt.getTemplate("a.tt").getIrep();
+		Irep b = a.getLinkedTemplate(find(a, OP.INCLUDE)).getIrep();
+		assertNull(b.getLinkedTemplate(find(b, OP.INCLUDE)));
+	}
+
+	@Test
+	public void testMissingTarget() throws IOException {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		write(tmpdir, "index.tt", "x[% IF n %][% INCLUDE 'missing.tt' %][% END %]");
+
+		JTT jtt = new JTTBuilder()
+				.addIncludePath(tmpdir)
+				.setTemplateCache(
+						new InMemoryTemplateCache(
+								CacheMode.CACHE_WITH_UPDATE_CHECK))
+				.setLinking(true).build();
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("n", false);
+		assertEquals("x", jtt.renderFile("index.tt", vars));
+
+		// Resolved at run time.
+		write(tmpdir, "missing.tt", "found");
+		vars.put("n", true);
+		assertEquals("xfound", jtt.renderFile("index.tt", vars));
+	}
+
+	@Test
+	public void testModifiedTarget() throws IOException {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Path inc = write(tmpdir, "inc.tt", "old");
+		write(tmpdir, "index.tt", "[[% INCLUDE 'inc.tt' %]]");
+
+		JTT jtt = new JTTBuilder()
+				.addIncludePath(tmpdir)
+				.setTemplateCache(
+						new InMemoryTemplateCache(
+								CacheMode.CACHE_WITH_UPDATE_CHECK))
+				.setLinking(true).build();
+		Template template = jtt.getTemplate("index.tt");
+		assertEquals("[old]", template.render(null));
+
+		Files.write(inc, "new".getBytes());
+		Files.setLastModifiedTime(inc,
+				FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		assertEquals("[new]", template.render(null));
+		assertEquals("[new]", template.render(null));
+		Irep irep = template.getIrep();
+		assertNotNull(irep.getLinkedTemplate(find(irep, OP.INCLUDE)));
+	}
+
+	private Path write(Path dir, String name, String src) throws IOException {
+		return Files.write(dir.resolve(name), src.getBytes());
+	}
+
+	private int find(Irep irep, OP op) {
+		for (int pc = 0; pc < irep.getIseqLength(); ++pc) {
+			if (irep.getOP(pc) == op) {
+				return pc;
+			}
+		}
+		throw new AssertionError(op + " not found");
+	}
+
+	/**
+	 * Count the name resolutions.
+	 */
+	static class CountingCache implements TemplateCache {
+		private final TemplateCache cache;
+		int resolved;
+
+		CountingCache(TemplateCache cache) {
+			this.cache = cache;
+		}
+
+		@Override
+		public Irep get(String filePath) {
+			return cache.get(filePath);
+		}
+
+		@Override
+		public void set(String filePath, Irep irep) {
+			cache.set(filePath, irep);
+		}
+
+		@Override
+		public Resolution getResolvedPath(String fileName) {
+			++resolved;
+			return cache.getResolvedPath(fileName);
+		}
+
+		@Override
+		public void setResolvedPath(String fileName,
+				Resolution resolution, List<Path> probedPaths) {
+			cache.setResolvedPath(fileName, resolution, probedPaths);
+		}
+
+		@Override
+		public void setDependencies(String filePath,
+				List<String> dependencyPaths) {
+			cache.setDependencies(filePath, dependencyPaths);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package me.geso.jtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import me.geso.jtt.escape.HTMLEscaper;
+import me.geso.jtt.tt.TTSyntax;
+import me.geso.jtt.vm.Irep;
+import me.geso.jtt.vm.OP;
+import me.geso.jtt.vm.VM;
+
+import org.junit.Test;
+
+public class TemplateArchiveTest {
+
+	@Test
+	public void testBuildAndRender() throws Exception {
+		Path includePath = Files.createTempDirectory("jtt");
+		Files.createDirectory(includePath.resolve("sub"));
+		Files.write(includePath.resolve("foo.tt"), "foo\n".getBytes());
+		Files.write(includePath.resolve("inc1.tt"),
+				"INC1_HEAD\n[% INCLUDE \"sub/inc2.tt\" %]\nINC1_FOOT\n"
+						.getBytes());
+		Files.write(includePath.resolve("sub/inc2.tt"), "INC2\n".getBytes());
+		Files.write(includePath.resolve("wrap.tt"),
+				"[% WRAPPER \"layout.tt\" %]\nfoo\n[% END %]\n".getBytes());
+		Files.write(includePath.resolve("layout.tt"),
+				"<body>[% content %]</body>\n".getBytes());
+		Files.write(includePath.resolve("vars.tt"),
+				"[% x %] [% 3.5 %] [% true %] [% null %]".getBytes());
+
+		Path output = Files.createTempFile("jtt", ".jtta");
+		TemplateArchive.build(includePath, new TTSyntax(), output);
+
+		TemplateArchive archive = TemplateArchive.open(output);
+		assertEquals(6, archive.size());
+		assertNull(archive.get("missing.tt"));
+
+		// No include paths. Templates must come from the archive.
+		JTT jtt = new JTTBuilder().setIncludePaths(new ArrayList<>())
+				.setTemplateArchive(archive).build();
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("x", "<x>");
+		assertEquals("foo\n", jtt.renderFile("foo.tt", vars));
+		assertEquals("INC1_HEAD\nINC2\n\nINC1_FOOT\n",
+				jtt.renderFile("inc1.tt", vars));
+		assertEquals("<body>\nfoo\n</body>\n\n",
+				jtt.renderFile("wrap.tt", vars));
+		assertEquals("&lt;x&gt; 3.5 true (null)", jtt.renderFile("vars.tt", vars));
+	}
+
+	@Test
+	public void testBuildWithSyntax() throws Exception {
+		Path includePath = Files.createTempDirectory("jtt");
+		Files.createDirectory(includePath.resolve("sub"));
+		Files.write(includePath.resolve("sub/tags.tt"),
+				"<% x %>[% x %]".getBytes());
+
+		Path output = Files.createTempFile("jtt", ".jtta");
+		TemplateArchive.build(includePath, new TTSyntax("<%", "%>"), output);
+
+		TemplateArchive archive = TemplateArchive.open(output);
+		// The file name doesn't contain the build machine's path.
+		assertEquals("sub/tags.tt", archive.get("sub/tags.tt").getFileName());
+
+		JTT jtt = new JTTBuilder().setIncludePaths(new ArrayList<>())
+				.setTemplateArchive(archive).build();
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("x", "y");
+		assertEquals("y[% x %]", jtt.renderFile("sub/tags.tt", vars));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		TTSyntax syntax = new TTSyntax();
+		Irep irep = TestTemplates.compile(syntax,
+				"[% FOR x IN [1,2,3] %][% x %],[% END %]");
+
+		Map<String, Irep> ireps = new HashMap<>();
+		ireps.put("loop.tt", irep);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TemplateArchive.write(ireps, out);
+
+		Path path = Files.createTempFile("jtt", ".jtta");
+		Files.write(path, out.toByteArray());
+		Irep loaded = TemplateArchive.open(path).get("loop.tt");
+		assertEquals(irep.toString(), loaded.toString());
+		assertEquals(irep.getRegisterCount(), loaded.getRegisterCount());
+		assertEquals(irep.getLoopStackSize(), loaded.getLoopStackSize());
+	}
+
+	public static class Item {
+		public String getName() {
+			return "foo";
+		}
+
+		public String hello(String s) {
+			return s + "!";
+		}
+	}
+
+	@Test
+	public void testRoundTripAfterQuickening() throws Exception {
+		TTSyntax syntax = new TTSyntax();
+		String src = "[% FOR it IN items %][% it.name %][% it.hello('x') %][% n + 1 %][% END %]";
+		Irep irep = TestTemplates.compile(syntax, src);
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("items", Arrays.asList(new Item(), new Item()));
+		vars.put("n", 1);
+		for (int i = 0; i < 5; ++i) {
+			assertEquals("foox!2foox!2", render(syntax, irep, vars));
+		}
+		assertTrue(hasOP(irep.getIseq(), OP.APPEND_ATTR_BEAN));
+		assertTrue(hasOP(irep.getIseq(), OP.METHOD_CALL_CACHED));
+		assertTrue(hasOP(irep.getIseq(), OP.ADD_INT));
+
+		Map<String, Irep> ireps = new HashMap<>();
+		ireps.put("items.tt", irep);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TemplateArchive.write(ireps, out);
+		Path path = Files.createTempFile("jtt", ".jtta");
+		Files.write(path, out.toByteArray());
+		Irep loaded = TemplateArchive.open(path).get("items.tt");
+
+		// The generic forms are saved.
+		assertFalse(hasOP(loaded.getIseq(), OP.APPEND_ATTR_BEAN));
+		assertTrue(hasOP(loaded.getIseq(), OP.APPEND_ATTR));
+		assertTrue(hasOP(loaded.getIseq(), OP.METHOD_CALL));
+		for (int i = 0; i < 5; ++i) {
+			assertEquals("foox!2foox!2", render(syntax, loaded, vars));
+		}
+
+		// Irep created from the quickened iseq has the caches too.
+		Irep quickened = new Irep(irep.getIseq().clone(), irep.getLineTable(),
+				irep.getPool(), Source.fromString(src), irep.getLoopStackSize(),
+				irep.getRegisterCount());
+		assertEquals("foox!2foox!2", render(syntax, quickened, vars));
+	}
+
+	private String render(Syntax syntax, Irep irep, Map<String, Object> vars) {
+		return new VM(syntax, new TemplateLoader(null, null), null, null,
+				new HTMLEscaper(), irep, new HashMap<>(vars)).run();
+	}
+
+	private boolean hasOP(int[] iseq, OP op) {
+		for (int i = 0; i < iseq.length; i += Irep.STRIDE) {
+			if (iseq[i] == op.ordinal()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,236 @@
+package me.geso.jtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.geso.jtt.escape.HTMLEscaper;
+import me.geso.jtt.exception.ParserError;
+import me.geso.jtt.exception.TemplateLoadingError;
+import me.geso.jtt.lexer.Token;
+import me.geso.jtt.parser.Node;
+import me.geso.jtt.tt.TTSyntax;
+import me.geso.jtt.vm.Irep;
+import me.geso.jtt.vm.VM;
+
+import org.junit.Test;
+
+public class TemplateLoaderTest {
+
+	@Test
+	public void testConcurrentMissCompilesOnce() throws Exception {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Files.write(tmpdir.resolve("index.tt"), "hoge".getBytes());
+
+		List<Path> includePaths = new ArrayList<>();
+		includePaths.add(tmpdir);
+		TemplateLoader loader = new TemplateLoader(includePaths,
+				new InMemoryTemplateCache(
+						InMemoryTemplateCache.CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES));
+		CountingSyntax syntax = new CountingSyntax();
+
+		int threads = 16;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Irep>> futures = new ArrayList<>();
+			for (int i = 0; i < threads; ++i) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					return loader.compile("index.tt", syntax);
+				}));
+			}
+			start.countDown();
+
+			Irep irep = futures.get(0).get();
+			for (Future<Irep> future : futures) {
+				assertEquals(irep, future.get());
+			}
+			assertEquals(1, syntax.compiled.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testNegativeLookupIsCached() throws Exception {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		TemplateCache cache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES);
+		TemplateLoader loader = new TemplateLoader(
+				Collections.singletonList(tmpdir), cache);
+
+		assertNotFound(loader, "missing.tt");
+		assertEquals(Resolution.MISSING, cache.getResolvedPath("missing.tt"));
+
+		// Not checked again in this mode.
+		Files.write(tmpdir.resolve("missing.tt"), "hoge".getBytes());
+		assertNotFound(loader, "missing.tt");
+	}
+
+	@Test
+	public void testNegativeLookupExpires() throws Exception {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		TemplateCache cache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_WITH_UPDATE_CHECK);
+		TemplateLoader loader = new TemplateLoader(
+				Collections.singletonList(tmpdir), cache);
+
+		assertNotFound(loader, "missing.tt");
+		// The files are checked on every read.
+		assertEquals(Resolution.UNKNOWN, cache.getResolvedPath("missing.tt"));
+		Files.write(tmpdir.resolve("missing.tt"), "hoge".getBytes());
+		assertEquals("hoge", render(loader, "missing.tt"));
+	}
+
+	@Test
+	public void testResolvedPath() throws Exception {
+		Path first = Files.createTempDirectory("jtt");
+		Path second = Files.createTempDirectory("jtt");
+		Files.createDirectory(second.resolve("sub"));
+		Files.write(second.resolve("index.tt"), "hoge".getBytes());
+
+		TemplateCache cache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES);
+		// The relative paths are normalized.
+		TemplateLoader loader = new TemplateLoader(Arrays.asList(first,
+				second.resolve("sub/..")), cache);
+
+		assertEquals("hoge", render(loader, "index.tt"));
+		String expected = second.toAbsolutePath().normalize()
+				.resolve("index.tt").toString();
+		assertEquals(Resolution.hit(expected), cache.getResolvedPath("index.tt"));
+		assertNotNull(cache.get(expected));
+
+		// Same file by another name.
+		assertSame(loader.compile("index.tt", new TTSyntax()),
+				loader.compile("./sub/../index.tt", new TTSyntax()));
+	}
+
+	@Test
+	public void testResolvedFileRemoved() throws Exception {
+		Path first = Files.createTempDirectory("jtt");
+		Path second = Files.createTempDirectory("jtt");
+		Files.write(second.resolve("index.tt"), "second".getBytes());
+
+		MapTemplateCache cache = new MapTemplateCache();
+		TemplateLoader loader = new TemplateLoader(
+				Arrays.asList(first, second), cache);
+		assertEquals("second", render(loader, "index.tt"));
+
+		Files.write(first.resolve("index.tt"), "first".getBytes());
+		Files.delete(second.resolve("index.tt"));
+		// The resolution is cached, but the template was evicted.
+		cache.templates.clear();
+		assertEquals("first", render(loader, "index.tt"));
+	}
+
+	@Test
+	public void testNegativeLookupWithFileWatcher() throws Exception {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		try (InMemoryTemplateCache cache = new InMemoryTemplateCache(
+				InMemoryTemplateCache.CacheMode.CACHE_WITH_FILE_WATCHER)) {
+			TemplateLoader loader = new TemplateLoader(
+					Collections.singletonList(tmpdir), cache);
+			assertNotFound(loader, "sub/missing.tt");
+
+			Files.createDirectory(tmpdir.resolve("sub"));
+			Files.write(tmpdir.resolve("sub/missing.tt"), "hoge".getBytes());
+			long limit = System.currentTimeMillis() + 10 * 1000;
+			while (cache.getResolvedPath("sub/missing.tt").getStatus() != Resolution.Status.UNKNOWN
+					&& System.currentTimeMillis() < limit) {
+				Thread.sleep(10);
+			}
+			assertEquals("hoge", render(loader, "sub/missing.tt"));
+		}
+	}
+
+	private void assertNotFound(TemplateLoader loader, String fileName) {
+		try {
+			loader.compile(fileName, new TTSyntax());
+			fail();
+		} catch (TemplateLoadingError e) {
+			// ok
+		}
+	}
+
+	private String render(TemplateLoader loader, String fileName) {
+		Syntax syntax = new TTSyntax();
+		return new VM(syntax, loader, null, null, new HTMLEscaper(),
+				loader.compile(fileName, syntax), new HashMap<>()).run();
+	}
+
+	/**
+	 * Cache without the freshness check.
+	 */
+	static class MapTemplateCache implements TemplateCache {
+		final Map<String, Irep> templates = new HashMap<>();
+		final Map<String, Resolution> resolvedPaths = new HashMap<>();
+
+		@Override
+		public Irep get(String filePath) {
+			return templates.get(filePath);
+		}
+
+		@Override
+		public void set(String filePath, Irep irep) {
+			templates.put(filePath, irep);
+		}
+
+		@Override
+		public Resolution getResolvedPath(String fileName) {
+			return resolvedPaths.getOrDefault(fileName, Resolution.UNKNOWN);
+		}
+
+		@Override
+		public void setResolvedPath(String fileName,
+				Resolution resolution, List<Path> probedPaths) {
+			resolvedPaths.put(fileName, resolution);
+		}
+	}
+
+	/**
+	 * Slow syntax, to make the threads miss the cache at the same time.
+	 */
+	static class CountingSyntax implements Syntax {
+		private final Syntax syntax = new TTSyntax();
+		final AtomicInteger compiled = new AtomicInteger();
+
+		@Override
+		public List<Token> tokenize(Source source, String src) {
+			try {
+				Thread.sleep(300);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return syntax.tokenize(source, src);
+		}
+
+		@Override
+		public Node parse(Source source, List<Token> tokens)
+				throws ParserError {
+			return syntax.parse(source, tokens);
+		}
+
+		@Override
+		public Irep compile(Source source, Node ast) throws ParserError {
+			compiled.incrementAndGet();
+			return syntax.compile(source, ast);
+		}
+	}
+}
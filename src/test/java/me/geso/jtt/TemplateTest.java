@@ -0,0 +1,86 @@
+package me.geso.jtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.geso.jtt.InMemoryTemplateCache.CacheMode;
+import me.geso.jtt.exception.TemplateLoadingError;
+import me.geso.jtt.vm.Irep;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class TemplateTest {
+
+	@Test
+	public void testRender() {
+		JTT jtt = new JTTBuilder().setIncludePaths(buildIncludePaths())
+				.setTemplateCache(new InMemoryTemplateCache(
+						CacheMode.CACHE_BUT_DO_NOT_CHECK_UPDATES)).build();
+		Template template = jtt.getTemplate("inc1.tt");
+		assertEquals("inc1.tt", template.getName());
+		assertEquals("INC1_HEAD\nINC2\n\nINC1_FOOT\n", template.render(null));
+
+		StringWriter writer = new StringWriter();
+		template.render(ImmutableMap.of(), writer);
+		assertEquals("INC1_HEAD\nINC2\n\nINC1_FOOT\n", writer.toString());
+
+		assertSame(template.getIrep(), template.getIrep());
+	}
+
+	@Test(expected = TemplateLoadingError.class)
+	public void testNotFound() {
+		JTT jtt = new JTTBuilder().setIncludePaths(buildIncludePaths())
+				.build();
+		jtt.getTemplate("missing.tt");
+	}
+
+	@Test
+	public void testReloadModifiedFile() throws Exception {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Path file = tmpdir.resolve("index.tt");
+		Files.write(file, "hoge".getBytes());
+
+		JTT jtt = new JTTBuilder().addIncludePath(tmpdir)
+				.setTemplateCache(new InMemoryTemplateCache(
+						CacheMode.CACHE_WITH_UPDATE_CHECK)).build();
+		Template template = jtt.getTemplate("index.tt");
+		Irep irep = template.getIrep();
+		assertEquals("hoge", template.render(null));
+		assertSame(irep, template.getIrep());
+
+		Files.write(file, "fugafuga".getBytes());
+		assertEquals("fugafuga", template.render(null));
+		assertNotSame(irep, template.getIrep());
+	}
+
+	@Test
+	public void testWithoutCache() throws Exception {
+		Path tmpdir = Files.createTempDirectory("jtt");
+		Path file = tmpdir.resolve("index.tt");
+		Files.write(file, "hoge".getBytes());
+
+		JTT jtt = new JTTBuilder().addIncludePath(tmpdir).build();
+		Template template = jtt.getTemplate("index.tt");
+		assertEquals("hoge", template.render(null));
+		Files.write(file, "fuga".getBytes());
+		assertEquals("fuga", template.render(null));
+	}
+
+	private List<Path> buildIncludePaths() {
+		URL resource = this.getClass().getResource("/");
+		List<Path> paths = new ArrayList<>();
+		paths.add(new File(resource.getFile()).toPath());
+		return paths;
+	}
+}
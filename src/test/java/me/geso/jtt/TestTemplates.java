@@ -0,0 +1,28 @@
+package me.geso.jtt;
+
+import me.geso.jtt.tt.TTSyntax;
+import me.geso.jtt.vm.Irep;
+
+/**
+ * Compile the template strings for the tests.
+ *
+ * @author tokuhirom
+ *
+ */
+public final class TestTemplates {
+	private TestTemplates() {
+	}
+
+	/**
+	 * Compile the source with TTSyntax.
+	 */
+	public static Irep compile(String src) {
+		return compile(new TTSyntax(), src);
+	}
+
+	public static Irep compile(Syntax syntax, String src) {
+		Source source = Source.fromString(src);
+		return syntax.compile(source,
+				syntax.parse(source, syntax.tokenize(source, src)));
+	}
+}
@@ -0,0 +1,74 @@
+package me.geso.jtt.escape;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.html.HtmlEscapers;
+
+public class HTMLEscaperTest {
+
+	@Test
+	public void test() {
+		HTMLEscaper escaper = new HTMLEscaper();
+		assertEquals("&lt;a href=&quot;x&quot;&gt;&#39;&amp;&#39;&lt;/a&gt;",
+				escaper.escape("<a href=\"x\">'&'</a>"));
+		assertEquals("", escaper.escape(""));
+		assertEquals("&amp;&amp;", escaper.escape("&&"));
+		assertEquals("x&lt;y", escaper.escape("x<y"));
+	}
+
+	@Test
+	public void testNothingToEscape() {
+		HTMLEscaper escaper = new HTMLEscaper();
+		String s = "hello, world. あ";
+		assertSame(s, escaper.escape(s));
+	}
+
+	@Test
+	public void testEscapeIntoBuffer() {
+		HTMLEscaper escaper = new HTMLEscaper();
+		StringBuilder buffer = new StringBuilder("pre:");
+		escaper.escape("a<b", buffer);
+		escaper.escape(new StringBuilder("c&d"), buffer);
+		escaper.escape("e", buffer);
+		assertEquals("pre:a&lt;bc&amp;de", buffer.toString());
+	}
+
+	@Test
+	public void testSameAsGuava() {
+		HTMLEscaper escaper = new HTMLEscaper();
+		char[] chars = "ab<>&\"' \nあ=;#".toCharArray();
+		Random random = new Random(0);
+		for (int i = 0; i < 10000; ++i) {
+			StringBuilder builder = new StringBuilder();
+			int length = random.nextInt(20);
+			for (int j = 0; j < length; ++j) {
+				builder.append(chars[random.nextInt(chars.length)]);
+			}
+			String s = builder.toString();
+			String expected = HtmlEscapers.htmlEscaper().escape(s);
+			assertEquals(expected, escaper.escape(s));
+			StringBuilder out = new StringBuilder();
+			escaper.escape(s, out);
+			assertEquals(expected, out.toString());
+		}
+	}
+
+	@Test
+	public void testDefaultMethod() {
+		// Escapers which implement only escape(String) still work.
+		Escaper escaper = new Escaper() {
+			@Override
+			public String escape(String string) {
+				return string.toUpperCase();
+			}
+		};
+		StringBuilder out = new StringBuilder();
+		escaper.escape("abc", out);
+		assertEquals("ABC", out.toString());
+	}
+}
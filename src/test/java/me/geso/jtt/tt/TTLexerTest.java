@@ -227,6 +227,34 @@ public class TTLexerTest {
 		assertNotNull(e);
 	}
 
+	@Test
+	public void testKeywordPrefix() {
+		assertEquals("[OPEN],[FOREACH],[IDENT x],[IN],[IDENT y],[CLOSE]",
+				lex("[% FOREACH x IN y %]"));
+		assertEquals("[OPEN],[INCLUDE],[STRING a.tt],[CLOSE]",
+				lex("[% INCLUDE 'a.tt' %]"));
+		assertEquals("[OPEN],[LOOP],[IDENT s],[CLOSE]", lex("[% loops %]"));
+	}
+
+	@Test
+	public void testChompWithNewline() {
+		assertEquals("[RAW a],[OPEN],[IDENT x],[CLOSE],[RAW b]",
+				lex("a\n  [%- x -%]  \nb"));
+	}
+
+	@Test
+	public void testLargeTemplate() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 50000; ++i) {
+			builder.append("<td>[% item.name %]</td>[%# comment %]\n");
+		}
+		String src = builder.toString();
+		List<Token> tokens = new TTLexer(Source.fromString(src), src, "[%",
+				"%]").lex();
+		assertEquals(50000 * 7 + 1, tokens.size());
+		assertEquals(50001, tokens.get(tokens.size() - 1).getLineNumber());
+	}
+
 	private String s(List<Token> tokens) {
 		StringBuilder builder = new StringBuilder();
 		for (Token token : tokens) {
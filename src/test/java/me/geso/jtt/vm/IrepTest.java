@@ -0,0 +1,72 @@
+package me.geso.jtt.vm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.geso.jtt.Source;
+
+import org.junit.Test;
+
+public class IrepTest {
+
+	@Test
+	public void testPackedIseq() {
+		List<Code> iseq = new ArrayList<>();
+		iseq.add(new Code(OP.LOAD_CONST, 0, 1));
+		iseq.add(new Code(OP.APPEND, 1));
+		iseq.add(new Code(OP.RETURN));
+		List<Object> pool = new ArrayList<>();
+		pool.add("hello");
+
+		Irep irep = new Irep(iseq, pool, Arrays.asList(1, 1, 1),
+				Source.fromString("hello"), 0, 2);
+		assertEquals(3, irep.getIseqLength());
+		assertArrayEquals(new int[] { OP.LOAD_CONST.ordinal(), 0, 1,
+				OP.APPEND.ordinal(), 1, -1, OP.RETURN.ordinal(), -1, -1 },
+				irep.getIseq());
+		assertEquals(OP.APPEND, irep.getOP(1));
+		assertEquals(1, irep.getA(1));
+		assertEquals(-1, irep.getB(1));
+	}
+
+	@Test
+	public void testLineTable() {
+		List<Code> iseq = new ArrayList<>();
+		for (int i = 0; i < 6; ++i) {
+			iseq.add(new Code(OP.LOAD_NULL, 0));
+		}
+		Irep irep = new Irep(iseq, new ArrayList<>(), Arrays.asList(1, 1, 2,
+				2, 2, 5), Source.fromString(""), 0, 1);
+
+		assertArrayEquals(new int[] { 0, 1, 2, 2, 5, 5 }, irep.getLineTable());
+		assertEquals(1, irep.getLineNumber(0));
+		assertEquals(1, irep.getLineNumber(1));
+		assertEquals(2, irep.getLineNumber(2));
+		assertEquals(2, irep.getLineNumber(4));
+		assertEquals(5, irep.getLineNumber(5));
+	}
+
+	@Test
+	public void testEstimateSizeCountsInlineCaches() {
+		Irep plain = newIrep(new Code(OP.LOAD_NULL, 0), new Code(OP.RETURN));
+		Irep attribute = newIrep(new Code(OP.ATTRIBUTE, 0, 0), new Code(
+				OP.RETURN));
+		// The cache is filled after the irep is cached. The estimate counts
+		// it at the full size from the beginning.
+		assertEquals(plain.estimateSize() + AttributeCache.MAX_RETAINED_SIZE,
+				attribute.estimateSize());
+	}
+
+	private Irep newIrep(Code... codes) {
+		List<Integer> lineNumbers = new ArrayList<>();
+		for (int i = 0; i < codes.length; ++i) {
+			lineNumbers.add(1);
+		}
+		return new Irep(Arrays.asList(codes), new ArrayList<>(), lineNumbers,
+				Source.fromString(""), 0, 1);
+	}
+}
@@ -0,0 +1,98 @@
+package me.geso.jtt.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import me.geso.jtt.Syntax;
+import me.geso.jtt.TemplateLoader;
+import me.geso.jtt.TestTemplates;
+import me.geso.jtt.escape.HTMLEscaper;
+import me.geso.jtt.tt.TTSyntax;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class OutputSizeStatsTest {
+
+	@Test
+	public void testDecayingMax() {
+		OutputSizeStats stats = new OutputSizeStats();
+		assertEquals(-1, stats.getEstimate());
+
+		stats.record(800);
+		assertEquals(800, stats.getEstimate());
+
+		// Shrinks slowly.
+		stats.record(0);
+		assertEquals(700, stats.getEstimate());
+		stats.record(0);
+		assertEquals(613, stats.getEstimate());
+
+		// Grows at once.
+		stats.record(1000);
+		assertEquals(1000, stats.getEstimate());
+
+		for (int i = 0; i < 100; ++i) {
+			stats.record(10);
+		}
+		assertTrue(stats.getEstimate() >= 10);
+		assertTrue(stats.getEstimate() < 20);
+
+		assertEquals(1000, stats.getMaxSize());
+		assertEquals(104, stats.getRenderCount());
+		assertEquals(800 + 1000 + 10 * 100, stats.getTotalSize());
+	}
+
+	@Test
+	public void testConcurrentRecord() throws Exception {
+		final OutputSizeStats stats = new OutputSizeStats();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; ++t) {
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 10000; ++i) {
+						stats.record(i % 100);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(40000, stats.getRenderCount());
+		assertEquals(4 * 100 * (99 * 100 / 2), stats.getTotalSize());
+		assertEquals(99, stats.getMaxSize());
+		assertTrue(stats.getEstimate() <= 99);
+	}
+
+	@Test
+	public void testRecordedByVM() {
+		Syntax syntax = new TTSyntax();
+		String src = "[% s %]";
+		Irep irep = TestTemplates.compile(syntax, src);
+
+		HashMap<String, Object> vars = new HashMap<>();
+		vars.put("s", Strings.repeat("x", 100));
+		new VM(syntax, new TemplateLoader(null, null), null, null,
+				new HTMLEscaper(), irep, vars).run();
+		vars.put("s", "xyz");
+		new VM(syntax, new TemplateLoader(null, null), null, null,
+				new HTMLEscaper(), irep, vars).run();
+
+		OutputSizeStats stats = irep.getOutputSizeStats();
+		assertEquals(2, stats.getRenderCount());
+		assertEquals(100, stats.getMaxSize());
+		assertEquals(88, stats.getEstimate());
+	}
+}
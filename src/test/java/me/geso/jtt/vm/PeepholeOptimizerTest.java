@@ -0,0 +1,103 @@
+package me.geso.jtt.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import me.geso.jtt.Source;
+import me.geso.jtt.escape.HTMLEscaper;
+import me.geso.jtt.parser.Node;
+import me.geso.jtt.parser.NodeType;
+
+import org.junit.Test;
+
+public class PeepholeOptimizerTest {
+	private final Node node = new Node(NodeType.TEMPLATE, 1);
+
+	@Test
+	public void testJumpThreading() {
+		IrepBuilder builder = new IrepBuilder(Source.fromString(""));
+		builder.add(OP.LOAD_TRUE, 0, node);
+		builder.add(OP.JUMP_IF_FALSE, 0, 2, node); // -> 3
+		builder.add(OP.APPEND_RAW, 0, node);
+		builder.add(OP.JUMP_ABS, 5, node); // -> 5
+		builder.add(OP.APPEND_RAW, 0, node);
+		builder.add(OP.JUMP_ABS, 7, node); // -> 7
+		builder.add(OP.APPEND_RAW, 0, node);
+		builder.addReturn();
+
+		assertTrue(new JumpThreadingPass().run(builder));
+		assertEquals(7, builder.getJumpTarget(1));
+		assertEquals(OP.RETURN, builder.getCode(3).op);
+		assertEquals(OP.RETURN, builder.getCode(5).op);
+	}
+
+	@Test
+	public void testUnreachableCode() {
+		IrepBuilder builder = new IrepBuilder(Source.fromString(""));
+		builder.add(OP.JUMP_ABS, 2, node);
+		builder.add(OP.APPEND_RAW, 0, node);
+		builder.add(OP.LOAD_NULL, 0, node);
+		builder.add(OP.JUMP_ABS, 5, node);
+		builder.add(OP.APPEND_RAW, 1, node);
+		builder.addReturn();
+
+		assertTrue(new UnreachableCodePass().run(builder));
+		assertEquals(4, builder.getSize());
+		assertEquals(OP.LOAD_NULL, builder.getCode(1).op);
+		assertEquals(1, builder.getJumpTarget(0));
+		assertEquals(3, builder.getJumpTarget(2));
+	}
+
+	@Test
+	public void testMoveCoalescing() {
+		IrepBuilder builder = new IrepBuilder(Source.fromString(""));
+		builder.add(OP.LOAD_INT, 1, 1, node); // regs[1] = 1
+		builder.add(OP.MOVE, 0, 1, node); // regs[0] = regs[1]
+		builder.add(OP.APPEND, 0, node);
+		builder.add(OP.MOVE, 2, 2, node); // regs[2] = regs[2]
+		builder.add(OP.MOVE, 3, 0, node); // regs[3] = regs[0] (dead)
+		builder.addReturn();
+
+		new PeepholeOptimizer().optimize(builder);
+		assertEquals(3, builder.getSize());
+		assertEquals(OP.LOAD_INT, builder.getCode(0).op);
+		assertEquals(OP.APPEND, builder.getCode(1).op);
+		assertEquals(builder.getCode(0).b, builder.getCode(1).a);
+		assertEquals(OP.RETURN, builder.getCode(2).op);
+	}
+
+	@Test
+	public void testKeepLineNumbers() {
+		IrepBuilder builder = new IrepBuilder(Source.fromString(""));
+		builder.add(OP.LOAD_INT, 1, 1, new Node(NodeType.INTEGER, "1", 1));
+		builder.add(OP.MOVE, 0, 1, new Node(NodeType.INTEGER, "1", 1));
+		builder.add(OP.APPEND, 0, new Node(NodeType.INTEGER, "1", 2));
+		builder.addReturn();
+
+		new PeepholeOptimizer().optimize(builder);
+		assertEquals(OP.APPEND, builder.getCode(1).op);
+		assertEquals(1, builder.getLineNumber(0));
+		assertEquals(2, builder.getLineNumber(1));
+	}
+
+	@Test
+	public void testKeepMoveAcrossJump() {
+		// regs[1] is overwritten while regs[0] still holds its old value.
+		IrepBuilder builder = new IrepBuilder(Source.fromString(""));
+		builder.add(OP.LOAD_INT, 1, 0, node); // regs[0] = 1
+		builder.add(OP.LOAD_INT, 2, 1, node); // regs[1] = 2
+		builder.add(OP.JUMP_IF_FALSE, 1, 3, node); // -> 5 (pc + 3)
+		builder.add(OP.MOVE, 0, 1, node); // regs[0] = regs[1]
+		builder.add(OP.LOAD_INT, 3, 1, node); // regs[1] = 3
+		builder.add(OP.APPEND, 0, node);
+		builder.add(OP.APPEND, 1, node);
+		builder.addReturn();
+
+		new PeepholeOptimizer().optimize(builder);
+		Irep irep = builder.build(2);
+		assertEquals("23", new VM(null, null, null, null, new HTMLEscaper(),
+				irep, new HashMap<String, Object>()).run());
+	}
+}
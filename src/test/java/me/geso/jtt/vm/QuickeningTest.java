@@ -0,0 +1,212 @@
+package me.geso.jtt.vm;
+
+import static me.geso.jtt.TestTemplates.compile;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import me.geso.jtt.Syntax;
+import me.geso.jtt.TemplateLoader;
+import me.geso.jtt.escape.HTMLEscaper;
+import me.geso.jtt.tt.TTSyntax;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class QuickeningTest {
+	TemplateLoader loader = new TemplateLoader(null, null);
+	Syntax syntax = new TTSyntax();
+
+	public static class Item {
+		private final String name;
+
+		public Item(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String greet(String s) {
+			return s + ", " + name;
+		}
+	}
+
+	public static class OtherItem {
+		public String getName() {
+			return "other";
+		}
+
+		public String greet(String s) {
+			return s + ", other";
+		}
+	}
+
+	@Test
+	public void testQuickenArithmetic() {
+		Irep irep = compile("[% x + y %]");
+		int pc = find(irep, OP.ADD);
+
+		assertEquals("3", run(irep, ImmutableMap.of("x", 1, "y", 2)));
+		assertEquals(OP.ADD_INT, irep.getOP(pc));
+		assertEquals("7", run(irep, ImmutableMap.of("x", 3, "y", 4)));
+		assertEquals(OP.ADD_INT, irep.getOP(pc));
+
+		// The guard fails, then the instruction is quickened for the new
+		// types.
+		assertEquals("1.5", run(irep, ImmutableMap.of("x", 1.0, "y", 0.5)));
+		assertEquals(OP.ADD_DOUBLE, irep.getOP(pc));
+
+		// Not quickened for the mixed types.
+		assertEquals("1.5", run(irep, ImmutableMap.of("x", 1.0, "y", 0.5)));
+		assertEquals("2.5", run(irep, ImmutableMap.of("x", 0.5, "y", 2)));
+		assertEquals(OP.ADD, irep.getOP(pc));
+	}
+
+	@Test
+	public void testDeoptBudget() {
+		Irep irep = compile("[% x < y %]");
+		int pc = find(irep, OP.LT);
+
+		for (int i = 0; i < 10; ++i) {
+			assertEquals("true", run(irep, ImmutableMap.of("x", 1, "y", 2)));
+			assertEquals("false",
+					run(irep, ImmutableMap.of("x", 2.0, "y", 1.0)));
+		}
+		// Gave up the quickening.
+		assertEquals(OP.LT, irep.getOP(pc));
+		assertEquals("true", run(irep, ImmutableMap.of("x", 1, "y", 2)));
+		assertEquals(OP.LT, irep.getOP(pc));
+	}
+
+	@Test
+	public void testCompareDouble() {
+		Irep irep = compile("[% x >= y %]");
+		int pc = find(irep, OP.GE);
+
+		assertEquals("true", run(irep, ImmutableMap.of("x", 1.0, "y", 1.0)));
+		assertEquals(OP.GE_DOUBLE, irep.getOP(pc));
+		// Same as Double#compareTo.
+		assertEquals("true",
+				run(irep, ImmutableMap.of("x", Double.NaN, "y", 1.0)));
+		assertEquals("false",
+				run(irep, ImmutableMap.of("x", -0.0, "y", 0.0)));
+	}
+
+	@Test
+	public void testQuickenEquals() {
+		Irep irep = compile("[% x == y %]");
+		int pc = find(irep, OP.EQUALS);
+
+		assertEquals("true", run(irep, ImmutableMap.of("x", "a", "y", "a")));
+		assertEquals(OP.EQUALS_STRING, irep.getOP(pc));
+		assertEquals("false", run(irep, ImmutableMap.of("x", "a", "y", 1)));
+		assertEquals("true", run(irep, ImmutableMap.of("x", 500, "y", 500)));
+		assertEquals(OP.EQUALS_INT, irep.getOP(pc));
+	}
+
+	@Test
+	public void testQuickenAttribute() {
+		Irep irep = compile("[% FOR x IN items %][% x.name %],[% END %]");
+		int pc = find(irep, OP.APPEND_ATTR);
+
+		List<Object> beans = new ArrayList<>();
+		beans.add(new Item("foo"));
+		beans.add(new Item("bar"));
+		assertEquals("foo,bar,", run(irep, ImmutableMap.of("items", beans)));
+		assertEquals(OP.APPEND_ATTR_BEAN, irep.getOP(pc));
+
+		// Other class.
+		beans.add(new OtherItem());
+		assertEquals("foo,bar,other,",
+				run(irep, ImmutableMap.of("items", beans)));
+
+		List<Object> maps = new ArrayList<>();
+		maps.add(ImmutableMap.of("name", "baz"));
+		assertEquals("baz,", run(irep, ImmutableMap.of("items", maps)));
+		assertEquals(OP.APPEND_ATTR_MAP, irep.getOP(pc));
+	}
+
+	@Test
+	public void testQuickenMethodCall() {
+		Irep irep = compile("[% x.greet('hi') %]");
+		int pc = find(irep, OP.METHOD_CALL);
+
+		assertEquals("hi, foo",
+				run(irep, ImmutableMap.of("x", new Item("foo"))));
+		assertEquals(OP.METHOD_CALL_CACHED, irep.getOP(pc));
+		assertEquals("hi, bar",
+				run(irep, ImmutableMap.of("x", new Item("bar"))));
+
+		// Other class.
+		assertEquals("hi, other",
+				run(irep, ImmutableMap.of("x", new OtherItem())));
+		assertEquals(OP.METHOD_CALL_CACHED, irep.getOP(pc));
+		assertEquals("hi, baz",
+				run(irep, ImmutableMap.of("x", new Item("baz"))));
+	}
+
+	@Test
+	public void testConcurrentRenders() throws Exception {
+		final Irep irep = compile("[% FOR x IN items %][% x.name %]:[% n + m %]:[% n < m %],[% END %]");
+		List<Object> beans = new ArrayList<>();
+		beans.add(new Item("foo"));
+		beans.add(new OtherItem());
+		List<Object> maps = new ArrayList<>();
+		maps.add(ImmutableMap.of("name", "baz"));
+		@SuppressWarnings("unchecked")
+		final Map<String, Object>[] inputs = new Map[] {
+				ImmutableMap.of("items", beans, "n", 1, "m", 2),
+				ImmutableMap.of("items", maps, "n", 2.5, "m", 2.0) };
+		final String[] expected = { "foo:3:true,other:3:true,",
+				"baz:4.5:false," };
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; ++t) {
+				final int offset = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 2000; ++i) {
+						int k = (i + offset) % 2;
+						assertEquals(expected[k], render(irep, inputs[k], -1));
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private int find(Irep irep, OP op) {
+		for (int pc = 0; pc < irep.getIseqLength(); ++pc) {
+			if (irep.getOP(pc) == op) {
+				return pc;
+			}
+		}
+		throw new AssertionError(op + " not found:\n" + irep);
+	}
+
+	private String run(Irep irep, Map<String, Object> vars) {
+		String got = render(irep, vars, -1);
+		// The bytecode compiled irep must render same result.
+		assertEquals(got, render(irep, vars, 0));
+		return got;
+	}
+
+	private String render(Irep irep, Map<String, Object> vars, int threshold) {
+		return new VM(syntax, loader, null, null, new HTMLEscaper(), irep,
+				new HashMap<>(vars), threshold).run();
+	}
+}
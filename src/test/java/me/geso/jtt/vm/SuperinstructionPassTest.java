@@ -0,0 +1,63 @@
+package me.geso.jtt.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import me.geso.jtt.Source;
+import me.geso.jtt.parser.Node;
+import me.geso.jtt.parser.NodeType;
+
+import org.junit.Test;
+
+public class SuperinstructionPassTest {
+	private final Node node = new Node(NodeType.TEMPLATE, 1);
+
+	@Test
+	public void testAppendAttr() {
+		IrepBuilder builder = new IrepBuilder(Source.fromString(""));
+		builder.addPool(OP.LOAD_CONST, "name", 1, node);
+		builder.add(OP.ATTRIBUTE, 0, 1, node);
+		builder.add(OP.APPEND, 0, node);
+		builder.addPool(OP.LOAD_VAR, "foo", 0, node);
+		builder.add(OP.APPEND, 0, node);
+		builder.addReturn();
+
+		new SuperinstructionPass().run(builder);
+		assertEquals(3, builder.getSize());
+		assertEquals(OP.APPEND_ATTR, builder.getCode(0).op);
+		assertEquals(0, builder.getCode(0).a);
+		assertEquals(0, builder.getCode(0).b);
+		assertEquals(OP.APPEND_VAR, builder.getCode(1).op);
+		assertEquals(1, builder.getCode(1).a);
+	}
+
+	@Test
+	public void testCompareAndJump() {
+		IrepBuilder builder = new IrepBuilder(Source.fromString(""));
+		builder.add(OP.LOAD_INT, 1, 0, node);
+		builder.add(OP.LOAD_INT, 2, 1, node);
+		builder.add(OP.LE, 0, 1, node);
+		builder.add(OP.JUMP_IF_FALSE, 0, 2, node); // -> 5
+		builder.add(OP.APPEND_RAW, 0, node);
+		builder.addReturn();
+
+		new SuperinstructionPass().run(builder);
+		assertEquals(5, builder.getSize());
+		assertEquals(OP.JUMP_UNLESS_LE, builder.getCode(2).op);
+		assertEquals(0, builder.getCode(2).a);
+		assertEquals(4, builder.getJumpTarget(2));
+	}
+
+	@Test
+	public void testLiveTemporary() {
+		// regs[0] is appended again. Keep LOAD_VAR.
+		IrepBuilder builder = new IrepBuilder(Source.fromString(""));
+		builder.addPool(OP.LOAD_VAR, "foo", 0, node);
+		builder.add(OP.APPEND, 0, node);
+		builder.add(OP.APPEND, 0, node);
+		builder.addReturn();
+
+		assertFalse(new SuperinstructionPass().run(builder));
+		assertEquals(OP.LOAD_VAR, builder.getCode(0).op);
+	}
+}
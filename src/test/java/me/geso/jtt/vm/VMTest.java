@@ -2,6 +2,7 @@ package me.geso.jtt.vm;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -31,7 +32,16 @@ public class VMTest {
 	Node nop = new Node(NodeType.NULL, 1);
 
 	private String run(Irep irep, Map<String, Object>vars) {
-		return new VM(syntax, loader, null, null, new HTMLEscaper(), irep, vars).run();
+		String got = new VM(syntax, loader, null, null, new HTMLEscaper(),
+				irep, new HashMap<>(vars)).run();
+		// The bytecode compiled irep must render same result.
+		String compiled = new VM(syntax, loader, null, null,
+				new HTMLEscaper(), irep, new HashMap<>(vars), 0).run();
+		assertEquals(got, compiled);
+		// And the generator must have compiled it; VM falls back to the
+		// interpreter silently.
+		assertNotNull(irep.getCompiledIrep(0));
+		return got;
 	}
 
 	@Test
@@ -233,6 +243,164 @@ public class VMTest {
 		assertTrue(vm.doGE(new Integer(4), new Integer(3)));
 	}
 
+	@Test
+	public void testBytecodeCompilation() throws JTTError {
+		IrepBuilder builder = newIrepBuilder();
+		builder.addPool(OP.LOAD_CONST, "hoge", 0, nop);
+		builder.add(OP.APPEND, 0, nop);
+		builder.add(OP.RETURN, nop);
+		Irep irep = builder.build(1);
+
+		assertEquals(null, irep.getCompiledIrep(2));
+		assertEquals(null, irep.getCompiledIrep(2));
+		// Compiled after the threshold.
+		assertTrue(irep.getCompiledIrep(2) != null);
+		assertEquals("hoge", new VM(syntax, loader, null, null,
+				new HTMLEscaper(), irep, new HashMap<>(), 2).run());
+	}
+
+	@Test
+	public void testBytecodeCompilationSizeLimit() throws JTTError {
+		// Small enough for the JIT compiler.
+		Irep small = buildAppends(100);
+		assertTrue(small.getCompiledIrep(0) != null);
+
+		// The render() method would be too large to be JIT compiled.
+		Irep large = buildAppends(1000);
+		assertEquals(null, large.getCompiledIrep(0));
+		String got = new VM(syntax, loader, null, null, new HTMLEscaper(),
+				large, new HashMap<>(), 0).run();
+		assertEquals(1000, got.length());
+	}
+
+	private Irep buildAppends(int n) {
+		IrepBuilder builder = newIrepBuilder();
+		for (int i = 0; i < n; ++i) {
+			builder.addPool(OP.LOAD_CONST, "x", 0, nop);
+			builder.add(OP.APPEND, 0, nop);
+		}
+		builder.add(OP.RETURN, nop);
+		return builder.build(1);
+	}
+
+	public static class Point {
+		public int x;
+		public int y;
+
+		public Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	public static class Size {
+		public String y = "tall";
+		public String x = "wide";
+	}
+
+	public static class Name {
+		public String x = "john";
+	}
+
+	@Test
+	public void testAttributeInlineCache() throws JTTError {
+		IrepBuilder builder = newIrepBuilder();
+		builder.addPool(OP.LOAD_VAR, "o", 0, nop);
+		builder.addPool(OP.LOAD_CONST, "x", 1, nop);
+		builder.add(OP.ATTRIBUTE, 0, 1, nop);
+		builder.add(OP.APPEND, 0, nop);
+		builder.add(OP.RETURN, nop);
+		Irep irep = builder.build(2);
+		AttributeCache cache = irep.getAttributeCache(2);
+
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("o", new Point(3, 4));
+		assertEquals("3", run(irep, vars));
+		assertEquals(1, cache.size());
+		vars.put("o", new Point(5, 9));
+		assertEquals("5", run(irep, vars));
+		assertEquals(1, cache.size());
+
+		// Receiver class was changed.
+		vars.put("o", new Size());
+		assertEquals("wide", run(irep, vars));
+		assertEquals(2, cache.size());
+		assertFalse(cache.isMegamorphic());
+	}
+
+	@Test
+	public void testAttributeInlineCacheMegamorphic() throws JTTError {
+		IrepBuilder builder = newIrepBuilder();
+		builder.addPool(OP.LOAD_VAR, "o", 0, nop);
+		builder.addPool(OP.LOAD_VAR, "k", 1, nop);
+		builder.add(OP.ATTRIBUTE, 0, 1, nop);
+		builder.add(OP.APPEND, 0, nop);
+		builder.add(OP.RETURN, nop);
+		Irep irep = builder.build(2);
+
+		Map<String, Object> vars = new HashMap<>();
+		StringBuilder got = new StringBuilder();
+		for (Object o : new Object[] { new Point(1, 2), new Size() }) {
+			for (String k : new String[] { "x", "y" }) {
+				vars.put("o", o);
+				vars.put("k", k);
+				got.append(run(irep, vars));
+			}
+		}
+		vars.put("o", new Name());
+		vars.put("k", "x");
+		got.append(run(irep, vars));
+		vars.put("o", new Point(7, 8));
+		vars.put("k", "y");
+		got.append(run(irep, vars));
+
+		assertEquals("12widetalljohn8", got.toString());
+		assertTrue(irep.getAttributeCache(2).isMegamorphic());
+	}
+
+	@Test
+	public void testAppendVar() {
+		IrepBuilder builder = newIrepBuilder();
+		builder.addPool(OP.APPEND_VAR, "foo", nop);
+		builder.add(OP.RETURN, nop);
+		Irep irep = builder.build(0);
+		Map<String, Object> vars = new HashMap<>();
+		vars.put("foo", "<b>");
+		assertEquals("&lt;b&gt;", run(irep, vars));
+	}
+
+	@Test
+	public void testAppendAttr() {
+		IrepBuilder builder = newIrepBuilder();
+		builder.addPool(OP.LOAD_VAR, "item", 0, nop); // pool[0]
+		builder.addPool(OP.LOAD_CONST, "name", 1, nop); // pool[1]
+		builder.add(OP.ATTRIBUTE_CONST, 0, 1, nop);
+		builder.add(OP.APPEND_ATTR, 0, 1, nop);
+		builder.add(OP.RETURN, nop);
+		Irep irep = builder.build(2);
+		Map<String, Object> vars = new HashMap<>();
+		Map<String, Object> inner = new HashMap<>();
+		inner.put("name", "john");
+		Map<String, Object> item = new HashMap<>();
+		item.put("name", inner);
+		vars.put("item", item);
+		assertEquals("john", run(irep, vars));
+	}
+
+	@Test
+	public void testJumpUnlessGt() {
+		for (int i = 0; i < 3; ++i) {
+			IrepBuilder builder = newIrepBuilder();
+			builder.add(OP.LOAD_INT, i, 0, nop);
+			builder.add(OP.LOAD_INT, 1, 1, nop);
+			builder.add(OP.JUMP_UNLESS_GT, 0, 2, nop);
+			builder.addPool(OP.APPEND_RAW, "gt", nop);
+			builder.add(OP.RETURN, nop);
+			Irep irep = builder.build(2);
+			assertEquals(i > 1 ? "gt" : "", run(irep, new HashMap<>()));
+		}
+	}
+
 	private IrepBuilder newIrepBuilder() {
 		return new IrepBuilder(Source.fromString("-"));
 	}